@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * CardTransport backed by an NFC IsoDep connection.
+ */
+public class IsoDepTransport implements CardTransport {
+
+    private final IsoDep mIsoDep;
+
+    public IsoDepTransport(IsoDep isoDep) {
+        mIsoDep = isoDep;
+    }
+
+    /**
+     * Opens an IsoDep connection to a tag that was just discovered.
+     *
+     * @param tag     The tag from the ACTION_TAG_DISCOVERED intent.
+     * @param timeout The transceive timeout in milliseconds.
+     */
+    public static IsoDepTransport connect(Tag tag, int timeout) throws IOException {
+        IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null) {
+            throw new IOException("Tag does not support ISO-DEP!");
+        }
+        isoDep.setTimeout(timeout);
+        isoDep.connect();
+        return new IsoDepTransport(isoDep);
+    }
+
+    public IsoDep getIsoDep() {
+        return mIsoDep;
+    }
+
+    @Override
+    public byte[] transceive(byte[] apdu) throws IOException {
+        return mIsoDep.transceive(apdu);
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        // Only reported since API 16; assume short APDUs on older devices.
+        return Build.VERSION.SDK_INT >= 16 && mIsoDep.isExtendedLengthApduSupported();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mIsoDep.getMaxTransceiveLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIsoDep.close();
+    }
+
+}
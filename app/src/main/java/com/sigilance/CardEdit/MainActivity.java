@@ -29,12 +29,14 @@ import android.content.IntentFilter;
 import android.graphics.Typeface;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.nfc.tech.IsoDep;
 import android.support.v4.app.Fragment;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
 import android.text.InputFilter;
 import android.text.InputType;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -44,162 +46,111 @@ import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.ListView;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Executor;
 
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
 
-public class MainActivity extends AppCompatActivity {
-
-    private abstract class PendingOperation {
-        protected int mSlot;
-
-        public int getSlot() {
-            return mSlot;
-        }
-    }
-
-    private class PendingPutDataOperation extends PendingOperation {
-        private byte[] mData;
-
-        public PendingPutDataOperation(int slot, byte[] data) {
-            mSlot = slot;
-            mData = data;
-        }
 
-        public byte[] getData() {
-            return mData;
-        }
-    }
-
-    private class PendingVerifyPinOperation extends PendingOperation {
-        private String mPin;
-
-        public PendingVerifyPinOperation(int mode, String pin) {
-            mSlot = mode;
-            mPin = pin;
-        }
-
-        public String getPin() {
-            return mPin;
-        }
-
-        public void setPin(String pin) {
-            mPin = pin;
-        }
-    }
-
-    private class PendingChangePinOperation extends PendingOperation {
-        private String mOldPin;
-        private String mNewPin;
-
-        public PendingChangePinOperation(int slot, String oldPin, String newPin) {
-            mSlot = slot;
-            mOldPin = oldPin;
-            mNewPin = newPin;
-        }
-
-        public String getOldPin() {
-            return mOldPin;
-        }
+public class MainActivity extends AppCompatActivity {
 
-        public String getNewPin() {
-            return mNewPin;
-        }
-    }
+    // Card I/O runs on the card session thread.
+    private CardSessionExecutor mCardSession;
+    private CardSessionExecutor.Task mCardTask;
 
-    private IsoDep isoDep;
+    // Off unless turned on from the menu; then every APDU of every tap is recorded.
+    private final ApduRecorder mApduRecorder = new ApduRecorder();
     private NfcAdapter mNfcAdapter;
 
     private boolean mPw3Verified = false;
 
-    // NOTE: The formats for on-card data vary depending on the DO.
-    // These are defined to be binary
+    // The AID of the card we're administering, once a tap has confirmed it.
     private byte[] mCurrentAid = null;
-    private byte[] mPrivateDo1 = null;
-    private byte[] mPrivateDo2 = null;
-    private byte[] mPrivateDo3 = null;
-    private byte[] mPrivateDo4 = null;
-    private byte[] mLoginData = null;
-    private byte[] mPwStatusBytes = null;
-
-    // These are defined to be ISO 8859-1
-    private String mCardholderName = null;
-
-    // These are defined to be ASCII
-    private String mUrl = null;
-    private String mCardholderLanguage = null;
-    private String mCardholderSex = null;
-
-    // These are binary, but we're going to convert them to strings for display
-    private String mSigKeyFingerprint = null;
-    private String mEncKeyFingerprint = null;
-    private String mAuthKeyFingerprint = null;
-
-    // These are UNIX epoch timestamps. Unsigned ints, which we need to represent as Java longs
-    private long mSigKeyTimestamp;
-    private long mEncKeyTimestamp;
-    private long mAuthKeyTimestamp;
-
-    // And this is a three-byte array that we'll represent as an integer.
-    private Integer mSignatureCount = null;
+
+    // The user asked to see the private data, which is read with the next transaction and shown
+    // when it arrives. It isn't read on a normal tap.
+    private boolean mShowPrivateData = false;
+
+    // What the UI shows. Until the tap completes, this may come from the snapshot cache.
+    private CardSnapshot mCard = null;
+    private boolean mShowingCachedSnapshot = false;
+    private CardSnapshotCache mSnapshotCache;
+
+    // Every PUT DATA and CHANGE PIN queued for a known card, so that what a lost tag or a killed
+    // app leaves unfinished can be picked up again.
+    private OperationJournal mJournal;
 
     private ArrayList<PendingOperation> mPendingOperations = new ArrayList<PendingOperation>();
 
+    // The connection to a card that stayed in the field after its tap. While we hold it, edits
+    // run right away instead of waiting for the next tap.
+    private CardTransport mHeldTransport = null;
+    private KeepAliveSession mKeepAlive = null;
+    private Handler mHandler;
+    private boolean mResumed = false;
+
     // Static stuff
+    private static final String TAG = "CardEdit";
     private static final String BLANK_FINGERPRINT = "0000000000000000000000000000000000000000";
 
-    // Status words
-    static final byte[] SW_ACCEPTED = {(byte) 0x90, 0x00};
-
-    // DO slots for reading and writing
-    static final int DO_PRIVATE_1 = 0x0101;
-    static final int DO_PRIVATE_2 = 0x0102;
-    static final int DO_PRIVATE_3 = 0x0103;
-    static final int DO_PRIVATE_4 = 0x0104;
-    static final int DO_LOGIN_DATA = 0x005E;
-    static final int DO_URL = 0x5F50;
-    static final int DO_PW1_STATUS_BYTE = 0x00C4;
-
-    // DO slots for reading only
-    static final int DO_AID = 0x004F;
-    static final int DO_CARDHOLDER_DATA = 0x0065;
-    static final int DO_APPLICATION_DATA = 0x006E;
-    static final int DO_SECURITY_TEMPLATE = 0x007A;
-    static final int DO_PW_STATUS_BYTES = 0x00C4;
-
-    // DO slots for writing only
-    static final int DO_NAME = 0x005B;
-    static final int DO_LANGUAGE = 0x5F2D;
-    static final int DO_SEX = 0x5F35;
-
-    // Tags for compound objects
-    static final int TAG_FINGERPRINTS = 0xC5;
-    static final int TAG_TIMESTAMPS = 0xCD;
-    static final int TAG_NAME = 0x005B;
-    static final int TAG_LANGUAGE = 0x5F2D;
-    static final int TAG_SEX = 0x5F35;
-    static final int TAG_SIG_COUNT = 0x93;
+    // How long a whole tap may take before we give up on the card
+    static final long CARD_TRANSACTION_DEADLINE = 30000;
 
     // PIN slots
     static final int PIN_PW1 = 0x81;
     static final int PIN_PW3 = 0x83;
 
+    // How many cards the snapshot cache remembers
+    static final int SNAPSHOT_CACHE_SIZE = 64;
+
+    // How often we check that a held card is still in the field, and how long a check may take
+    static final long KEEP_ALIVE_PROBE_INTERVAL = 1000;
+    static final long KEEP_ALIVE_PROBE_DEADLINE = 2000;
+
+    // Shows how far a write has got while the card is being written to; called on the card session thread.
+    private final ChunkedUpload.Listener mUploadListener = new ChunkedUpload.Listener() {
+        @Override
+        public void onProgress(final int dataObject, final int acknowledged, final int length) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    TextView warning = findTextViewById(R.id.id_action_reqiured_warning);
+                    warning.setText(getString(R.string.progress_writing, dataObject, acknowledged, length));
+                    warning.setVisibility(View.VISIBLE);
+                }
+            });
+        }
+    };
+
+    private final Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            probeHeldCard();
+        }
+    };
+
     /**
      * Called when the system is about to start resuming a previous activity,
      * disables NFC Foreground Dispatch
      */
     public void onPause() {
         super.onPause();
+        mResumed = false;
         disableNfcForegroundDispatch();
+        cancelCardTask();
+        releaseCard();
     }
 
     public void onStop() {
@@ -213,6 +164,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void onResume() {
         super.onResume();
+        mResumed = true;
         enableNfcForegroundDispatch();
     }
 
@@ -252,6 +204,15 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mHandler = new Handler(Looper.getMainLooper());
+        mCardSession = new CardSessionExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mHandler.post(command);
+            }
+        });
+        mSnapshotCache = new CardSnapshotCache(new File(getCacheDir(), "cards"), SNAPSHOT_CACHE_SIZE);
+        mJournal = new OperationJournal(new File(getFilesDir(), "journal"));
         setTitle(R.string.app_name);
         setContentView(R.layout.activity_main);
         if (savedInstanceState == null) {
@@ -292,9 +253,73 @@ public class MainActivity extends AppCompatActivity {
     }
 
     void removePendingOperation(Class type, int mode) {
-        for (PendingOperation op : mPendingOperations)
-            if (op.getClass().equals(type) && op.getSlot() == mode)
-                mPendingOperations.remove(op);
+        ArrayList<PendingOperation> removed = new ArrayList<PendingOperation>();
+        for (Iterator<PendingOperation> it = mPendingOperations.iterator(); it.hasNext(); ) {
+            PendingOperation op = it.next();
+            if (op.getClass().equals(type) && op.getSlot() == mode) {
+                it.remove();
+                removed.add(op);
+            }
+        }
+        dropFromJournal(removed);
+    }
+
+    /** Queues an operation for the next transaction, and journals it if we know the card. */
+    private void queueOperation(PendingOperation operation) {
+        mPendingOperations.add(operation);
+        if (mCurrentAid == null)
+            return;
+        try {
+            mJournal.queued(mCurrentAid, operation);
+        } catch (IOException e) {
+            // It still goes out with the next transaction, which tries the journal again.
+        }
+    }
+
+    private void dropFromJournal(List<PendingOperation> operations) {
+        if (mCurrentAid == null || operations.isEmpty())
+            return;
+        try {
+            mJournal.dropped(mCurrentAid, operations);
+        } catch (IOException e) {
+            // If the card comes back after a restart, the operation will be offered again.
+        }
+    }
+
+    /**
+     * Picks up the edits to this card that a lost tag or a killed app left unfinished. The PUT
+     * DATAs are queued again. PIN changes and writes to the protected data objects can't be,
+     * because their values were never kept.
+     */
+    private void resumeJournal() {
+        OperationJournal.Recovery recovery;
+        try {
+            recovery = mJournal.recover(mCurrentAid, mPendingOperations);
+        } catch (IOException e) {
+            handleNfcError(e);
+            return;
+        }
+        for (int slot : recovery.mUnconfirmedPinChanges) {
+            Toast.makeText(this, getString(R.string.warning_pin_change_unconfirmed, slot == PIN_PW3 ? "Admin" : "User"),
+                    Toast.LENGTH_LONG).show();
+        }
+        for (int slot : recovery.mUnsentPinChanges) {
+            Toast.makeText(this, getString(R.string.warning_pin_change_not_sent, slot == PIN_PW3 ? "Admin" : "User"),
+                    Toast.LENGTH_LONG).show();
+        }
+        for (int dataObject : recovery.mUnfinishedProtectedWrites) {
+            Toast.makeText(this, getString(R.string.warning_protected_write_not_kept, dataObject), Toast.LENGTH_LONG).show();
+        }
+        if (recovery.mOperations.isEmpty())
+            return;
+
+        mPendingOperations.addAll(recovery.mOperations);
+        Toast.makeText(this, getString(R.string.warning_resuming_changes, recovery.mOperations.size()),
+                Toast.LENGTH_LONG).show();
+        if (mPw3Verified)
+            runPendingOperations(R.string.warning_tap_card_to_save);
+        else
+            promptForVerifyPin(PIN_PW3);
     }
 
     @Override
@@ -314,21 +339,43 @@ public class MainActivity extends AppCompatActivity {
                 removePendingOperation(PendingChangePinOperation.class, PIN_PW3);
                 promptForChangePin(PIN_PW3);
                 return true;
+            case R.id.action_private_data:
+                showPrivateData();
+                return true;
             case R.id.action_different_card:
                 dissociateFromCard();
                 return true;
+            case R.id.action_apdu_statistics:
+                showApduStatistics();
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCardSession.shutdown();
+    }
+
+    /** Aborts the transaction that is talking to the card, if any. Its partial result still arrives. */
+    private void cancelCardTask() {
+        if (mCardTask != null) {
+            mCardTask.cancel();
+        }
+    }
+
     private void dissociateFromCard() {
         // Note: We don't have to null out everything else, because the UI won't show again until
         // after a successful GET DATA of all the card data.
-        for (PendingOperation op : mPendingOperations)
-            mPendingOperations.remove(op);
+        cancelCardTask();
+        releaseCard();
+        mPendingOperations.clear();
         mPw3Verified = false;
+        mShowPrivateData = false;
         mCurrentAid = null;
+        mCard = null;
         findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_view);
         hideUi();
     }
@@ -395,18 +442,122 @@ public class MainActivity extends AppCompatActivity {
                     return;
                 }
                 // Once we have valid PINs, add the pending operation.
-                mPendingOperations.add(
+                queueOperation(
                         new PendingChangePinOperation(mode,
                                 oldPinInput.getText().toString(),
                                 newPinInput.getText().toString()));
                 // And prompt the user to change the PIN.
-                hideUi();
-                findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_change);
+                runPendingOperations(R.string.warning_tap_card_to_change);
                 dialog.dismiss();
             }
         });
     }
 
+    private void showApduStatistics() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_apdu_statistics);
+        if (mApduRecorder.isEnabled()) {
+            String summary = mApduRecorder.summary();
+            Log.i(TAG, summary);
+            final TextView text = new TextView(this);
+            text.setText(summary);
+            text.setTypeface(Typeface.MONOSPACE);
+            text.setHorizontallyScrolling(true);
+            ScrollView scroller = new ScrollView(this);
+            scroller.addView(text);
+            builder.setView(scroller);
+            builder.setPositiveButton("Stop Recording", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    mApduRecorder.setEnabled(false);
+                }
+            });
+            builder.setNeutralButton("Reset", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    mApduRecorder.reset();
+                }
+            });
+        } else {
+            builder.setMessage("Record the timing, size and status of every command sent to the card?");
+            builder.setPositiveButton("Start Recording", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    mApduRecorder.reset();
+                    mApduRecorder.setEnabled(true);
+                }
+            });
+        }
+        builder.setNegativeButton("Close", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.cancel();
+            }
+        });
+
+        builder.create().show();
+    }
+
+    /**
+     * Shows the private DOs and the cardholder certificate. They aren't part of a tap, so the
+     * first time they're asked for they are read from the held card, or with the next tap.
+     */
+    private void showPrivateData() {
+        if (mCard != null && mCard.missing(TransactionPlanner.ON_DEMAND_READS).length == 0) {
+            showPrivateDataDialog();
+            return;
+        }
+        mShowPrivateData = true;
+        if (mKeepAlive != null) {
+            if (mCardTask == null)
+                runOnHeldCard();
+            return;
+        }
+        hideUi();
+        findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_read);
+    }
+
+    private void showPrivateDataDialog() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(getString(R.string.lbl_private_use_do, 1)).append('\n')
+                .append(describePrivateDo(mCard.mPrivateDo1)).append("\n\n");
+        summary.append(getString(R.string.lbl_private_use_do, 2)).append('\n')
+                .append(describePrivateDo(mCard.mPrivateDo2)).append("\n\n");
+        summary.append(getString(R.string.lbl_cardholder_certificate)).append('\n');
+        if (mCard.mCardholderCertificate.length == 0)
+            summary.append(getString(R.string.lbl_empty));
+        else
+            summary.append(String.format("%d bytes", mCard.mCardholderCertificate.length));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_private_data);
+        final TextView text = new TextView(this);
+        text.setText(summary);
+        text.setTypeface(Typeface.MONOSPACE);
+        ScrollView scroller = new ScrollView(this);
+        scroller.addView(text);
+        builder.setView(scroller);
+        builder.setNegativeButton("Close", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.cancel();
+            }
+        });
+
+        builder.create().show();
+    }
+
+    // Private DOs hold whatever the cardholder put there; show text as text, and anything else in hex.
+    private String describePrivateDo(byte[] data) {
+        if (data.length == 0)
+            return getString(R.string.lbl_empty);
+        for (byte b : data) {
+            if (b < 0x20 || b > 0x7E)
+                return ByteUtils.hexString(data);
+        }
+        return new String(data);
+    }
+
     private void promptForVerifyPin(final int mode) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.action_enable_edit_mode);
@@ -428,9 +579,8 @@ public class MainActivity extends AppCompatActivity {
                     Toast.makeText(MainActivity.this, String.format("PIN is at least %d digits.", minPinLength), Toast.LENGTH_SHORT).show();
                     return;
                 }
-                mPendingOperations.add(new PendingVerifyPinOperation(mode, input.getText().toString()));
-                hideUi();
-                findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_verify);
+                queueOperation(new PendingVerifyPinOperation(mode, input.getText().toString()));
+                runPendingOperations(R.string.warning_tap_card_to_verify);
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -462,7 +612,7 @@ public class MainActivity extends AppCompatActivity {
                 input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_WORDS);
                 input2.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_WORDS);
 
-                String[] names = mCardholderName.split("<<");
+                String[] names = mCard.mCardholderName.split("<<");
                 if(names.length > 1) {
                     input.setText(names[0].replace('<', ' '));
                     input2.setText(names[1].replace('<', ' '));
@@ -473,19 +623,19 @@ public class MainActivity extends AppCompatActivity {
                 builder.setTitle(R.string.lbl_language_prefs);
                 builder.setMessage("Use a two-letter ISO 639-1 language code: en for English, es for Spanish, etc.");
                 input.setFilters( new InputFilter[] { new InputFilter.LengthFilter(2) } );
-                input.setText(mCardholderLanguage);
+                input.setText(mCard.mCardholderLanguage);
                 break;
             case DO_LOGIN_DATA:
                 builder.setTitle(R.string.lbl_login_data);
                 builder.setMessage("This is arbitrary text; you can use this field to store a username, email address or network logon.");
                 input.setFilters( new InputFilter[] { new InputFilter.LengthFilter(254) } );
-                input.setText(new String(mLoginData));
+                input.setText(new String(mCard.mLoginData));
                 break;
             case DO_URL:
                 builder.setTitle(R.string.lbl_url);
                 input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
                 input.setFilters( new InputFilter[] { new InputFilter.LengthFilter(254) } );
-                input.setText(mUrl);
+                input.setText(mCard.mUrl);
                 break;
         }
 
@@ -501,7 +651,7 @@ public class MainActivity extends AppCompatActivity {
                     case DO_NAME:
                         String surname = text.trim().replace(' ', '<');
                         String givenNames = input2.getText().toString().trim().replace(' ', '<');
-                        data = (surname + "<<" + givenNames).getBytes(Charset.forName("ISO-8859-1"));
+                        data = (surname + "<<" + givenNames).getBytes(CHARSET_NAME);
                         if (data.length > 39) {
                             Toast.makeText(MainActivity.this, "Name is too long!", Toast.LENGTH_LONG).show();
                             return;
@@ -509,11 +659,13 @@ public class MainActivity extends AppCompatActivity {
                         break;
                     case DO_LANGUAGE:
                         if (text.length() == 2)
-                            data = text.toLowerCase().getBytes();
+                            data = text.toLowerCase().getBytes(CHARSET_ASCII);
                         else
                             data = new byte[0];
                         break;
                     case DO_URL:
+                        data = text.getBytes(CHARSET_URL);
+                        break;
                     case DO_LOGIN_DATA:
                         data = text.getBytes();
                         break;
@@ -521,9 +673,8 @@ public class MainActivity extends AppCompatActivity {
                         data = new byte[0];
                 }
 
-                mPendingOperations.add(new PendingPutDataOperation(slot, data));
-                hideUi();
-                findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_save);
+                queueOperation(new PendingPutDataOperation(slot, data));
+                runPendingOperations(R.string.warning_tap_card_to_save);
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -545,7 +696,7 @@ public class MainActivity extends AppCompatActivity {
                 getString(R.string.lbl_female),
                 getString(R.string.lbl_gender_unspecifed)};
         int currentIndex = -1;
-        switch (mCardholderSex) {
+        switch (mCard.mCardholderSex) {
             case "1":
                 currentIndex = 0;
                 break;
@@ -568,19 +719,18 @@ public class MainActivity extends AppCompatActivity {
                 switch(lw.getCheckedItemPosition())
                 {
                     case 0:
-                        mPendingOperations.add(new PendingPutDataOperation(DO_SEX, new byte[]{0x31}));
+                        queueOperation(new PendingPutDataOperation(DO_SEX, new byte[]{0x31}));
                         break;
                     case 1:
-                        mPendingOperations.add(new PendingPutDataOperation(DO_SEX, new byte[]{0x32}));
+                        queueOperation(new PendingPutDataOperation(DO_SEX, new byte[]{0x32}));
                         break;
                     case 2:
-                        mPendingOperations.add(new PendingPutDataOperation(DO_SEX, new byte[]{0x39}));
+                        queueOperation(new PendingPutDataOperation(DO_SEX, new byte[]{0x39}));
                         break;
                     default:
                         return;
                 }
-                hideUi();
-                findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_save);
+                runPendingOperations(R.string.warning_tap_card_to_save);
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -600,7 +750,7 @@ public class MainActivity extends AppCompatActivity {
         String[] options = new String[]{
                 getString(R.string.lbl_pin_forced),
                 getString(R.string.lbl_pin_not_forced)};
-        builder.setSingleChoiceItems(options, mPwStatusBytes[0], new DialogInterface.OnClickListener() {
+        builder.setSingleChoiceItems(options, mCard.mPwStatusBytes[0], new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int index) {
 
             }
@@ -615,9 +765,8 @@ public class MainActivity extends AppCompatActivity {
                     data = new byte[]{0};
                 else
                     data = new byte[]{1};
-                mPendingOperations.add(new PendingPutDataOperation(DO_PW1_STATUS_BYTE, data));
-                hideUi();
-                findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_save);
+                queueOperation(new PendingPutDataOperation(DO_PW1_STATUS_BYTE, data));
+                runPendingOperations(R.string.warning_tap_card_to_save);
             }
         });
         builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -649,11 +798,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onNewIntent(Intent intent) {
         if (NfcAdapter.ACTION_TAG_DISCOVERED.equals(intent.getAction())) {
-            try {
-                handleNdefDiscoveredIntent(intent);
-            } catch (IOException e) {
-                handleNfcError(e);
-            }
+            handleNdefDiscoveredIntent(intent);
         }
     }
 
@@ -767,41 +912,6 @@ public class MainActivity extends AppCompatActivity {
         return df.format(new Date(timestamp * 1000));
     }
 
-    private String getManufacturer() {
-        int manufacturerId = (mCurrentAid[8] << 8) | mCurrentAid[9];
-        switch (manufacturerId) {
-            case 0x0005:
-                return "ZeitControl";
-            case 0x0006:
-                return "Yubico";
-            case 0x7615:
-                return "SIGILANCE";
-            case 0xF517:
-                return "FSIJ";
-            case 0x0000:
-            case 0xffff:
-                return "test card";
-            default:
-                if ((manufacturerId & 0xff00) == 0xff00)
-                    return "unmanaged S/N range";
-                else
-                    return "unknown";
-        }
-    }
-
-    private String getVersion() {
-        String aidString = hexString(mCurrentAid);
-        // Spec states that this version string is BCD, so 0x10 is 10, not 16.
-        int majorVersion = Integer.parseInt(aidString.substring(12, 14));
-        int minorVersion = Integer.parseInt(aidString.substring(14, 16));
-        return String.format("%d.%d", majorVersion, minorVersion);
-    }
-
-    private String getSerialNumber() {
-        String aidString = hexString(mCurrentAid);
-        return aidString.substring(20, 28);
-    }
-
     private TextView findTextViewById(int id) {
         return (TextView) findViewById(id);
     }
@@ -811,7 +921,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void refreshUi() {
-        if (mCurrentAid == null) {
+        if (mCard == null || !mCard.isComplete()) {
             hideUi();
             return;
         }
@@ -824,19 +934,27 @@ public class MainActivity extends AppCompatActivity {
             disableEditControls();
         }
 
-        populateSimpleField(R.id.id_version_content, getVersion());
-        populateSimpleField(R.id.id_manufacturer_content, getManufacturer());
-        populateSimpleField(R.id.id_serialno_content, getSerialNumber());
+        OpenPgpAid aid;
+        try {
+            aid = mCard.getApplicationId();
+        } catch (IOException e) {
+            hideUi();
+            handleNfcError(e);
+            return;
+        }
+        populateSimpleField(R.id.id_version_content, aid.getVersion());
+        populateSimpleField(R.id.id_manufacturer_content, ManufacturerRegistry.getDefault().getName(aid));
+        populateSimpleField(R.id.id_serialno_content, aid.getSerialString());
 
-        populateSimpleField(R.id.id_name_content, mCardholderName);
-        populateSimpleField(R.id.id_lang_content, mCardholderLanguage);
+        populateSimpleField(R.id.id_name_content, mCard.mCardholderName);
+        populateSimpleField(R.id.id_lang_content, mCard.mCardholderLanguage);
 
-        populateSimpleField(R.id.id_url_content, mUrl);
-        populateSimpleField(R.id.id_logindata_content, new String(mLoginData));
+        populateSimpleField(R.id.id_url_content, mCard.mUrl);
+        populateSimpleField(R.id.id_logindata_content, new String(mCard.mLoginData));
 
-        populateSimpleField(R.id.id_sigcount_content, String.format("%d", mSignatureCount));
+        populateSimpleField(R.id.id_sigcount_content, String.format("%d", mCard.mSignatureCount));
 
-        switch (mCardholderSex) {
+        switch (mCard.mCardholderSex) {
             case "1":
                 findTextViewById(R.id.id_sex_content).setText(R.string.lbl_male);
                 break;
@@ -848,238 +966,366 @@ public class MainActivity extends AppCompatActivity {
                 break;
         }
 
-        if(mPwStatusBytes[0] == 1)
+        if(mCard.mPwStatusBytes[0] == 1)
             findTextViewById(R.id.id_forcesig_content).setText(R.string.lbl_pin_not_forced);
         else
             findTextViewById(R.id.id_forcesig_content).setText(R.string.lbl_pin_forced);
 
-        populateSimpleField(R.id.id_sigkey_fingerprint_content, mSigKeyFingerprint);
-        populateSimpleField(R.id.id_sigkey_timestamp_content, formatEpochDate(mSigKeyTimestamp));
+        // The fingerprints are binary, but we convert them to strings for display
+        populateSimpleField(R.id.id_sigkey_fingerprint_content, ByteUtils.hexString(mCard.mFingerprints, 0, 20));
+        populateSimpleField(R.id.id_sigkey_timestamp_content, formatEpochDate(mCard.mSigKeyTimestamp));
 
-        populateSimpleField(R.id.id_enckey_fingerprint_content, mEncKeyFingerprint);
-        populateSimpleField(R.id.id_enckey_timestamp_content, formatEpochDate(mEncKeyTimestamp));
+        populateSimpleField(R.id.id_enckey_fingerprint_content, ByteUtils.hexString(mCard.mFingerprints, 20, 20));
+        populateSimpleField(R.id.id_enckey_timestamp_content, formatEpochDate(mCard.mEncKeyTimestamp));
 
-        populateSimpleField(R.id.id_authkey_fingerprint_content, mAuthKeyFingerprint);
-        populateSimpleField(R.id.id_authkey_timestamp_content, formatEpochDate(mAuthKeyTimestamp));
+        populateSimpleField(R.id.id_authkey_fingerprint_content, ByteUtils.hexString(mCard.mFingerprints, 40, 20));
+        populateSimpleField(R.id.id_authkey_timestamp_content, formatEpochDate(mCard.mAuthKeyTimestamp));
     }
 
-    public byte[] nfcCommunicate(byte[] apdu) throws IOException {
-        return isoDep.transceive(apdu);
-    }
-
-    /**
-     * Gets a data object from the card.
-     * Supported for all data objects < 255 bytes in length. Only the cardholder certificate
-     * (0x7F21) can exceed this length.
-     *
-     * @param dataObject The data object to get.
-     */
-    public byte[] nfcGetData(int dataObject) throws IOException {
-        byte p1 = (byte) ((dataObject & 0xFF00) >> 8);
-        byte p2 = (byte) (dataObject & 0x00FF);
+    protected void handleNdefDiscoveredIntent(Intent intent) {
+        if (mCardTask != null) {
+            // The previous transaction is still running; it has to finish before we plan the next.
+            return;
+        }
+        final Tag detectedTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        // A card we were holding has left the field if it is being tapped again.
+        releaseCard();
+
+        // Compile everything this tap has to do into one ordered program before sending anything.
+        int[] refreshReads;
+        if (mCurrentAid == null || mCard == null || !hasPendingWork()) {
+            // A new card, or a tap with nothing to do, which reads everything again.
+            refreshReads = TransactionPlanner.FULL_REFRESH;
+        } else {
+            // Otherwise only read back what this tap changes; the rest of the card is already on screen.
+            refreshReads = TransactionPlanner.dirtyReads(mPendingOperations, mPw3Verified);
+        }
+        // The worker decodes into its own copy; ours stays on screen until the result arrives.
+        final CardSnapshot base = mCard == null ? null : mCard.copy();
+        if (base != null && refreshReads == TransactionPlanner.FULL_REFRESH) {
+            // Reading everything again starts afresh, including what was read on demand.
+            base.clearOnDemand();
+        }
+        refreshReads = withOnDemandReads(refreshReads, base);
+        final TransactionPlan plan = TransactionPlanner.plan(mPendingOperations, mPw3Verified, refreshReads);
+        final byte[] expectedAid = mCurrentAid;
 
-        byte[] getDataApdu = {0x00, (byte) 0xCA, p1, p2, 0x00};
-        byte[] response = nfcCommunicate(getDataApdu);
+        // The transaction itself runs on the card session thread; the result comes back to the UI thread.
+        mCardTask = mCardSession.submit(new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() throws IOException {
+                // timeout is set to 100 seconds to avoid cancellation during calculation
+                return IsoDepTransport.connect(detectedTag, 100000);
+            }
+        }, new CardSessionExecutor.CardJob<TransactionResult>() {
+            @Override
+            public TransactionResult run(CardTransport transport) throws IOException {
+                OpenPgpCard card = new OpenPgpCard(transport, mApduRecorder);
+                card.setUploadListener(mUploadListener);
+                TransactionRunner runner = new TransactionRunner(card, mSnapshotCache, new TransactionRunner.Listener() {
+                    @Override
+                    public void onCachedSnapshot(CardSnapshot cached) {
+                        showCachedSnapshot(cached);
+                    }
+                });
+                runner.setJournal(mJournal);
+                return runner.run(plan, expectedAid, base);
+            }
+        }, CARD_TRANSACTION_DEADLINE, true, new CardSessionExecutor.Callback<TransactionResult>() {
+            @Override
+            public void onResult(TransactionResult result) {
+                CardTransport transport = mCardTask.getTransport();
+                mCardTask = null;
+                boolean newCard = mCurrentAid == null;
+                applyTransactionResult(result);
+                holdCard(transport, result);
+                if (newCard && mCurrentAid != null)
+                    resumeJournal();
+            }
 
-        byte[] sw = Arrays.copyOfRange(response, response.length - 2, response.length);
+            @Override
+            public void onError(IOException e) {
+                mCardTask = null;
+                handleNfcError(e);
+            }
+        });
+    }
 
-        if (!Arrays.equals(sw, SW_ACCEPTED)) {
-            throw new IOException("GET DATA failed!");
+    /** Returns true if the pending operations have anything to send to the card. */
+    private boolean hasPendingWork() {
+        for (PendingOperation operation : mPendingOperations) {
+            // A VERIFY of an Admin PIN we already confirmed is only re-sent ahead of writes.
+            if (!(operation instanceof PendingVerifyPinOperation && operation.getSlot() == PIN_PW3 && mPw3Verified))
+                return true;
         }
-
-        return Arrays.copyOf(response, response.length - 2);
+        return false;
     }
 
     /**
-     * Stores a data object on the card. Automatically validates the proper PIN for the operation.
-     * Supported for all data objects < 255 bytes in length. Only the cardholder certificate
-     * (0x7F21) can exceed this length.
-     *
-     * @param dataObject The data object to be stored.
-     * @param data       The data to store in the object
+     * Called when the user has queued an edit. If the card is still held in the field, the edit
+     * runs right away; otherwise the user is asked to tap the card.
      */
-    public void nfcPutData(int dataObject, byte[] data) throws IOException {
-        byte p1 = (byte) ((dataObject & 0xFF00) >> 8);
-        byte p2 = (byte) (dataObject & 0x00FF);
-
-        byte[] putDataHeader = {0x00, (byte) 0xDA, p1, p2, (byte) data.length};
-        byte[] putDataApdu = new byte[putDataHeader.length + data.length];
-        System.arraycopy(putDataHeader, 0, putDataApdu, 0, putDataHeader.length);
-        System.arraycopy(data, 0, putDataApdu, putDataHeader.length, data.length);
-
-        byte[] response = nfcCommunicate(putDataApdu);
-
-        if (!Arrays.equals(response, SW_ACCEPTED)) {
-            throw new IOException("PUT DATA failed!");
+    private void runPendingOperations(int tapPrompt) {
+        if (mKeepAlive != null) {
+            // If an edit is already running, this one follows as soon as it's done.
+            if (mCardTask == null)
+                runOnHeldCard();
+            return;
         }
+        hideUi();
+        findTextViewById(R.id.id_action_reqiured_warning).setText(tapPrompt);
     }
 
     /**
-     * Modifies the user's PW1 or PW3. Before sending, the new PIN will be validated for
-     * conformance to the card's requirements for key length.
-     *
-     * @param slot   For PW1, this is 0x81. For PW3 (Admin PIN), mode is 0x83.
-     * @param oldPin The old PW1 or PW3.
-     * @param newPin The new PW1 or PW3.
+     * Keeps the connection a tap ran on, so that edits can run while the card stays in the
+     * field. The connection is closed instead if the tap didn't go through.
      */
-    public void nfcModifyPIN(int slot, String oldPin, String newPin) throws IOException {
-        byte[] pins = (oldPin + newPin).getBytes();
-        byte[] changePinHeader = {0x00, 0x24, 0x00, (byte) slot, (byte) pins.length};
-        byte[] changePinApdu = new byte[changePinHeader.length + pins.length];
-        System.arraycopy(changePinHeader, 0, changePinApdu, 0, changePinHeader.length);
-        System.arraycopy(pins, 0, changePinApdu, changePinHeader.length, pins.length);
-
-        byte[] response = nfcCommunicate(changePinApdu); // change PIN
-        if (!Arrays.equals(response, SW_ACCEPTED)) {
-            showUi();
-            throw new IOException("CHANGE PIN failed!");
+    private void holdCard(CardTransport transport, TransactionResult result) {
+        KeepAliveSession session = KeepAliveSession.start(result);
+        if (!mResumed || result.mError != null || session == null || mCard == null || transport == null) {
+            closeQuietly(transport);
+            return;
         }
+        session.setJournal(mJournal);
+        mKeepAlive = session;
+        mHeldTransport = transport;
+        mHandler.postDelayed(mProbeRunnable, KEEP_ALIVE_PROBE_INTERVAL);
     }
 
-    /** Verifies the user's PW1 or PW3 with the appropriate mode.
-     *
-     * @param mode For PW1, this is 0x81 for signing, 0x82 for everything else.
-     *             For PW3 (Admin PIN), mode is 0x83.
-     */
-    public void nfcVerifyPIN(int mode, String pinString) throws IOException {
-        if (pinString != null || mode == 0x83) {
-            if (pinString == null || pinString.length() < 6)
-                throw new IOException("Invalid PIN!");
-            byte[] pin = pinString.getBytes();
-            byte[] verifyPinHeader = {0x00, 0x20, 0x00, (byte)mode, (byte)pin.length};
-            byte[] verifyPinApdu = new byte[verifyPinHeader.length + pin.length];
-            System.arraycopy(verifyPinHeader, 0, verifyPinApdu, 0, verifyPinHeader.length);
-            System.arraycopy(pin, 0, verifyPinApdu, verifyPinHeader.length, pin.length);
-
-            byte[] response = nfcCommunicate(verifyPinApdu);
-            if (!Arrays.equals(response, SW_ACCEPTED)) {
-                showUi();
-                throw new IOException("Incorrect PIN. Do not attempt again with the same PIN, or you risk locking the card!");
-            }
+    /** Lets go of a card held in the field; edits wait for the next tap again. */
+    private void releaseCard() {
+        mHandler.removeCallbacks(mProbeRunnable);
+        closeQuietly(mHeldTransport);
+        mKeepAlive = null;
+        mHeldTransport = null;
+    }
 
-            if (mode == 0x83) {
-                mPw3Verified = true;
-            }
+    /** Called when a held card has left the field: anything still queued waits for a tap. */
+    private void fallBackToTap() {
+        releaseCard();
+        if (hasPendingWork()) {
+            hideUi();
+            findTextViewById(R.id.id_action_reqiured_warning).setText(R.string.warning_tap_card_to_save);
         }
     }
 
-    protected void handleNdefDiscoveredIntent(Intent intent) throws IOException {
-        Tag detectedTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-        isoDep = IsoDep.get(detectedTag);
-        isoDep.setTimeout(100000); // timeout is set to 100 seconds to avoid cancellation during calculation
-        isoDep.connect();
+    /** Runs the pending operations on the held card, without SELECT or a fresh Admin PIN VERIFY. */
+    private void runOnHeldCard() {
+        final KeepAliveSession session = mKeepAlive;
+        final ArrayList<PendingOperation> pending = new ArrayList<PendingOperation>(mPendingOperations);
+        final CardSnapshot base = mCard.copy();
+        final int[] refreshReads = withOnDemandReads(TransactionPlanner.dirtyReads(pending, mPw3Verified), base);
+
+        mHandler.removeCallbacks(mProbeRunnable);
+        mCardTask = mCardSession.submit(heldTransportFactory(), new CardSessionExecutor.CardJob<TransactionResult>() {
+            @Override
+            public TransactionResult run(CardTransport transport) throws IOException {
+                OpenPgpCard card = new OpenPgpCard(transport, mApduRecorder);
+                card.setUploadListener(mUploadListener);
+                return session.run(card, pending, refreshReads, base, mSnapshotCache);
+            }
+        }, CARD_TRANSACTION_DEADLINE, true, new CardSessionExecutor.Callback<TransactionResult>() {
+            @Override
+            public void onResult(TransactionResult result) {
+                mCardTask = null;
+                applyTransactionResult(result);
+                if (mKeepAlive != session) {
+                    // The card left while the edit was running.
+                    fallBackToTap();
+                } else if (result.mError == null && (hasPendingWork() || mShowPrivateData)) {
+                    // More edits, or a request for the private data, came in while this one was running.
+                    runOnHeldCard();
+                } else {
+                    // After an error, the next probe tells whether the card is still there.
+                    mHandler.postDelayed(mProbeRunnable, KEEP_ALIVE_PROBE_INTERVAL);
+                }
+            }
 
-        byte[] opening = {0x00, (byte) 0xA4, 0x04, 0x00, 0x06, (byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01, 0x00};
-        byte[] response = nfcCommunicate(opening);
-        if (!Arrays.equals(response, SW_ACCEPTED)) {
-            throw new IOException("Initialization failed!");
+            @Override
+            public void onError(IOException e) {
+                mCardTask = null;
+                handleNfcError(e);
+                fallBackToTap();
+            }
+        });
+    }
+
+    /** Checks that the held card is still in the field, and falls back to tapping if it isn't. */
+    private void probeHeldCard() {
+        final KeepAliveSession session = mKeepAlive;
+        if (session == null || mCardTask != null) {
+            // An edit is running; it probes again when it's done.
+            return;
         }
+        mCardSession.submit(heldTransportFactory(), new CardSessionExecutor.CardJob<byte[]>() {
+            @Override
+            public byte[] run(CardTransport transport) throws IOException {
+                // Probes aren't recorded; they would drown out the commands the user asked for.
+                return session.probe(new OpenPgpCard(transport, null));
+            }
+        }, KEEP_ALIVE_PROBE_DEADLINE, true, new CardSessionExecutor.Callback<byte[]>() {
+            @Override
+            public void onResult(byte[] status) {
+                if (mKeepAlive == session) {
+                    mHandler.postDelayed(mProbeRunnable, KEEP_ALIVE_PROBE_INTERVAL);
+                }
+            }
 
-        byte[] aid = nfcGetData(DO_AID);
+            @Override
+            public void onError(IOException e) {
+                if (mKeepAlive == session) {
+                    fallBackToTap();
+                }
+            }
+        });
+    }
 
-        // If user is touching card for the first time, cache the AID.
-        if (mCurrentAid == null) {
-            mCurrentAid = aid;
+    /** Adds the on-demand reads the user asked for, and that the card as last read doesn't hold yet. */
+    private int[] withOnDemandReads(int[] refreshReads, CardSnapshot base) {
+        if (!mShowPrivateData) {
+            return refreshReads;
         }
+        int[] onDemand = base == null ? TransactionPlanner.ON_DEMAND_READS : base.missing(TransactionPlanner.ON_DEMAND_READS);
+        int[] reads = Arrays.copyOf(refreshReads, refreshReads.length + onDemand.length);
+        System.arraycopy(onDemand, 0, reads, refreshReads.length, onDemand.length);
+        return reads;
+    }
 
-        // Confirm that they're still tapping the same card.
-        if (!Arrays.equals(aid, mCurrentAid)) {
-            throw new IOException("Serial numbers did not match; did you tap a different card?");
+    private CardSessionExecutor.TransportFactory heldTransportFactory() {
+        final CardTransport transport = mHeldTransport;
+        return new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() throws IOException {
+                return transport;
+            }
+        };
+    }
+
+    private static void closeQuietly(CardTransport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // The card has most likely left the field already.
         }
+    }
 
-        // With safety checks out of the way, perform pending operations.
-        if (mPendingOperations.size() > 0) {
-            String newAdminPIN = null;
+    /**
+     * Shows a cached snapshot of the card being read, while the tap is still going. Called on the
+     * card session thread; the snapshot is posted ahead of the transaction result, which replaces it.
+     */
+    private void showCachedSnapshot(final CardSnapshot cached) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCardTask != null && mCard == null) {
+                    mCard = cached;
+                    mShowingCachedSnapshot = true;
+                    refreshUi();
+                }
+            }
+        });
+    }
 
-            for (PendingOperation operation : mPendingOperations) {
-                if (operation instanceof PendingVerifyPinOperation) {
-                    PendingVerifyPinOperation op = (PendingVerifyPinOperation) operation;
-                    nfcVerifyPIN(op.getSlot(), op.getPin());
+    /**
+     * Applies the outcome of a transaction on the UI thread: retires the operations that went
+     * through and shows the card as it was read. Operations after a failure stay queued.
+     */
+    private void applyTransactionResult(TransactionResult result) {
+        for (TransactionPlan.Step step : result.mCompletedSteps) {
+            switch (step.mType) {
+                case TransactionPlan.STEP_GET_DATA:
+                    // If user is touching card for the first time, cache the AID.
+                    if (step.mSlot == DO_AID && mCurrentAid == null) {
+                        mCurrentAid = result.mAid;
+                    }
+                    break;
+                case TransactionPlan.STEP_CHANGE_PIN:
+                    mPendingOperations.removeAll(step.mOperations);
+                    // If we changed the Admin PIN, we need the VERIFY command to reflect the new PIN.
+                    if (step.mSlot == PIN_PW3)
+                        for (PendingOperation operation : mPendingOperations)
+                            if (operation instanceof PendingVerifyPinOperation && operation.getSlot() == PIN_PW3)
+                                ((PendingVerifyPinOperation) operation).setPin(step.mNewPin);
+                    Toast.makeText(this, "PIN was changed.", Toast.LENGTH_LONG).show();
+                    break;
+                case TransactionPlan.STEP_VERIFY:
                     // NOTE: We do not remove the verify operation, because if the user wants to
                     // edit another DO, we'll need to transmit it again.
-                } else if (operation instanceof PendingPutDataOperation) {
-                    PendingPutDataOperation op = (PendingPutDataOperation) operation;
-                    nfcPutData(op.getSlot(), op.getData());
-                    mPendingOperations.remove(op);
-                } else if (operation instanceof PendingChangePinOperation) {
-                    PendingChangePinOperation op = (PendingChangePinOperation) operation;
-                    nfcModifyPIN(op.getSlot(), op.getOldPin(), op.getNewPin());
-                    if (op.getSlot() == 0x83)
-                        newAdminPIN = op.getNewPin();
-                    mPendingOperations.remove(op);
-                    Toast.makeText(this, "PIN was changed.", Toast.LENGTH_LONG).show();
-                }
+                    if (step.mSlot == PIN_PW3)
+                        mPw3Verified = true;
+                    break;
+                case TransactionPlan.STEP_PUT_DATA:
+                    mPendingOperations.removeAll(step.mOperations);
+                    break;
             }
+        }
 
-            // If we changed the Admin PIN, we need the VERIFY command to reflect the new PIN.
-            if (newAdminPIN != null)
-                for (PendingOperation operation : mPendingOperations)
-                    if (operation instanceof PendingVerifyPinOperation) {
-                        PendingVerifyPinOperation op = (PendingVerifyPinOperation) operation;
-                        if (op.getSlot() == 0x83)
-                            op.setPin(newAdminPIN);
-                    }
+        boolean showingCachedSnapshot = mShowingCachedSnapshot;
+        mShowingCachedSnapshot = false;
+
+        if (result.mError == null) {
+            mCard = result.mSnapshot;
+            refreshUi();
+            if (mShowPrivateData && mCard.missing(TransactionPlanner.ON_DEMAND_READS).length == 0) {
+                mShowPrivateData = false;
+                showPrivateDataDialog();
+            }
+            return;
         }
 
-        // Finally, get all the data and show the UI.
-        byte[] cardholderData = nfcGetData(DO_CARDHOLDER_DATA);
-        Iso7816TLV chTlv = Iso7816TLV.readSingle(cardholderData, true);
-        mCardholderName = new String(Iso7816TLV.findRecursive(chTlv, TAG_NAME).mV);
-        mCardholderSex = new String(Iso7816TLV.findRecursive(chTlv, TAG_SEX).mV);
-        mCardholderLanguage = new String(Iso7816TLV.findRecursive(chTlv, TAG_LANGUAGE).mV);
-
-        mUrl = new String(nfcGetData(DO_URL));
-        mLoginData = nfcGetData(DO_LOGIN_DATA);
-
-        byte[] appData = nfcGetData(DO_APPLICATION_DATA);
-        Iso7816TLV appTlv = Iso7816TLV.readSingle(appData, true);
-        byte[] fingerprints = Iso7816TLV.findRecursive(appTlv, TAG_FINGERPRINTS).mV;
-        mSigKeyFingerprint = hexString(Arrays.copyOfRange(fingerprints, 0, 20));
-        mEncKeyFingerprint = hexString(Arrays.copyOfRange(fingerprints, 20, 40));
-        mAuthKeyFingerprint = hexString(Arrays.copyOfRange(fingerprints, 40, 60));
-        byte[] timestamps = Iso7816TLV.findRecursive(appTlv, TAG_TIMESTAMPS).mV;
-        mSigKeyTimestamp = unsignedFromByteArray(Arrays.copyOfRange(timestamps, 0, 4));
-        mEncKeyTimestamp = unsignedFromByteArray(Arrays.copyOfRange(timestamps, 4, 8));
-        mAuthKeyTimestamp = unsignedFromByteArray(Arrays.copyOfRange(timestamps, 8, 12));
-
-        mPwStatusBytes = nfcGetData(DO_PW_STATUS_BYTES);
-
-        byte[] secData = nfcGetData(DO_SECURITY_TEMPLATE);
-        Iso7816TLV secTlv = Iso7816TLV.readSingle(secData, true);
-        byte[] sigCount = {0, 0, 0, 0};
-        byte[] sigCountFromCard = Iso7816TLV.findRecursive(secTlv, TAG_SIG_COUNT).mV;
-        System.arraycopy(sigCountFromCard, 0, sigCount, 1, 3);
-        mSignatureCount = ByteBuffer.wrap(sigCount).getInt();
-
-        refreshUi();
-    }
+        // Don't keep asking a card for private data it wouldn't give; the user can ask again.
+        mShowPrivateData = false;
 
-    public void handleNfcError(IOException e) {
-        Toast.makeText(this, "Exception: " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-    }
+        // The live read never replaced the cached snapshot, so don't leave it on screen.
+        if (showingCachedSnapshot) {
+            mCard = null;
+            hideUi();
+        }
+
+        // A write that was cut short stays queued, and starts over with the next tap.
+        ChunkedUpload upload = result.mFailedStep == null ? null : result.mFailedStep.getUpload();
+        if (upload != null && upload.getAcknowledged() > 0) {
+            hideUi();
+            findTextViewById(R.id.id_action_reqiured_warning).setText(getString(R.string.warning_write_interrupted,
+                    upload.getDataObject(), upload.getAcknowledged(), upload.getLength()));
+        }
 
-    final protected static char[] HEX_CHARACTERS = "0123456789ABCDEF".toCharArray();
+        // A PIN change that didn't go through is never sent again by itself: the old PIN may have
+        // been wrong, or the card may have taken the new one just before it was lost. Either way,
+        // another try with the old PIN could use up a retry. Only a card that refused it is known
+        // to still have the old PIN; otherwise the journal keeps the change open, so that it is
+        // reported again if the app is restarted before the user has tried the new PIN.
+        if (result.mFailedStep != null && result.mFailedStep.mType == TransactionPlan.STEP_CHANGE_PIN) {
+            mPendingOperations.removeAll(result.mFailedStep.mOperations);
+            if (result.mError instanceof StatusWordException) {
+                dropFromJournal(result.mFailedStep.mOperations);
+            } else {
+                Toast.makeText(this, getString(R.string.warning_pin_change_unconfirmed,
+                        result.mFailedStep.mSlot == PIN_PW3 ? "Admin" : "User"), Toast.LENGTH_LONG).show();
+            }
+        }
 
-    public static String hexString(byte[] bytes) {
-        char[] retVal = new char[bytes.length * 2];
-        for (int i = 0; i < bytes.length; i++) {
-            int v = bytes[i] & 0xFF;
-            retVal[i * 2] = HEX_CHARACTERS[v >>> 4];
-            retVal[i * 2 + 1] = HEX_CHARACTERS[v & 0x0F];
+        // A write the card refused would only be refused again, so it isn't kept for the next tap
+        // or resumed from the journal. One that was cut short by a lost tag stays queued.
+        if (result.mFailedStep != null && result.mFailedStep.mType == TransactionPlan.STEP_PUT_DATA
+                && result.mError instanceof StatusWordException) {
+            mPendingOperations.removeAll(result.mFailedStep.mOperations);
+            dropFromJournal(result.mFailedStep.mOperations);
         }
-        return new String(retVal);
+
+        // A rejected PIN leaves the card data as it was, so show it again behind the error.
+        if (result.mFailedStep != null && (result.mFailedStep.mType == TransactionPlan.STEP_VERIFY
+                || result.mFailedStep.mType == TransactionPlan.STEP_CHANGE_PIN)) {
+            refreshUi();
+        }
+        handleNfcError(result.mError);
     }
 
-    long unsignedFromByteArray(byte[] b) {
-        long l = 0;
-        l |= b[0] & 0xFF;
-        l <<= 8;
-        l |= b[1] & 0xFF;
-        l <<= 8;
-        l |= b[2] & 0xFF;
-        l <<= 8;
-        l |= b[3] & 0xFF;
-        return l;
+    public void handleNfcError(IOException e) {
+        Toast.makeText(this, "Exception: " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.CommandApdu;
+import com.sigilance.CardEdit.OpenPgpCommands;
+import com.sigilance.CardEdit.ResponseApdu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the command APDUs of a tap with a reused CommandApdu, the way OpenPgpCard does, and
+ * reading the status word of a response. Run with -prof gc to check that none of them allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApduBenchmark {
+
+    // A URL, a full short APDU, and a cardholder certificate
+    @Param({"40", "255", "2048"})
+    public int dataLength;
+
+    private byte[] mData;
+    private byte[] mPin;
+    private byte[] mRidPix;
+    private byte[] mResponseBytes;
+    private final CommandApdu mCommand = new CommandApdu();
+    private final ResponseApdu mResponse = new ResponseApdu();
+
+    @Setup
+    public void setUp() {
+        mData = new byte[dataLength];
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) i;
+        }
+        mPin = "12345678".getBytes();
+        mRidPix = new byte[]{(byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01};
+        mResponseBytes = new byte[dataLength + 2];
+        mResponseBytes[dataLength] = (byte) 0x90;
+    }
+
+    @Benchmark
+    public byte[] select() {
+        return mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_SELECT, 0x04, 0x00, mRidPix, 0, mRidPix.length, 256, false);
+    }
+
+    @Benchmark
+    public byte[] getData() {
+        return mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_GET_DATA, 0x00, 0x6E, null, 0, 0, 256, false);
+    }
+
+    @Benchmark
+    public byte[] verify() {
+        return mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_VERIFY, 0x00, 0x83, mPin, 0, mPin.length, 0, false);
+    }
+
+    @Benchmark
+    public byte[] putDataExtended() {
+        return mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_PUT_DATA, 0x7F, 0x21, mData, 0, mData.length, 0, true);
+    }
+
+    @Benchmark
+    public void putDataChained(Blackhole blackhole) {
+        // The same segmentation OpenPgpCard.putData uses when the card doesn't take extended lengths
+        int offset = 0;
+        do {
+            int length = Math.min(255, mData.length - offset);
+            boolean last = offset + length == mData.length;
+            blackhole.consume(mCommand.encode(last ? OpenPgpCommands.CLA : OpenPgpCommands.CLA_CHAINING,
+                    OpenPgpCommands.INS_PUT_DATA, 0x7F, 0x21, mData, offset, length, 0, false));
+            offset += length;
+        } while (offset < mData.length);
+    }
+
+    @Benchmark
+    public int responseStatusWord() {
+        return mResponse.wrap(mResponseBytes).getStatusWord() + mResponse.getDataLength();
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.CardSnapshot;
+import com.sigilance.CardEdit.OpenPgpCard;
+import com.sigilance.CardEdit.PendingOperation;
+import com.sigilance.CardEdit.SimulatedOpenPgpCard;
+import com.sigilance.CardEdit.SnapshotArchive;
+import com.sigilance.CardEdit.SnapshotArchiveWriter;
+import com.sigilance.CardEdit.TransactionPlanner;
+import com.sigilance.CardEdit.TransactionResult;
+import com.sigilance.CardEdit.TransactionRunner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up one card's history in a SnapshotArchive of a fleet that has been audited a few
+ * times, against decoding every record in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    private static final int AUDITS = 4;
+
+    @Param({"10000"})
+    public int cards;
+
+    private File mFile;
+    private SnapshotArchive mArchive;
+    private byte[] mAid;
+
+    @Setup
+    public void setUp() throws IOException {
+        SimulatedOpenPgpCard card = new SimulatedOpenPgpCard(0xFFFE, 1);
+        TransactionResult result = new TransactionRunner(new OpenPgpCard(card, null), null, null).run(
+                TransactionPlanner.plan(Collections.<PendingOperation>emptyList(), false, TransactionPlanner.FULL_REFRESH),
+                null, null);
+        if (result.mError != null) {
+            throw result.mError;
+        }
+
+        mFile = File.createTempFile("archive", ".snap");
+        SnapshotArchiveWriter writer = new SnapshotArchiveWriter(mFile);
+        for (int audit = 0; audit < AUDITS; audit++) {
+            for (int i = 0; i < cards; i++) {
+                CardSnapshot snapshot = result.mSnapshot.copy();
+                snapshot.mAid = aid(result.mAid, i);
+                snapshot.mCardholderName = "Castillo<<Employee<" + i;
+                snapshot.mSignatureCount = audit;
+                writer.append(audit * 86400000L, snapshot);
+            }
+        }
+        writer.close();
+        mArchive = SnapshotArchive.open(mFile);
+        mAid = aid(result.mAid, cards / 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mArchive.close();
+        mFile.delete();
+    }
+
+    private static byte[] aid(byte[] base, int serial) {
+        byte[] aid = base.clone();
+        aid[10] = (byte) (serial >> 24);
+        aid[11] = (byte) (serial >> 16);
+        aid[12] = (byte) (serial >> 8);
+        aid[13] = (byte) serial;
+        return aid;
+    }
+
+    @Benchmark
+    public CardSnapshot findHistory() throws IOException {
+        CardSnapshot latest = null;
+        for (int record : mArchive.find(mAid)) {
+            latest = mArchive.get(record);
+        }
+        return latest;
+    }
+
+    @Benchmark
+    public int scanAll() throws IOException {
+        int signatures = 0;
+        for (int i = 0; i < mArchive.size(); i++) {
+            signatures += mArchive.get(i).mSignatureCount;
+        }
+        return signatures;
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.AuditRecord;
+import com.sigilance.CardEdit.AuditWriter;
+import com.sigilance.CardEdit.OpenPgpCard;
+import com.sigilance.CardEdit.PendingOperation;
+import com.sigilance.CardEdit.SimulatedOpenPgpCard;
+import com.sigilance.CardEdit.TransactionPlanner;
+import com.sigilance.CardEdit.TransactionResult;
+import com.sigilance.CardEdit.TransactionRunner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing one card's audit record with AuditWriter, into a stream that throws the bytes away.
+ * Reading a card takes tens of milliseconds at best, so this has to stay far below that for
+ * the export not to slow an audit down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuditBenchmark {
+
+    @Param({"jsonl", "csv"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean raw;
+
+    private AuditWriter mWriter;
+    private AuditRecord mRecord;
+
+    @Setup
+    public void setUp() throws IOException {
+        SimulatedOpenPgpCard card = new SimulatedOpenPgpCard(0xFFFE, 1);
+        TransactionResult result = new TransactionRunner(new OpenPgpCard(card, null), null, null).run(
+                TransactionPlanner.plan(Collections.<PendingOperation>emptyList(), false, TransactionPlanner.FULL_REFRESH),
+                null, null);
+        if (result.mError != null) {
+            throw result.mError;
+        }
+        mRecord = new AuditRecord();
+        mRecord.mReader = "Simulated 0";
+        mRecord.mAid = result.mAid;
+        mRecord.mSnapshot = result.mSnapshot;
+        mRecord.mReads = result.mReads;
+        mRecord.mElapsedNanos = 50000000;
+        mRecord.mFinishedMillis = System.currentTimeMillis();
+
+        mWriter = new AuditWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, format.equals("csv") ? AuditWriter.FORMAT_CSV : AuditWriter.FORMAT_JSONL, raw);
+    }
+
+    @Benchmark
+    public AuditWriter writeRecord() throws IOException {
+        mWriter.write(mRecord);
+        return mWriter;
+    }
+
+}
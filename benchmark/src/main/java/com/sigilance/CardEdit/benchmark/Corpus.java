@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Loads card responses from the corpus under src/main/resources/corpus.
+ *
+ * Each file holds the value returned by GET DATA for one DO, as hex, and is named after the
+ * card and the DO: zeitcontrol-6E.hex is the application related data of a ZeitControl card.
+ */
+final class Corpus {
+
+    private Corpus() {
+    }
+
+    static byte[] load(String card, int dataObject) throws IOException {
+        String name = String.format("/corpus/%s-%X.hex", card, dataObject);
+        InputStream in = Corpus.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("No corpus entry " + name);
+        }
+        StringBuilder hex = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("#")) {
+                    hex.append(line.replaceAll("\\s", ""));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (hex.length() % 2 != 0) {
+            throw new IOException("Odd number of hex digits in " + name);
+        }
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.ByteUtils;
+import com.sigilance.CardEdit.CardSnapshot;
+import com.sigilance.CardEdit.Iso7816TLVView;
+import com.sigilance.CardEdit.Iso7816TagIndex;
+import com.sigilance.CardEdit.OpenPgpAid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning card data into what the UI shows: fingerprints as hex, key timestamps as numbers,
+ * the AID's version and serial number, and whole DOs decoded into a CardSnapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"zeitcontrol", "yubikey-neo", "gnuk"})
+    public String card;
+
+    private byte[] mCardholderData;
+    private byte[] mApplicationData;
+    private byte[] mSecurityTemplate;
+    private byte[] mFingerprints;
+    private byte[] mTimestamp;
+    private byte[] mAid;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCardholderData = Corpus.load(card, 0x65);
+        mApplicationData = Corpus.load(card, 0x6E);
+        mSecurityTemplate = Corpus.load(card, 0x7A);
+
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.decode(0x6E, mApplicationData);
+        mFingerprints = snapshot.mFingerprints;
+        // The first key's creation time, as it appears in CD
+        mTimestamp = new byte[]{
+                (byte) (snapshot.mSigKeyTimestamp >> 24), (byte) (snapshot.mSigKeyTimestamp >> 16),
+                (byte) (snapshot.mSigKeyTimestamp >> 8), (byte) snapshot.mSigKeyTimestamp};
+        // The AID is in 6E as well
+        mAid = new Iso7816TagIndex(Iso7816TLVView.readSingle(mApplicationData)).find(0x4F).getValue();
+    }
+
+    /** How the AID fields used to be shown: through a hex string. */
+    @Benchmark
+    public String aidFieldsFromHexString() {
+        String aidString = ByteUtils.hexString(mAid);
+        int majorVersion = Integer.parseInt(aidString.substring(12, 14));
+        int minorVersion = Integer.parseInt(aidString.substring(14, 16));
+        return String.format("%d.%d", majorVersion, minorVersion) + aidString.substring(20, 28);
+    }
+
+    @Benchmark
+    public OpenPgpAid decodeAid() throws IOException {
+        return OpenPgpAid.decode(mAid);
+    }
+
+    @Benchmark
+    public String aidFieldsFromOpenPgpAid() throws IOException {
+        OpenPgpAid aid = OpenPgpAid.decode(mAid);
+        return aid.getVersion() + aid.getSerialString();
+    }
+
+    @Benchmark
+    public String hexStringFingerprint() {
+        return ByteUtils.hexString(mFingerprints, 0, 20);
+    }
+
+    @Benchmark
+    public String hexStringAllFingerprints() {
+        return ByteUtils.hexString(mFingerprints);
+    }
+
+    @Benchmark
+    public long unsignedFromByteArray() {
+        return ByteUtils.unsignedFromByteArray(mTimestamp);
+    }
+
+    @Benchmark
+    public CardSnapshot decodeCardholderData() throws IOException {
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.decode(0x65, mCardholderData);
+        return snapshot;
+    }
+
+    @Benchmark
+    public CardSnapshot decodeApplicationData() throws IOException {
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.decode(0x6E, mApplicationData);
+        return snapshot;
+    }
+
+    @Benchmark
+    public CardSnapshot decodeSecurityTemplate() throws IOException {
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.decode(0x7A, mSecurityTemplate);
+        return snapshot;
+    }
+
+    @Benchmark
+    public CardSnapshot decodeFullRefresh() throws IOException {
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.decode(0x6E, mApplicationData);
+        snapshot.decode(0x7A, mSecurityTemplate);
+        snapshot.decode(0x65, mCardholderData);
+        return snapshot;
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.ByteUtils;
+import com.sigilance.CardEdit.FingerprintIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the card that holds a key by fingerprint, in FingerprintIndex and in a HashMap keyed
+ * by the hex strings the app displays, over a fleet with three keys per card.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FingerprintBenchmark {
+
+    @Param({"100000"})
+    public int cards;
+
+    private FingerprintIndex mIndex;
+    private Map<String, Long> mStrings;
+    private byte[][] mQueries;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        mIndex = new FingerprintIndex(cards * 3);
+        mStrings = new HashMap<>();
+        mQueries = new byte[1024][];
+        byte[] aid = ByteUtils.fromHexString("D276000124010200FFFE000000000000");
+        byte[] fingerprints = new byte[60];
+        for (int i = 0; i < cards; i++) {
+            for (int key = 0; key < 3; key++) {
+                System.arraycopy(sha1.digest(("key " + i + " " + key).getBytes()), 0, fingerprints, key * 20, 20);
+                mStrings.put(ByteUtils.hexString(fingerprints, key * 20, 20), (long) i);
+            }
+            aid[11] = (byte) (i >> 16);
+            aid[12] = (byte) (i >> 8);
+            aid[13] = (byte) i;
+            mIndex.addCard(aid, fingerprints);
+            if (i % (cards / mQueries.length + 1) == 0 && mNext < mQueries.length) {
+                mQueries[mNext++] = fingerprints.clone();
+            }
+        }
+        for (int i = mNext; i < mQueries.length; i++) {
+            mQueries[i] = mQueries[i % mNext];
+        }
+    }
+
+    @Benchmark
+    public List<FingerprintIndex.Match> index() {
+        byte[] fingerprints = mQueries[mNext++ & (mQueries.length - 1)];
+        return mIndex.find(Arrays.copyOfRange(fingerprints, 20, 40));
+    }
+
+    @Benchmark
+    public Long hexStrings() {
+        byte[] fingerprints = mQueries[mNext++ & (mQueries.length - 1)];
+        return mStrings.get(ByteUtils.hexString(fingerprints, 20, 20));
+    }
+
+}
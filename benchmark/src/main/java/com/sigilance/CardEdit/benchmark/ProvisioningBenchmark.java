@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.CardSessionExecutor;
+import com.sigilance.CardEdit.CardTransport;
+import com.sigilance.CardEdit.ProvisioningEngine;
+import com.sigilance.CardEdit.ProvisioningProfile;
+import com.sigilance.CardEdit.SimulatedOpenPgpCard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cards per hour through ProvisioningEngine, with a pool of simulated readers. Every APDU is
+ * delayed to model the reader link; the time it takes to swap cards is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.HOURS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProvisioningBenchmark {
+
+    private static final int CARDS = 32;
+
+    @Param({"1", "4", "8"})
+    public int readers;
+
+    // Per APDU; a contact reader at T=1 is a few ms, NFC somewhat more
+    @Param({"5"})
+    public long latencyMillis;
+
+    private final AtomicInteger mSerial = new AtomicInteger();
+    private ProvisioningEngine mEngine;
+    private List<ProvisioningProfile> mProfiles;
+
+    @Setup
+    public void setUp() {
+        mEngine = new ProvisioningEngine("123456", "12345678");
+        for (int i = 0; i < readers; i++) {
+            mEngine.addReader("Simulated " + i, new CardSessionExecutor.TransportFactory() {
+                @Override
+                public CardTransport open() throws IOException {
+                    SimulatedOpenPgpCard card = new SimulatedOpenPgpCard(0xFFFE, mSerial.incrementAndGet());
+                    card.setLatency(latencyMillis);
+                    return card;
+                }
+            });
+        }
+
+        mProfiles = new ArrayList<>();
+        for (int i = 0; i < CARDS; i++) {
+            ProvisioningProfile profile = new ProvisioningProfile();
+            profile.mLabel = "E" + (1000 + i);
+            profile.mSurname = "Castillo";
+            profile.mGivenNames = "Employee " + i;
+            profile.mLanguage = "en";
+            profile.mSex = ProvisioningProfile.SEX_NOT_APPLICABLE;
+            profile.mUrl = "https://keys.example.com/e" + (1000 + i) + ".asc";
+            profile.mLoginData = "e" + (1000 + i) + "@example.com";
+            profile.mForceSignaturePin = true;
+            profile.mNewUserPin = String.format("%06d", 100000 + i);
+            profile.mNewAdminPin = String.format("%08d", 10000000 + i);
+            mProfiles.add(profile);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CARDS)
+    public ProvisioningEngine.Report provisionBatch() throws InterruptedException {
+        ProvisioningEngine.Report report = mEngine.run(mProfiles);
+        if (report.getSucceeded() != CARDS) {
+            throw new IllegalStateException(report.toString());
+        }
+        return report;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.benchmark;
+
+import com.sigilance.CardEdit.Iso7816TLV;
+import com.sigilance.CardEdit.Iso7816TLVReader;
+import com.sigilance.CardEdit.Iso7816TLVView;
+import com.sigilance.CardEdit.Iso7816TLVWriter;
+import com.sigilance.CardEdit.Iso7816TagIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the composite DOs read on every tap: the cardholder data (65), the application
+ * related data (6E) and the security support template (7A), from each card in the corpus.
+ *
+ * The Iso7816TLVView and Iso7816TagIndex benchmarks do the same work as the Iso7816TLV ones,
+ * the way the app decodes DOs now, so the two can be compared from release to release.
+ * writeTree encodes the same DO again with Iso7816TLVWriter, and streamEvents walks it with
+ * Iso7816TLVReader without building anything.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlvBenchmark {
+
+    @Param({"zeitcontrol", "yubikey-neo", "gnuk"})
+    public String card;
+
+    @Param({"65", "6E", "7A"})
+    public String dataObject;
+
+    private byte[] mData;
+    private int mDeepestTag;
+    private Iso7816TLV mTree;
+    private Iso7816TLVView mView;
+    private final Iso7816TLVWriter mWriter = new Iso7816TLVWriter();
+
+    @Setup
+    public void setUp() throws IOException {
+        int tag = Integer.parseInt(dataObject, 16);
+        mData = Corpus.load(card, tag);
+        // The last field of each DO, so that findRecursive walks as much of the tree as it can.
+        switch (tag) {
+            case 0x65:
+                mDeepestTag = 0x5F35;
+                break;
+            case 0x6E:
+                mDeepestTag = 0xCD;
+                break;
+            default:
+                mDeepestTag = 0x93;
+                break;
+        }
+        mTree = Iso7816TLV.readSingle(mData, true);
+        mView = Iso7816TLVView.readSingle(mData);
+    }
+
+    @Benchmark
+    public Iso7816TLV readSingleFlat() throws IOException {
+        return Iso7816TLV.readSingle(mData, false);
+    }
+
+    @Benchmark
+    public Iso7816TLV readSingleRecursive() throws IOException {
+        return Iso7816TLV.readSingle(mData, true);
+    }
+
+    @Benchmark
+    public Iso7816TLV[] readListFlat() throws IOException {
+        return Iso7816TLV.readList(mData, false);
+    }
+
+    @Benchmark
+    public Iso7816TLV[] readListRecursive() throws IOException {
+        return Iso7816TLV.readList(mData, true);
+    }
+
+    @Benchmark
+    public Iso7816TLV findRecursive() {
+        return Iso7816TLV.findRecursive(mTree, mDeepestTag);
+    }
+
+    @Benchmark
+    public String prettyPrint() {
+        return mTree.prettyPrint();
+    }
+
+    @Benchmark
+    public Iso7816TLVView viewReadAndFind() throws IOException {
+        return Iso7816TLVView.readSingle(mData).findRecursive(mDeepestTag);
+    }
+
+    @Benchmark
+    public Iso7816TLVView tagIndexFind() throws IOException {
+        return new Iso7816TagIndex(mView).find(mDeepestTag);
+    }
+
+    @Benchmark
+    public int streamEvents() throws IOException {
+        Iso7816TLVReader reader = new Iso7816TLVReader(ByteBuffer.wrap(mData));
+        int events = 0;
+        while (reader.next() != Iso7816TLVReader.END_OF_INPUT) {
+            events++;
+        }
+        return events;
+    }
+
+    @Benchmark
+    public int writeTree() throws IOException {
+        mWriter.reset();
+        write(mView);
+        return mWriter.length();
+    }
+
+    private void write(Iso7816TLVView packet) throws IOException {
+        if (packet.mComposite) {
+            mWriter.begin(packet.mT);
+            for (Iso7816TLVView sub : packet.getSubs()) {
+                write(sub);
+            }
+            mWriter.end();
+        } else {
+            mWriter.write(packet.mT, packet.getBuffer(), packet.getValueOffset(), packet.mL);
+        }
+    }
+
+}
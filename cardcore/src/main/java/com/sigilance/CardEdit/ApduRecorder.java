@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records every APDU exchanged with the card, for finding out where the time of a tap goes.
+ *
+ * For each command (by INS) and each data object (by P1-P2 of GET DATA and PUT DATA) it keeps
+ * a count, the bytes sent and received, and a latency histogram; it also counts status words.
+ * Everything lives in preallocated primitive arrays, so recording doesn't allocate, and a
+ * disabled recorder costs one volatile read per APDU.
+ *
+ * The histograms have one bucket per power of two microseconds, so percentiles are reported
+ * as the upper bound of the bucket they fall in.
+ */
+public class ApduRecorder {
+
+    private static final int BUCKETS = 25;  // up to 2^24 us, about 17 seconds
+    private static final int MAX_KEYS = 64;  // distinct DOs and status words we keep apart
+    private static final int OTHER = MAX_KEYS;  // where the rest are counted
+
+    // Status word recorded when the transport threw instead of returning a response
+    public static final int SW_NO_RESPONSE = -1;
+
+    private volatile boolean mEnabled;
+
+    // Per INS
+    private final Counters mCommands = new Counters(256);
+
+    // Per DO, through a small open-addressing table
+    private final int[] mDataObjectKeys = new int[MAX_KEYS];
+    private int mDataObjectCount;
+    private final Counters mDataObjects = new Counters(MAX_KEYS + 1);
+
+    // Per status word, the same way
+    private final int[] mStatusWordKeys = new int[MAX_KEYS];
+    private int mStatusWordCount;
+    private final long[] mStatusWords = new long[MAX_KEYS + 1];
+
+    public ApduRecorder() {
+        reset();
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /** Forgets everything recorded so far. */
+    public synchronized void reset() {
+        mCommands.clear();
+        mDataObjects.clear();
+        Arrays.fill(mDataObjectKeys, Integer.MIN_VALUE);
+        mDataObjectCount = 0;
+        Arrays.fill(mStatusWordKeys, Integer.MIN_VALUE);
+        mStatusWordCount = 0;
+        Arrays.fill(mStatusWords, 0);
+    }
+
+    /**
+     * Records one exchange. Does nothing while the recorder is disabled.
+     *
+     * @param command  The command APDU that was sent.
+     * @param response The response APDU, or null if the transport failed.
+     * @param nanos    How long the exchange took.
+     */
+    public void record(byte[] command, byte[] response, long nanos) {
+        if (!mEnabled || command.length < 4) {
+            return;
+        }
+        synchronized (this) {
+            int ins = command[1] & 0xFF;
+            int received = response == null ? 0 : response.length;
+            int bucket = bucketOf(nanos);
+            mCommands.add(ins, command.length, received, nanos, bucket);
+
+            if (ins == OpenPgpCommands.INS_GET_DATA || ins == OpenPgpCommands.INS_PUT_DATA) {
+                int dataObject = ((command[2] & 0xFF) << 8) | (command[3] & 0xFF);
+                int slot = slotOf(mDataObjectKeys, dataObject);
+                if (slot != OTHER && mDataObjectKeys[slot] == Integer.MIN_VALUE) {
+                    mDataObjectKeys[slot] = dataObject;
+                    mDataObjectCount++;
+                }
+                mDataObjects.add(slot, command.length, received, nanos, bucket);
+            }
+
+            int sw = response == null || response.length < 2 ? SW_NO_RESPONSE
+                    : ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+            int slot = slotOf(mStatusWordKeys, sw);
+            if (slot != OTHER && mStatusWordKeys[slot] == Integer.MIN_VALUE) {
+                mStatusWordKeys[slot] = sw;
+                mStatusWordCount++;
+            }
+            mStatusWords[slot]++;
+        }
+    }
+
+    /** Returns the total number of APDUs recorded. */
+    public synchronized long getApduCount() {
+        long count = 0;
+        for (int i = 0; i < 256; i++) {
+            count += mCommands.mCount[i];
+        }
+        return count;
+    }
+
+    /** Returns how many times the card answered with the given status word. */
+    public synchronized long getStatusWordCount(int sw) {
+        int slot = slotOf(mStatusWordKeys, sw);
+        return slot != OTHER && mStatusWordKeys[slot] == sw ? mStatusWords[slot] : 0;
+    }
+
+    /** Returns a plain-text table of everything recorded, for logging or showing to the user. */
+    public synchronized String summary() {
+        StringBuilder out = new StringBuilder();
+        long count = 0, sent = 0, received = 0, nanos = 0;
+        for (int i = 0; i < 256; i++) {
+            count += mCommands.mCount[i];
+            sent += mCommands.mSent[i];
+            received += mCommands.mReceived[i];
+            nanos += mCommands.mNanos[i];
+        }
+        out.append(String.format(Locale.US, "%d APDUs, %d bytes sent, %d received, %.1f ms%n",
+                count, sent, received, nanos / 1e6));
+        if (count == 0) {
+            return out.toString();
+        }
+
+        out.append(String.format(Locale.US, "%nBy command:%n"));
+        appendHeader(out);
+        for (int ins = 0; ins < 256; ins++) {
+            if (mCommands.mCount[ins] > 0) {
+                mCommands.append(out, commandName(ins), ins);
+            }
+        }
+
+        if (mDataObjectCount > 0 || mDataObjects.mCount[OTHER] > 0) {
+            out.append(String.format(Locale.US, "%nBy data object:%n"));
+            appendHeader(out);
+            for (int dataObject : sortedKeys(mDataObjectKeys, mDataObjectCount)) {
+                mDataObjects.append(out, String.format(Locale.US, "%04X", dataObject),
+                        slotOf(mDataObjectKeys, dataObject));
+            }
+            if (mDataObjects.mCount[OTHER] > 0) {
+                mDataObjects.append(out, "other", OTHER);
+            }
+        }
+
+        out.append(String.format(Locale.US, "%nStatus words:%n"));
+        for (int sw : sortedKeys(mStatusWordKeys, mStatusWordCount)) {
+            String name = sw == SW_NO_RESPONSE ? "none" : String.format(Locale.US, "%04X", sw);
+            out.append(String.format(Locale.US, "  %-12s %8d%n", name, mStatusWords[slotOf(mStatusWordKeys, sw)]));
+        }
+        if (mStatusWords[OTHER] > 0) {
+            out.append(String.format(Locale.US, "  %-12s %8d%n", "other", mStatusWords[OTHER]));
+        }
+        return out.toString();
+    }
+
+    private static int[] sortedKeys(int[] keys, int count) {
+        int[] sorted = new int[count];
+        int i = 0;
+        for (int key : keys) {
+            if (key != Integer.MIN_VALUE) {
+                sorted[i++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static void appendHeader(StringBuilder out) {
+        out.append(String.format(Locale.US, "  %-12s %8s %8s %8s %8s %8s %8s %8s%n",
+                "", "count", "sent", "recv", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+    }
+
+    private static String commandName(int ins) {
+        switch (ins) {
+            case OpenPgpCommands.INS_SELECT:
+                return "SELECT";
+            case OpenPgpCommands.INS_VERIFY:
+                return "VERIFY";
+            case OpenPgpCommands.INS_CHANGE_REFERENCE_DATA:
+                return "CHANGE PIN";
+            case OpenPgpCommands.INS_GET_RESPONSE:
+                return "GET RESPONSE";
+            case OpenPgpCommands.INS_GET_DATA:
+                return "GET DATA";
+            case OpenPgpCommands.INS_PUT_DATA:
+                return "PUT DATA";
+            default:
+                return String.format(Locale.US, "INS %02X", ins);
+        }
+    }
+
+    // Bucket b holds exchanges that took less than 2^(b+1) microseconds.
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    // Finds the key's slot, or the free slot it would take, or OTHER if the table is full.
+    private static int slotOf(int[] keys, int key) {
+        int start = (key * 0x9E3779B9 >>> 26) & (MAX_KEYS - 1);
+        for (int i = 0; i < MAX_KEYS; i++) {
+            int slot = (start + i) & (MAX_KEYS - 1);
+            if (keys[slot] == key || keys[slot] == Integer.MIN_VALUE) {
+                return slot;
+            }
+        }
+        return OTHER;
+    }
+
+    /** Counts and latency histograms for a fixed number of rows. */
+    private static class Counters {
+        final long[] mCount;
+        final long[] mSent;
+        final long[] mReceived;
+        final long[] mNanos;
+        final long[] mMaxNanos;
+        final long[] mHistogram;
+
+        Counters(int rows) {
+            mCount = new long[rows];
+            mSent = new long[rows];
+            mReceived = new long[rows];
+            mNanos = new long[rows];
+            mMaxNanos = new long[rows];
+            mHistogram = new long[rows * BUCKETS];
+        }
+
+        void clear() {
+            Arrays.fill(mCount, 0);
+            Arrays.fill(mSent, 0);
+            Arrays.fill(mReceived, 0);
+            Arrays.fill(mNanos, 0);
+            Arrays.fill(mMaxNanos, 0);
+            Arrays.fill(mHistogram, 0);
+        }
+
+        void add(int row, int sent, int received, long nanos, int bucket) {
+            mCount[row]++;
+            mSent[row] += sent;
+            mReceived[row] += received;
+            mNanos[row] += nanos;
+            if (nanos > mMaxNanos[row]) {
+                mMaxNanos[row] = nanos;
+            }
+            mHistogram[row * BUCKETS + bucket]++;
+        }
+
+        // Upper bound of the bucket holding the given fraction of the row's exchanges, in ms
+        double percentile(int row, double fraction) {
+            long rank = (long) Math.ceil(mCount[row] * fraction);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mHistogram[row * BUCKETS + b];
+                if (seen >= rank) {
+                    return Math.min((2L << b) / 1000.0, mMaxNanos[row] / 1e6);
+                }
+            }
+            return mMaxNanos[row] / 1e6;
+        }
+
+        void append(StringBuilder out, String name, int row) {
+            out.append(String.format(Locale.US, "  %-12s %8d %8d %8d %8.1f %8.1f %8.1f %8.1f%n",
+                    name, mCount[row], mSent[row], mReceived[row],
+                    percentile(row, 0.5), percentile(row, 0.9), percentile(row, 0.99),
+                    mMaxNanos[row] / 1e6));
+        }
+    }
+
+}
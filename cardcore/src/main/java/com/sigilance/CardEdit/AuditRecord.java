@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * What an audit read from one card.
+ */
+public class AuditRecord {
+
+    /** The reader the card was in. */
+    public String mReader;
+
+    /** The card's AID, or null if it couldn't be read. */
+    public byte[] mAid;
+
+    /**
+     * The card as decoded from what was read. If the read failed part way through, only the
+     * fields that were read are set.
+     */
+    public CardSnapshot mSnapshot;
+
+    /** The data objects as they came off the card, by tag, not counting the AID. */
+    public Map<Integer, byte[]> mReads;
+
+    /** The step the read failed at, or null. */
+    public TransactionPlan.Step mFailedStep;
+
+    /** What went wrong, or null if the whole card was read. */
+    public IOException mError;
+
+    /** From connecting to the card to closing it again. */
+    public long mElapsedNanos;
+
+    /** When the card was finished, in milliseconds since the epoch. */
+    public long mFinishedMillis;
+
+    public boolean isSuccess() {
+        return mError == null;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        if (mAid != null) {
+            // The serial number, as printed on the card
+            result.append(mAid.length >= 14 ? ByteUtils.hexString(mAid, 10, 4) : ByteUtils.hexString(mAid));
+        } else {
+            result.append("card");
+        }
+        result.append(" in ").append(mReader);
+        if (mError == null) {
+            result.append(String.format(": OK in %d ms", mElapsedNanos / 1000000));
+        } else if (mFailedStep != null) {
+            result.append(": failed at ").append(mFailedStep).append(": ").append(mError.getMessage());
+        } else {
+            result.append(": ").append(mError.getMessage());
+        }
+        return result.toString();
+    }
+
+}
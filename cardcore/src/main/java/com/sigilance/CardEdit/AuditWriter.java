@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * Streams audit records to a file as JSON Lines or CSV, one line per card.
+ *
+ * Each record is written and flushed as soon as its card is finished, so nothing accumulates in
+ * memory and a run that is cut short still leaves every card read so far on disk. Records are
+ * built in one reused buffer; writing is synchronized, so all the readers of an audit can share
+ * one writer.
+ *
+ * A field that couldn't be read is null in JSON and empty in CSV. Key creation times are UNIX
+ * epoch seconds, 0 for a key slot that is empty. The raw data objects, if asked for, are hex.
+ */
+public class AuditWriter {
+
+    public static final int FORMAT_JSONL = 0;
+    public static final int FORMAT_CSV = 1;
+
+    // The data objects written raw, in column order. The AID comes first.
+    static final int[] RAW_DATA_OBJECTS = {DO_AID, DO_APPLICATION_DATA, DO_SECURITY_TEMPLATE,
+            DO_CARDHOLDER_DATA, DO_URL, DO_LOGIN_DATA, DO_PW_STATUS_BYTES};
+
+    private static final String[] COLUMNS = {"time", "reader", "aid", "manufacturer", "manufacturer_name", "version", "serial",
+            "name", "language", "sex", "url", "login_data",
+            "sig_fingerprint", "sig_created", "enc_fingerprint", "enc_created", "auth_fingerprint", "auth_created",
+            "pw_status", "signature_count", "elapsed_ms", "error"};
+
+    private final Writer mOut;
+    private final int mFormat;
+    private final boolean mRawDataObjects;
+    private final StringBuilder mLine = new StringBuilder(1024);
+    private final ManufacturerRegistry mManufacturers = ManufacturerRegistry.getDefault();
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private int mField;
+    private long mCount = 0;
+
+    /**
+     * @param out            Where to write. It is closed by close().
+     * @param format         FORMAT_JSONL or FORMAT_CSV.
+     * @param rawDataObjects Whether to add the data objects as they came off the card.
+     */
+    public AuditWriter(OutputStream out, int format, boolean rawDataObjects) throws IOException {
+        if (format != FORMAT_JSONL && format != FORMAT_CSV) {
+            throw new IllegalArgumentException("Unknown audit format " + format);
+        }
+        mOut = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 16384);
+        mFormat = format;
+        mRawDataObjects = rawDataObjects;
+        mTimeFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        if (mFormat == FORMAT_CSV) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    mLine.append(',');
+                }
+                mLine.append(COLUMNS[i]);
+            }
+            if (mRawDataObjects) {
+                for (int dataObject : RAW_DATA_OBJECTS) {
+                    mLine.append(",raw_").append(String.format("%04X", dataObject));
+                }
+            }
+            mLine.append('\n');
+            mOut.append(mLine);
+            mOut.flush();
+        }
+    }
+
+    /** Writes one card's record and flushes it. */
+    public synchronized void write(AuditRecord record) throws IOException {
+        mLine.setLength(0);
+        mField = 0;
+        if (mFormat == FORMAT_JSONL) {
+            mLine.append('{');
+        }
+
+        CardSnapshot snapshot = record.mSnapshot != null ? record.mSnapshot : new CardSnapshot();
+        byte[] aid = record.mAid;
+        OpenPgpAid applicationId = null;
+        if (aid != null) {
+            try {
+                applicationId = OpenPgpAid.decode(aid);
+            } catch (IOException e) {
+                // Not an OpenPGP card; the raw AID is still written.
+            }
+        }
+        byte[] fingerprints = snapshot.mFingerprints;
+        boolean keysRead = fingerprints != null;
+        // Left empty, not 0, when the security support template (7A) wasn't read.
+        boolean securityRead = snapshot.mSignatureCount != null;
+
+        string("time", mTimeFormat.format(new Date(record.mFinishedMillis)));
+        string("reader", record.mReader);
+        string("aid", aid != null ? ByteUtils.hexString(aid) : null);
+        if (applicationId != null) {
+            string("manufacturer", String.format("%04X", applicationId.mManufacturer));
+            string("manufacturer_name", mManufacturers.getName(applicationId));
+            string("version", applicationId.getVersion());
+            string("serial", applicationId.getSerialString());
+        } else {
+            string("manufacturer", null);
+            string("manufacturer_name", null);
+            string("version", null);
+            string("serial", null);
+        }
+        string("name", snapshot.mCardholderName);
+        string("language", snapshot.mCardholderLanguage);
+        string("sex", snapshot.mCardholderSex);
+        string("url", snapshot.mUrl);
+        string("login_data", snapshot.mLoginData != null ? new String(snapshot.mLoginData) : null);
+        string("sig_fingerprint", keysRead ? ByteUtils.hexString(fingerprints, 0, 20) : null);
+        number("sig_created", keysRead ? Long.valueOf(snapshot.mSigKeyTimestamp) : null);
+        string("enc_fingerprint", keysRead ? ByteUtils.hexString(fingerprints, 20, 20) : null);
+        number("enc_created", keysRead ? Long.valueOf(snapshot.mEncKeyTimestamp) : null);
+        string("auth_fingerprint", keysRead ? ByteUtils.hexString(fingerprints, 40, 20) : null);
+        number("auth_created", keysRead ? Long.valueOf(snapshot.mAuthKeyTimestamp) : null);
+        string("pw_status", snapshot.mPwStatusBytes != null ? ByteUtils.hexString(snapshot.mPwStatusBytes) : null);
+        number("signature_count", securityRead ? Long.valueOf(snapshot.mSignatureCount) : null);
+        number("elapsed_ms", record.mElapsedNanos / 1000000);
+        String error = null;
+        if (record.mError != null) {
+            // Some exceptions, like a bare EOFException from the reader, carry no message.
+            String message = record.mError.getMessage() != null ? record.mError.getMessage() : record.mError.toString();
+            error = record.mFailedStep != null ? record.mFailedStep + ": " + message : message;
+        }
+        string("error", error);
+
+        if (mRawDataObjects) {
+            if (mFormat == FORMAT_JSONL) {
+                mLine.append(",\"raw\":{");
+                mField = 0;
+            }
+            for (int dataObject : RAW_DATA_OBJECTS) {
+                byte[] data = dataObject == DO_AID ? aid : record.mReads != null ? record.mReads.get(dataObject) : null;
+                if (mFormat == FORMAT_JSONL && data == null) {
+                    continue;
+                }
+                string(String.format("%04X", dataObject), data != null ? ByteUtils.hexString(data) : null);
+            }
+            if (mFormat == FORMAT_JSONL) {
+                mLine.append('}');
+            }
+        }
+
+        if (mFormat == FORMAT_JSONL) {
+            mLine.append('}');
+        }
+        mLine.append('\n');
+        mOut.append(mLine);
+        mOut.flush();
+        mCount++;
+    }
+
+    /** Returns how many records have been written. */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    private void string(String name, String value) {
+        separator(name);
+        if (value == null) {
+            if (mFormat == FORMAT_JSONL) {
+                mLine.append("null");
+            }
+        } else if (mFormat == FORMAT_JSONL) {
+            appendJsonString(value);
+        } else {
+            appendCsvField(value);
+        }
+    }
+
+    private void number(String name, Number value) {
+        separator(name);
+        if (value != null) {
+            mLine.append(value.longValue());
+        } else if (mFormat == FORMAT_JSONL) {
+            mLine.append("null");
+        }
+    }
+
+    private void separator(String name) {
+        if (mField++ > 0) {
+            mLine.append(',');
+        }
+        if (mFormat == FORMAT_JSONL) {
+            mLine.append('"').append(name).append("\":");
+        }
+    }
+
+    private void appendJsonString(String value) {
+        mLine.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    mLine.append("\\\"");
+                    break;
+                case '\\':
+                    mLine.append("\\\\");
+                    break;
+                case '\n':
+                    mLine.append("\\n");
+                    break;
+                case '\r':
+                    mLine.append("\\r");
+                    break;
+                case '\t':
+                    mLine.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        mLine.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        mLine.append(c);
+                    }
+            }
+        }
+        mLine.append('"');
+    }
+
+    private void appendCsvField(String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            mLine.append(value);
+            return;
+        }
+        mLine.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                mLine.append('"');
+            }
+            mLine.append(c);
+        }
+        mLine.append('"');
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/**
+ * Conversions between card data and the forms we display or compute with.
+ */
+public final class ByteUtils {
+
+    final protected static char[] HEX_CHARACTERS = "0123456789ABCDEF".toCharArray();
+
+    private ByteUtils() {
+    }
+
+    public static String hexString(byte[] bytes) {
+        return hexString(bytes, 0, bytes.length);
+    }
+
+    public static String hexString(byte[] bytes, int offset, int length) {
+        char[] retVal = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int v = bytes[offset + i] & 0xFF;
+            retVal[i * 2] = HEX_CHARACTERS[v >>> 4];
+            retVal[i * 2 + 1] = HEX_CHARACTERS[v & 0x0F];
+        }
+        return new String(retVal);
+    }
+
+    /**
+     * Parses hex, as printed by hexString() or by gpg, which puts spaces between groups.
+     *
+     * @throws IllegalArgumentException if the text isn't an even number of hex digits.
+     */
+    public static byte[] fromHexString(String hex) {
+        String digits = hex.replace(" ", "").replace(":", "");
+        if (digits.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+        }
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(digits.charAt(i * 2), 16);
+            int low = Character.digit(digits.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not hex: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /** Reads a big-endian unsigned 32-bit value, like the key generation timestamps in CD. */
+    public static long unsignedFromByteArray(byte[] b) {
+        long l = 0;
+        l |= b[0] & 0xFF;
+        l <<= 8;
+        l |= b[1] & 0xFF;
+        l <<= 8;
+        l |= b[2] & 0xFF;
+        l <<= 8;
+        l |= b[3] & 0xFF;
+        return l;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/**
+ * The card capabilities that matter for APDU framing, as announced in the historical bytes
+ * (DO 0x5F52) of an OpenPGP card.
+ *
+ * The historical bytes are a category indicator followed by COMPACT-TLV objects (ISO 7816-4,
+ * 8.1.1). The card capabilities object has tag 7; its third byte announces command chaining
+ * (bit 8) and extended Lc/Le fields (bit 7).
+ */
+public class CardCapabilities {
+
+    /** Capabilities to assume before the historical bytes have been read: short APDUs only. */
+    public static final CardCapabilities SHORT_APDUS_ONLY = new CardCapabilities(false, false);
+
+    public final boolean mCommandChaining;
+    public final boolean mExtendedLength;
+
+    public CardCapabilities(boolean commandChaining, boolean extendedLength) {
+        mCommandChaining = commandChaining;
+        mExtendedLength = extendedLength;
+    }
+
+    /** Parses the historical bytes from DO 0x5F52. Unknown formats yield SHORT_APDUS_ONLY. */
+    public static CardCapabilities fromHistoricalBytes(byte[] historicalBytes) {
+        if (historicalBytes == null || historicalBytes.length < 1 || historicalBytes[0] != 0x00) {
+            return SHORT_APDUS_ONLY;
+        }
+
+        // Category 0x00: COMPACT-TLV objects, then a three-byte status indicator.
+        int end = historicalBytes.length - 3;
+        int pos = 1;
+        while (pos < end) {
+            int tag = (historicalBytes[pos] & 0xf0) >> 4;
+            int length = historicalBytes[pos] & 0x0f;
+            pos++;
+            if (pos + length > end) {
+                break;
+            }
+            if (tag == 0x7 && length >= 3) {
+                int flags = historicalBytes[pos + 2] & 0xff;
+                return new CardCapabilities((flags & 0x80) != 0, (flags & 0x40) != 0);
+            }
+            pos += length;
+        }
+        return SHORT_APDUS_ONLY;
+    }
+
+}
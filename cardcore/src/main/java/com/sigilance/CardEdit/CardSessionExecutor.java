@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs card sessions on a single dedicated thread and publishes their results asynchronously.
+ *
+ * Card I/O blocks for as long as the card takes to answer, so it must never run on the UI
+ * thread. Each submitted task opens its transport, runs its job and closes the transport again
+ * on the session thread. The result, or the error, is then handed to the callback on the
+ * callback executor; on Android, that posts back to the main thread.
+ *
+ * A task can be cancelled, for instance when the activity is paused, and it expires at its
+ * deadline. Either way the transport is closed, which aborts a transceive that is blocked on the
+ * card, and every further transceive fails with an IOException that says why.
+ *
+ * A task may also leave its transport open when its job is done, so that later tasks can reuse
+ * the connection while the card stays in the field. It is still closed if the task fails, is
+ * cancelled or expires.
+ */
+public class CardSessionExecutor {
+
+    /** Opens the transport for a task. Called on the session thread. */
+    public interface TransportFactory {
+        CardTransport open() throws IOException;
+    }
+
+    /** The card I/O of a task. Called on the session thread. */
+    public interface CardJob<T> {
+        T run(CardTransport transport) throws IOException;
+    }
+
+    /** Receives the outcome of a task. Called on the callback executor. */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(IOException e);
+    }
+
+    /** Handle for a submitted task. */
+    public class Task {
+        private volatile boolean mCancelled = false;
+        private volatile boolean mExpired = false;
+        private volatile CardTransport mTransport;
+        private Future<?> mFuture;
+
+        /** Cancels the task. If it is talking to the card, its transport is closed. */
+        public void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+            closeQuietly(mTransport);
+        }
+
+        /** Returns the transport the task opened, or null if it hasn't been opened yet. */
+        public CardTransport getTransport() {
+            return mTransport;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /** Returns true if the task ran into its deadline. */
+        public boolean isExpired() {
+            return mExpired;
+        }
+
+        private void expire() {
+            mExpired = true;
+            closeQuietly(mTransport);
+        }
+
+        private void attach(CardTransport transport) {
+            mTransport = transport;
+            // cancel() may have come in while the transport was being opened.
+            if (mCancelled || mExpired) {
+                closeQuietly(transport);
+            }
+        }
+
+        private void checkActive() throws IOException {
+            if (mCancelled) {
+                throw new IOException("Card operation cancelled!");
+            }
+            if (mExpired) {
+                throw new IOException("Card operation timed out!");
+            }
+        }
+    }
+
+    /** Passes APDUs through while the task is active, and explains failures caused by cancel() or the deadline. */
+    private static class GuardedTransport implements CardTransport {
+        private final Task mTask;
+        private final CardTransport mTransport;
+
+        GuardedTransport(Task task, CardTransport transport) {
+            mTask = task;
+            mTransport = transport;
+        }
+
+        @Override
+        public byte[] transceive(byte[] apdu) throws IOException {
+            mTask.checkActive();
+            try {
+                return mTransport.transceive(apdu);
+            } catch (IOException e) {
+                mTask.checkActive();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isExtendedLengthSupported() {
+            return mTransport.isExtendedLengthSupported();
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return mTransport.getMaxTransceiveLength();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTransport.close();
+        }
+    }
+
+    private final ExecutorService mSessionThread;
+    private final ScheduledExecutorService mWatchdog;
+    private final Executor mCallbackExecutor;
+
+    /**
+     * @param callbackExecutor Where callbacks are run, typically the UI thread.
+     */
+    public CardSessionExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+        mSessionThread = Executors.newSingleThreadExecutor(namedThreadFactory("card-session"));
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(namedThreadFactory("card-session-watchdog"));
+    }
+
+    private static ThreadFactory namedThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Queues a task on the session thread. Tasks run one at a time, in the order submitted.
+     *
+     * @param factory        Opens the transport; it is closed again when the job is done.
+     * @param job            The card I/O to perform.
+     * @param deadlineMillis How long the task may take from the moment it starts, or 0 for no deadline.
+     * @param callback       Receives the job's result or error.
+     */
+    public <T> Task submit(TransportFactory factory, CardJob<T> job, long deadlineMillis, Callback<T> callback) {
+        return submit(factory, job, deadlineMillis, false, callback);
+    }
+
+    /**
+     * Queues a task on the session thread. Tasks run one at a time, in the order submitted.
+     *
+     * @param factory        Opens the transport.
+     * @param job            The card I/O to perform.
+     * @param deadlineMillis How long the task may take from the moment it starts, or 0 for no deadline.
+     * @param keepOpen       Whether to leave the transport open when the job succeeds, for a later
+     *                       task to reuse. The caller then has to close it.
+     * @param callback       Receives the job's result or error.
+     */
+    public <T> Task submit(final TransportFactory factory, final CardJob<T> job, final long deadlineMillis,
+                           final boolean keepOpen, final Callback<T> callback) {
+        final Task task = new Task();
+        task.mFuture = mSessionThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (task.mCancelled) {
+                    deliverError(callback, new IOException("Card operation cancelled!"));
+                    return;
+                }
+
+                ScheduledFuture<?> watchdog = null;
+                if (deadlineMillis > 0) {
+                    watchdog = mWatchdog.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            task.expire();
+                        }
+                    }, deadlineMillis, TimeUnit.MILLISECONDS);
+                }
+
+                CardTransport transport = null;
+                boolean close = true;
+                try {
+                    transport = factory.open();
+                    task.attach(transport);
+                    T result = job.run(new GuardedTransport(task, transport));
+                    close = !keepOpen;
+                    deliverResult(callback, result);
+                } catch (IOException e) {
+                    try {
+                        task.checkActive();
+                    } catch (IOException reason) {
+                        e = reason;
+                    }
+                    deliverError(callback, e);
+                } catch (RuntimeException e) {
+                    deliverError(callback, new IOException("Card operation failed: " + e, e));
+                } finally {
+                    if (watchdog != null) {
+                        watchdog.cancel(false);
+                    }
+                    if (close) {
+                        closeQuietly(transport);
+                    }
+                }
+            }
+        });
+        return task;
+    }
+
+    /** Stops the session thread. Tasks that have not started yet are dropped. */
+    public void shutdown() {
+        mSessionThread.shutdownNow();
+        mWatchdog.shutdownNow();
+    }
+
+    private <T> void deliverResult(final Callback<T> callback, final T result) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    private void deliverError(final Callback<?> callback, final IOException e) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(e);
+            }
+        });
+    }
+
+    private static void closeQuietly(CardTransport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // Closing is best effort; the card may already be gone.
+        }
+    }
+
+}
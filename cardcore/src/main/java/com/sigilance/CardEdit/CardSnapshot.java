@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * The decoded contents of an OpenPGP card's data objects, as last read from the card.
+ *
+ * A snapshot is filled in one data object at a time with decode(), so a partial refresh only
+ * replaces the fields it read. Snapshots are not thread-safe; hand a copy() to other threads.
+ */
+public class CardSnapshot {
+
+    // Bumped whenever the layout written by write() or the decoding of a field changes; older
+    // files are discarded.
+    private static final int SERIAL_VERSION = 2;
+
+    // NOTE: The formats for on-card data vary depending on the DO.
+    // These are defined to be binary
+    public byte[] mAid;
+    public byte[] mLoginData;
+    public byte[] mPwStatusBytes;
+    public byte[] mHistoricalBytes;
+
+    // These are defined to be ISO 8859-1
+    public String mCardholderName;
+
+    // These are defined to be ASCII
+    public String mUrl;
+    public String mCardholderLanguage;
+    public String mCardholderSex;
+
+    // The signature, encryption and authentication key fingerprints, 20 bytes each, as in C5
+    public byte[] mFingerprints;
+
+    // These are UNIX epoch timestamps. Unsigned ints, which we need to represent as Java longs
+    public long mSigKeyTimestamp;
+    public long mEncKeyTimestamp;
+    public long mAuthKeyTimestamp;
+
+    // And this is a three-byte array that we'll represent as an integer.
+    public Integer mSignatureCount;
+
+    // Only read when asked for, and null until then. They last for the session with the card and
+    // are never written to the snapshot cache. 0103 needs PW1 (mode 82) and 0104 the Admin PIN.
+    public byte[] mPrivateDo1;
+    public byte[] mPrivateDo2;
+    public byte[] mPrivateDo3;
+    public byte[] mPrivateDo4;
+    public byte[] mCardholderCertificate;
+
+    // mAid, decoded by getApplicationId()
+    private OpenPgpAid mApplicationId;
+
+    /**
+     * Decodes a data object read from the card into this snapshot's fields.
+     *
+     * @param dataObject The tag the data was read from.
+     * @param data       The value returned by GET DATA.
+     */
+    public void decode(int dataObject, byte[] data) throws IOException {
+        switch (dataObject) {
+            case DO_AID:
+                mAid = data;
+                break;
+            case DO_CARDHOLDER_DATA:
+                Iso7816TagIndex chIndex = new Iso7816TagIndex(Iso7816TLVView.readSingle(data));
+                Iso7816TLVView[] chFields = chIndex.find(TAG_NAME, TAG_SEX, TAG_LANGUAGE);
+                if (chFields[0] == null || chFields[1] == null || chFields[2] == null) {
+                    throw new IOException("Cardholder data is incomplete!");
+                }
+                mCardholderName = chFields[0].getString(CHARSET_NAME);
+                mCardholderSex = chFields[1].getString(CHARSET_ASCII);
+                mCardholderLanguage = chFields[2].getString(CHARSET_ASCII);
+                break;
+            case DO_URL:
+                mUrl = new String(data, CHARSET_URL);
+                break;
+            case DO_LOGIN_DATA:
+                mLoginData = data;
+                break;
+            case DO_APPLICATION_DATA:
+                Iso7816TagIndex appIndex = new Iso7816TagIndex(Iso7816TLVView.readSingle(data));
+                Iso7816TLVView[] appFields = appIndex.find(TAG_FINGERPRINTS, TAG_TIMESTAMPS, DO_HISTORICAL_BYTES);
+                Iso7816TLVView fingerprints = appFields[0];
+                Iso7816TLVView timestamps = appFields[1];
+                if (fingerprints == null || fingerprints.mL < 60 || timestamps == null || timestamps.mL < 12) {
+                    throw new IOException("Application related data is incomplete!");
+                }
+                mFingerprints = Arrays.copyOfRange(data, fingerprints.getValueOffset(), fingerprints.getValueOffset() + 60);
+                mSigKeyTimestamp = timestamps.getUnsigned(0, 4);
+                mEncKeyTimestamp = timestamps.getUnsigned(4, 4);
+                mAuthKeyTimestamp = timestamps.getUnsigned(8, 4);
+                if (appFields[2] != null) {
+                    mHistoricalBytes = appFields[2].getValue();
+                }
+                break;
+            case DO_PW_STATUS_BYTES:
+                mPwStatusBytes = data;
+                break;
+            case DO_HISTORICAL_BYTES:
+                mHistoricalBytes = data;
+                break;
+            case DO_SECURITY_TEMPLATE:
+                Iso7816TagIndex secIndex = new Iso7816TagIndex(Iso7816TLVView.readSingle(data));
+                Iso7816TLVView sigCount = secIndex.find(TAG_SIG_COUNT);
+                if (sigCount == null || sigCount.mL < 3) {
+                    throw new IOException("Security support template is incomplete!");
+                }
+                mSignatureCount = (int) sigCount.getUnsigned(0, 3);
+                break;
+            case DO_PRIVATE_1:
+                mPrivateDo1 = data;
+                break;
+            case DO_PRIVATE_2:
+                mPrivateDo2 = data;
+                break;
+            case DO_PRIVATE_3:
+                mPrivateDo3 = data;
+                break;
+            case DO_PRIVATE_4:
+                mPrivateDo4 = data;
+                break;
+            case DO_CARDHOLDER_CERTIFICATE:
+                mCardholderCertificate = data;
+                break;
+        }
+    }
+
+    /** Returns true for the data objects that are only read when asked for, never as part of a tap. */
+    public static boolean isOnDemand(int dataObject) {
+        switch (dataObject) {
+            case DO_PRIVATE_1:
+            case DO_PRIVATE_2:
+            case DO_PRIVATE_3:
+            case DO_PRIVATE_4:
+            case DO_CARDHOLDER_CERTIFICATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns an on-demand data object as it was read, or null if it hasn't been read yet. An
+     * empty data object is returned as an empty array.
+     */
+    public byte[] getOnDemand(int dataObject) {
+        switch (dataObject) {
+            case DO_PRIVATE_1:
+                return mPrivateDo1;
+            case DO_PRIVATE_2:
+                return mPrivateDo2;
+            case DO_PRIVATE_3:
+                return mPrivateDo3;
+            case DO_PRIVATE_4:
+                return mPrivateDo4;
+            case DO_CARDHOLDER_CERTIFICATE:
+                return mCardholderCertificate;
+            default:
+                throw new IllegalArgumentException(String.format("%04X is not read on demand", dataObject));
+        }
+    }
+
+    /** Returns the given on-demand data objects that haven't been read yet, in the same order. */
+    public int[] missing(int[] dataObjects) {
+        int[] missing = new int[dataObjects.length];
+        int count = 0;
+        for (int dataObject : dataObjects) {
+            if (getOnDemand(dataObject) == null) {
+                missing[count++] = dataObject;
+            }
+        }
+        return Arrays.copyOf(missing, count);
+    }
+
+    /** Forgets the on-demand data objects, so they are read from the card again when next asked for. */
+    public void clearOnDemand() {
+        mPrivateDo1 = null;
+        mPrivateDo2 = null;
+        mPrivateDo3 = null;
+        mPrivateDo4 = null;
+        mCardholderCertificate = null;
+    }
+
+    /**
+     * Returns the AID decoded into its fields. It is only decoded again when mAid is replaced.
+     *
+     * @throws IOException if the AID hasn't been read or isn't an OpenPGP card AID.
+     */
+    public OpenPgpAid getApplicationId() throws IOException {
+        if (mApplicationId == null || !mApplicationId.matches(mAid)) {
+            mApplicationId = OpenPgpAid.decode(mAid);
+        }
+        return mApplicationId;
+    }
+
+    /** Returns true once every field shown for a card has been decoded. */
+    public boolean isComplete() {
+        return mAid != null && mCardholderName != null && mCardholderSex != null
+                && mCardholderLanguage != null && mUrl != null && mLoginData != null
+                && mPwStatusBytes != null && mFingerprints != null && mSignatureCount != null;
+    }
+
+    /** Returns a copy that can be handed to another thread. Decoded arrays are never modified. */
+    public CardSnapshot copy() {
+        CardSnapshot copy = new CardSnapshot();
+        copy.mAid = mAid;
+        copy.mLoginData = mLoginData;
+        copy.mPwStatusBytes = mPwStatusBytes;
+        copy.mHistoricalBytes = mHistoricalBytes;
+        copy.mCardholderName = mCardholderName;
+        copy.mUrl = mUrl;
+        copy.mCardholderLanguage = mCardholderLanguage;
+        copy.mCardholderSex = mCardholderSex;
+        copy.mFingerprints = mFingerprints;
+        copy.mSigKeyTimestamp = mSigKeyTimestamp;
+        copy.mEncKeyTimestamp = mEncKeyTimestamp;
+        copy.mAuthKeyTimestamp = mAuthKeyTimestamp;
+        copy.mSignatureCount = mSignatureCount;
+        copy.mPrivateDo1 = mPrivateDo1;
+        copy.mPrivateDo2 = mPrivateDo2;
+        copy.mPrivateDo3 = mPrivateDo3;
+        copy.mPrivateDo4 = mPrivateDo4;
+        copy.mCardholderCertificate = mCardholderCertificate;
+        copy.mApplicationId = mApplicationId;
+        return copy;
+    }
+
+    /** Writes a complete snapshot in the format read by read(). The on-demand data objects are left out. */
+    public void write(DataOutputStream out) throws IOException {
+        if (!isComplete()) {
+            throw new IOException("Snapshot is incomplete!");
+        }
+        out.writeInt(SERIAL_VERSION);
+        writeBytes(out, mAid);
+        writeBytes(out, mLoginData);
+        writeBytes(out, mPwStatusBytes);
+        writeBytes(out, mHistoricalBytes);
+        out.writeUTF(mCardholderName);
+        out.writeUTF(mUrl);
+        out.writeUTF(mCardholderLanguage);
+        out.writeUTF(mCardholderSex);
+        writeBytes(out, mFingerprints);
+        out.writeLong(mSigKeyTimestamp);
+        out.writeLong(mEncKeyTimestamp);
+        out.writeLong(mAuthKeyTimestamp);
+        out.writeInt(mSignatureCount);
+    }
+
+    /** Reads a snapshot written by write(). */
+    public static CardSnapshot read(DataInputStream in) throws IOException {
+        if (in.readInt() != SERIAL_VERSION) {
+            throw new IOException("Unsupported snapshot version!");
+        }
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.mAid = readBytes(in);
+        snapshot.mLoginData = readBytes(in);
+        snapshot.mPwStatusBytes = readBytes(in);
+        snapshot.mHistoricalBytes = readBytes(in);
+        snapshot.mCardholderName = in.readUTF();
+        snapshot.mUrl = in.readUTF();
+        snapshot.mCardholderLanguage = in.readUTF();
+        snapshot.mCardholderSex = in.readUTF();
+        snapshot.mFingerprints = readBytes(in);
+        snapshot.mSigKeyTimestamp = in.readLong();
+        snapshot.mEncKeyTimestamp = in.readLong();
+        snapshot.mAuthKeyTimestamp = in.readLong();
+        snapshot.mSignatureCount = in.readInt();
+        if (!snapshot.isComplete()) {
+            throw new IOException("Snapshot is incomplete!");
+        }
+        return snapshot;
+    }
+
+    // Byte arrays are written with their length; -1 stands for null.
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > 65535) {
+            throw new IOException("Invalid length in snapshot!");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A small on-disk cache of card snapshots, one file per card, named after the card's AID.
+ *
+ * The cache only lets a known card render before the live read finishes; the live read always
+ * confirms or replaces what it returns. Unreadable files are treated as misses and deleted.
+ * Methods may be called from any thread, but not concurrently for the same card.
+ */
+public class CardSnapshotCache {
+
+    private static final String SUFFIX = ".snapshot";
+
+    private final File mDirectory;
+    private final int mMaxEntries;
+
+    /**
+     * @param directory  Where to keep the snapshot files. Created on the first store().
+     * @param maxEntries How many cards to remember; the least recently stored are evicted.
+     */
+    public CardSnapshotCache(File directory, int maxEntries) {
+        mDirectory = directory;
+        mMaxEntries = maxEntries;
+    }
+
+    /** Returns the cached snapshot of the card with the given AID, or null if there is none. */
+    public CardSnapshot load(byte[] aid) {
+        File file = fileFor(aid);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CardSnapshot snapshot = CardSnapshot.read(in);
+            if (!Arrays.equals(snapshot.mAid, aid)) {
+                throw new IOException("Snapshot is for a different card!");
+            }
+            return snapshot;
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /** Stores a complete snapshot, replacing any earlier one for the same card. */
+    public void store(CardSnapshot snapshot) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create snapshot cache directory!");
+        }
+        File file = fileFor(snapshot.mAid);
+        // Write beside the old file and rename over it, so a reader never sees half a snapshot.
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            snapshot.write(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace cached snapshot!");
+            }
+        } finally {
+            closeQuietly(out);
+            temp.delete();
+        }
+        evict();
+    }
+
+    /** Forgets the card with the given AID. */
+    public void remove(byte[] aid) {
+        fileFor(aid).delete();
+    }
+
+    private File fileFor(byte[] aid) {
+        return new File(mDirectory, ByteUtils.hexString(aid) + SUFFIX);
+    }
+
+    private void evict() {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= mMaxEntries) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        int kept = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            if (++kept > mMaxEntries) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing useful to do; the data has either been read or was never complete.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * The writes that bring a card to the state a ProvisioningProfile describes, given what was last
+ * read from it. A data object that already holds the wanted value is left out, so re-applying a
+ * profile to a card that has it costs no writes, and no EEPROM write cycles.
+ *
+ * PINs can't be read back, so PIN changes are never left out.
+ */
+public class CardStateDiff {
+
+    /** The operations to queue: PIN changes, then a VERIFY of the Admin PIN and the PUT DATAs, if any. */
+    public final List<PendingOperation> mOperations = new ArrayList<>();
+
+    /** The data objects that will be written. */
+    public final List<Integer> mWrites = new ArrayList<>();
+
+    /** The data objects the profile sets that already hold the wanted value. */
+    public final List<Integer> mUnchanged = new ArrayList<>();
+
+    private CardStateDiff() {
+    }
+
+    /**
+     * Compares a profile with a card.
+     *
+     * @param desired  The profile to apply.
+     * @param current  The card as last read, or null to write everything. A field that wasn't
+     *                 read is written.
+     * @param userPin  The card's current user PIN, only needed to change it.
+     * @param adminPin The card's current Admin PIN.
+     * @throws IOException if a field of the profile cannot be stored on the card.
+     */
+    public static CardStateDiff compute(ProvisioningProfile desired, CardSnapshot current, String userPin, String adminPin)
+            throws IOException {
+        CardStateDiff diff = new CardStateDiff();
+        if (desired.mNewUserPin != null) {
+            diff.mOperations.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW1, userPin, desired.mNewUserPin));
+        }
+        if (desired.mNewAdminPin != null) {
+            diff.mOperations.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW3, adminPin, desired.mNewAdminPin));
+        }
+
+        ArrayList<PendingOperation> writes = new ArrayList<>();
+        for (Map.Entry<Integer, byte[]> value : desired.getDataObjects().entrySet()) {
+            int dataObject = value.getKey();
+            if (current != null && Arrays.equals(value.getValue(), currentValue(current, dataObject))) {
+                diff.mUnchanged.add(dataObject);
+            } else {
+                diff.mWrites.add(dataObject);
+                writes.add(new PendingPutDataOperation(dataObject, value.getValue()));
+            }
+        }
+
+        // The planner sends the VERIFY with the new Admin PIN if it is being changed.
+        if (!writes.isEmpty()) {
+            diff.mOperations.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, adminPin));
+            diff.mOperations.addAll(writes);
+        }
+        return diff;
+    }
+
+    /**
+     * Returns the data objects to read before comparing a card with the profile.
+     */
+    public static int[] requiredReads(ProvisioningProfile desired) throws IOException {
+        ArrayList<PendingOperation> writes = new ArrayList<>();
+        for (Map.Entry<Integer, byte[]> value : desired.getDataObjects().entrySet()) {
+            writes.add(new PendingPutDataOperation(value.getKey(), value.getValue()));
+        }
+        return TransactionPlanner.dirtyReads(writes, false);
+    }
+
+    /**
+     * Returns a data object's value in the snapshot, encoded the way it is written, or null if
+     * the snapshot doesn't have it. The text DOs are encoded back in the charset they were
+     * decoded with, so a value the card holds compares equal to the profile's bytes.
+     */
+    static byte[] currentValue(CardSnapshot current, int dataObject) {
+        switch (dataObject) {
+            case DO_NAME:
+                return current.mCardholderName != null ? current.mCardholderName.getBytes(CHARSET_NAME) : null;
+            case DO_LANGUAGE:
+                return current.mCardholderLanguage != null ? current.mCardholderLanguage.getBytes(CHARSET_ASCII) : null;
+            case DO_SEX:
+                return current.mCardholderSex != null ? current.mCardholderSex.getBytes(CHARSET_ASCII) : null;
+            case DO_URL:
+                return current.mUrl != null ? current.mUrl.getBytes(CHARSET_URL) : null;
+            case DO_LOGIN_DATA:
+                return current.mLoginData;
+            case DO_PW1_STATUS_BYTE:
+                return current.mPwStatusBytes != null && current.mPwStatusBytes.length > 0
+                        ? new byte[]{current.mPwStatusBytes[0]} : null;
+            default:
+                return null;
+        }
+    }
+
+    /** Returns true if nothing needs to be sent to the card. */
+    public boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    public String toString() {
+        return String.format("%d written, %d unchanged", mWrites.size(), mUnchanged.size());
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A channel to a smart card that exchanges raw APDUs.
+ *
+ * All card I/O goes through this interface, so that the same command logic can talk to a card
+ * over NFC (IsoDepTransport) or to an in-memory card (SimulatedOpenPgpCard).
+ */
+public interface CardTransport extends Closeable {
+
+    /**
+     * Sends a command APDU to the card and waits for its response.
+     *
+     * @param apdu The complete command APDU, including the header.
+     * @return The response APDU, including the trailing status word SW1-SW2.
+     */
+    byte[] transceive(byte[] apdu) throws IOException;
+
+    /**
+     * Returns true if the link can carry extended-length APDUs (ISO 7816-4, 5.1). Whether the card
+     * accepts them is a separate question; see CardCapabilities.
+     */
+    boolean isExtendedLengthSupported();
+
+    /** Returns the largest command or response APDU, in bytes, the link can carry. */
+    int getMaxTransceiveLength();
+
+    /**
+     * Disconnects from the card. This may be called from another thread to abort a transceive
+     * that is blocked on the card; the blocked call then throws an IOException.
+     */
+    void close() throws IOException;
+
+}
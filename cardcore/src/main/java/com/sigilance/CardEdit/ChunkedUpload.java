@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/**
+ * How far the write of one data object got, kept with the pending write from tap to tap.
+ *
+ * An object too large for a single APDU, like the cardholder certificate, is sent in chained
+ * segments, and the card acknowledges each one. A card that leaves the field throws away the
+ * segments of an unfinished chain, and a segment whose answer got lost can't be sent again
+ * without risking that it is stored twice. An interrupted write therefore starts its chain over
+ * on the next connection; this records how many attempts it took and how far the last one got.
+ */
+public class ChunkedUpload {
+
+    /** Hears about every segment the card has acknowledged. */
+    public interface Listener {
+        /** Called on the thread talking to the card. */
+        void onProgress(int dataObject, int acknowledged, int length);
+    }
+
+    private final int mDataObject;
+    private final int mLength;
+    private int mAttempts = 0;
+    private int mAcknowledged = 0;
+    private boolean mComplete = false;
+
+    public ChunkedUpload(int dataObject, int length) {
+        mDataObject = dataObject;
+        mLength = length;
+    }
+
+    public int getDataObject() {
+        return mDataObject;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /** Returns how many times the write has been started. */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Returns how many bytes the card acknowledged in the latest attempt. */
+    public int getAcknowledged() {
+        return mAcknowledged;
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    void begin() {
+        mAttempts++;
+        mAcknowledged = 0;
+    }
+
+    void acknowledge(int acknowledged) {
+        mAcknowledged = acknowledged;
+        mComplete = acknowledged == mLength;
+    }
+
+    public String toString() {
+        return String.format("%04X: %d of %d bytes, attempt %d", mDataObject, mAcknowledged, mLength, mAttempts);
+    }
+
+}
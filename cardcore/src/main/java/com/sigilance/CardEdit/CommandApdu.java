@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/**
+ * Encodes command APDUs into reused buffers, so that a long run of commands makes no garbage.
+ *
+ * CardTransport takes a command as an array of exactly the command's length. For each length
+ * up to the largest short APDU, one array is kept and overwritten by the next command of that
+ * length; the last extended-length command's array is kept as well. The array returned by
+ * encode() is therefore only valid until the next call, and a CommandApdu must not be shared
+ * between threads.
+ */
+public class CommandApdu {
+
+    /** Header, Lc, 255 bytes of data and Le */
+    public static final int MAX_SHORT_LENGTH = 4 + 1 + 255 + 1;
+
+    private final byte[][] mShortBuffers = new byte[MAX_SHORT_LENGTH + 1][];
+    private byte[] mExtendedBuffer;
+
+    /**
+     * Encodes a command.
+     *
+     * @param data     The command data, or null for none.
+     * @param le       The number of bytes expected back, or 0 for no Le field. A short Le of 256
+     *                 and an extended Le of 65536 are encoded as zeros.
+     * @param extended Whether to encode Lc and Le in extended form.
+     * @return The encoded command; valid until the next call.
+     */
+    public byte[] encode(int cla, int ins, int p1, int p2, byte[] data, int offset, int length, int le, boolean extended) {
+        if (data == null) {
+            length = 0;
+        }
+        int apduLength = 4;
+        if (length > 0) {
+            apduLength += (extended ? 3 : 1) + length;
+        }
+        if (le > 0) {
+            // In an extended case 4 command, Le only takes two bytes; the leading 00 is shared with Lc.
+            apduLength += extended ? (length > 0 ? 2 : 3) : 1;
+        }
+
+        byte[] apdu = buffer(apduLength);
+        apdu[0] = (byte) cla;
+        apdu[1] = (byte) ins;
+        apdu[2] = (byte) p1;
+        apdu[3] = (byte) p2;
+        int position = 4;
+        if (length > 0) {
+            if (extended) {
+                apdu[position++] = 0x00;
+                apdu[position++] = (byte) (length >> 8);
+            }
+            apdu[position++] = (byte) length;
+            System.arraycopy(data, offset, apdu, position, length);
+            position += length;
+        }
+        if (le > 0) {
+            if (extended) {
+                if (length == 0) {
+                    apdu[position++] = 0x00;
+                }
+                apdu[position++] = (byte) (le >> 8);
+            }
+            apdu[position] = (byte) le;
+        }
+        return apdu;
+    }
+
+    private byte[] buffer(int length) {
+        if (length <= MAX_SHORT_LENGTH) {
+            byte[] buffer = mShortBuffers[length];
+            if (buffer == null) {
+                buffer = new byte[length];
+                mShortBuffers[length] = buffer;
+            }
+            return buffer;
+        }
+        if (mExtendedBuffer == null || mExtendedBuffer.length != length) {
+            mExtendedBuffer = new byte[length];
+        }
+        return mExtendedBuffer;
+    }
+
+}
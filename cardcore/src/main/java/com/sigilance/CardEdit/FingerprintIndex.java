@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the card that holds a key, given the key's fingerprint.
+ *
+ * The fingerprints from C5 are kept as raw 20-byte keys in an open-addressing hash table with
+ * linear probing, in a direct ByteBuffer outside the Java heap. Each slot holds the fingerprint,
+ * the card's manufacturer and serial number, and which of the card's three keys it is, so a
+ * fleet with hundreds of thousands of keys costs a few tens of megabytes and no objects at all.
+ * The table is kept at most half full, where linear probing rarely looks at more than a slot
+ * or two.
+ *
+ * A key that has been put on several cards, or a card that has had several keys over time, has
+ * an entry for each. Empty key slots aren't indexed. The index is not thread-safe while it is
+ * being filled; once it is, lookups may come from any thread.
+ */
+public class FingerprintIndex {
+
+    public static final int KEY_SIGNATURE = 0;
+    public static final int KEY_DECRYPTION = 1;
+    public static final int KEY_AUTHENTICATION = 2;
+
+    static final int FINGERPRINT_LENGTH = 20;
+
+    // Slot layout: fingerprint, manufacturer (2 bytes), serial (4 bytes), key slot + 1 (0 when
+    // the slot is free), padding.
+    private static final int SLOT_SIZE = 32;
+    private static final int OFFSET_MANUFACTURER = 20;
+    private static final int OFFSET_SERIAL = 22;
+    private static final int OFFSET_KEY = 26;
+
+    // In slots; a direct buffer can't be much larger than 1 GB of them
+    private static final int MAX_CAPACITY = 1 << 25;
+
+    /** A card that holds the key looked up. */
+    public static class Match {
+        public final int mManufacturer;
+        public final long mSerial;
+        public final int mKey;
+
+        Match(int manufacturer, long serial, int key) {
+            mManufacturer = manufacturer;
+            mSerial = serial;
+            mKey = key;
+        }
+
+        public String toString() {
+            String key = mKey == KEY_SIGNATURE ? "signature" : mKey == KEY_DECRYPTION ? "decryption" : "authentication";
+            return String.format("%04X %08X %s key", mManufacturer, mSerial, key);
+        }
+    }
+
+    private ByteBuffer mTable;
+    private int mMask;
+    private int mSize = 0;
+
+    /**
+     * @param expectedKeys How many keys the index will hold; it grows past that if need be.
+     */
+    public FingerprintIndex(int expectedKeys) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity < expectedKeys * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /** Builds an index of every key in an archive, without reading the archive's heap. */
+    public static FingerprintIndex fromArchive(SnapshotArchive archive) {
+        FingerprintIndex index = new FingerprintIndex(archive.size() * 3);
+        for (int i = 0; i < archive.size(); i++) {
+            CardSnapshot keys = archive.getKeys(i);
+            index.addCard(keys.mAid, keys.mFingerprints);
+        }
+        return index;
+    }
+
+    /** Returns the number of entries in the index. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds the keys of a card.
+     *
+     * @param aid          The card's AID; the manufacturer and serial number are taken from it.
+     * @param fingerprints The 60 bytes of C5: the signature, decryption and authentication key
+     *                     fingerprints.
+     */
+    public void addCard(byte[] aid, byte[] fingerprints) {
+        if (aid == null || aid.length < 14) {
+            throw new IllegalArgumentException("Not an OpenPGP card AID");
+        }
+        int manufacturer = (aid[8] & 0xFF) << 8 | (aid[9] & 0xFF);
+        long serial = (aid[10] & 0xFFL) << 24 | (aid[11] & 0xFF) << 16 | (aid[12] & 0xFF) << 8 | (aid[13] & 0xFF);
+        for (int key = KEY_SIGNATURE; key <= KEY_AUTHENTICATION; key++) {
+            add(fingerprints, key * FINGERPRINT_LENGTH, manufacturer, serial, key);
+        }
+    }
+
+    /**
+     * Adds one key. An all-zero fingerprint, which marks an empty key slot, is skipped, and so is
+     * an entry that is already in the index.
+     */
+    public void add(byte[] fingerprints, int offset, int manufacturer, long serial, int key) {
+        if (isBlank(fingerprints, offset)) {
+            return;
+        }
+        if ((mSize + 1) * 2 > mMask + 1) {
+            if (mMask + 1 >= MAX_CAPACITY) {
+                throw new IllegalStateException("Fingerprint index is full!");
+            }
+            grow();
+        }
+        int slot = hash(fingerprints, offset) & mMask;
+        while (isUsed(slot)) {
+            if (matches(slot, fingerprints, offset) && mTable.getShort(slot * SLOT_SIZE + OFFSET_MANUFACTURER) == (short) manufacturer
+                    && mTable.getInt(slot * SLOT_SIZE + OFFSET_SERIAL) == (int) serial
+                    && mTable.get(slot * SLOT_SIZE + OFFSET_KEY) == key + 1) {
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        int base = slot * SLOT_SIZE;
+        for (int i = 0; i < FINGERPRINT_LENGTH; i++) {
+            mTable.put(base + i, fingerprints[offset + i]);
+        }
+        mTable.putShort(base + OFFSET_MANUFACTURER, (short) manufacturer);
+        mTable.putInt(base + OFFSET_SERIAL, (int) serial);
+        mTable.put(base + OFFSET_KEY, (byte) (key + 1));
+        mSize++;
+    }
+
+    /** Returns the cards that hold the key with the given 20-byte fingerprint. */
+    public List<Match> find(byte[] fingerprint) {
+        if (fingerprint.length != FINGERPRINT_LENGTH) {
+            throw new IllegalArgumentException("A fingerprint is 20 bytes");
+        }
+        List<Match> matches = Collections.emptyList();
+        int slot = hash(fingerprint, 0) & mMask;
+        while (isUsed(slot)) {
+            if (matches(slot, fingerprint, 0)) {
+                if (matches.isEmpty()) {
+                    matches = new ArrayList<>(1);
+                }
+                int base = slot * SLOT_SIZE;
+                matches.add(new Match(mTable.getShort(base + OFFSET_MANUFACTURER) & 0xFFFF,
+                        mTable.getInt(base + OFFSET_SERIAL) & 0xFFFFFFFFL,
+                        mTable.get(base + OFFSET_KEY) - 1));
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return matches;
+    }
+
+    private void allocate(int capacity) {
+        mTable = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        mMask = capacity - 1;
+    }
+
+    private void grow() {
+        ByteBuffer old = mTable;
+        int oldCapacity = mMask + 1;
+        allocate(oldCapacity * 2);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int base = slot * SLOT_SIZE;
+            if (old.get(base + OFFSET_KEY) == 0) {
+                continue;
+            }
+            int target = hash(old, base) & mMask;
+            while (isUsed(target)) {
+                target = (target + 1) & mMask;
+            }
+            for (int i = 0; i < SLOT_SIZE; i++) {
+                mTable.put(target * SLOT_SIZE + i, old.get(base + i));
+            }
+        }
+    }
+
+    private boolean isUsed(int slot) {
+        return mTable.get(slot * SLOT_SIZE + OFFSET_KEY) != 0;
+    }
+
+    private boolean matches(int slot, byte[] fingerprint, int offset) {
+        int base = slot * SLOT_SIZE;
+        for (int i = 0; i < FINGERPRINT_LENGTH; i++) {
+            if (mTable.get(base + i) != fingerprint[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] fingerprint, int offset) {
+        return mix(getInt(fingerprint, offset), getInt(fingerprint, offset + 8), getInt(fingerprint, offset + 16));
+    }
+
+    private static int hash(ByteBuffer table, int base) {
+        return mix(table.getInt(base), table.getInt(base + 8), table.getInt(base + 16));
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    // Real fingerprints are SHA-1 hashes and evenly spread already, but made-up ones often aren't.
+    private static int mix(int a, int b, int c) {
+        int h = (a * 31 + b) * 31 + c;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static boolean isBlank(byte[] fingerprints, int offset) {
+        for (int i = 0; i < FINGERPRINT_LENGTH; i++) {
+            if (fingerprints[offset + i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Reads a batch of cards on all attached readers at once and streams what is on each one to an
+ * AuditWriter. Nothing is written to the cards.
+ *
+ * Each reader has its own worker thread, which reads every data object the app shows, hands the
+ * record to the writer as soon as the card is done and forgets it, so the size of the fleet
+ * doesn't matter. The run ends when the requested number of cards has been read, or when no
+ * reader can produce another card.
+ */
+public class FleetAuditor {
+
+    /** Hears about each card once its record has been written. Called on the reader's worker thread. */
+    public interface Listener {
+        void onCardAudited(AuditRecord record);
+    }
+
+    /** How many cards an audit read, and how long it took. */
+    public static class Report {
+        public final int mAudited;
+        public final int mFailed;
+        public final long mElapsedNanos;
+
+        Report(int audited, int failed, long elapsedNanos) {
+            mAudited = audited;
+            mFailed = failed;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        /** Cards read in full per hour of wall-clock time. */
+        public double getCardsPerHour() {
+            return mElapsedNanos > 0 ? (mAudited - mFailed) * 3600e9 / mElapsedNanos : 0;
+        }
+
+        public String toString() {
+            return String.format("%d of %d cards in %.1f s, %.0f cards/hour", mAudited - mFailed, mAudited,
+                    mElapsedNanos / 1e9, getCardsPerHour());
+        }
+    }
+
+    private final ArrayList<String> mReaderNames = new ArrayList<>();
+    private final ArrayList<CardSessionExecutor.TransportFactory> mReaders = new ArrayList<>();
+    private Listener mListener;
+
+    /**
+     * Adds a reader to the pool.
+     *
+     * @param factory Blocks until the next card is in the reader and connects to it. It is called
+     *                again, on the same thread, once the previous card has been closed.
+     */
+    public void addReader(String name, CardSessionExecutor.TransportFactory factory) {
+        mReaderNames.add(name);
+        mReaders.add(factory);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reads cards until the given number is done or no reader has another card, and waits for
+     * the last one to be written.
+     *
+     * @param cards  How many cards to read, or 0 to go on for as long as the readers produce cards.
+     * @param writer Where each card's record goes.
+     * @throws IOException if a record couldn't be written; the audit stops at that point.
+     */
+    public Report run(int cards, AuditWriter writer) throws IOException, InterruptedException {
+        if (mReaders.isEmpty()) {
+            throw new IllegalStateException("No readers to audit with!");
+        }
+        final Batch batch = new Batch(cards > 0 ? cards : -1, writer);
+        long start = System.nanoTime();
+
+        Thread[] workers = new Thread[mReaders.size()];
+        for (int i = 0; i < workers.length; i++) {
+            final String name = mReaderNames.get(i);
+            final CardSessionExecutor.TransportFactory reader = mReaders.get(i);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(batch, name, reader);
+                }
+            }, "audit-" + name);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+
+        if (batch.mWriteError != null) {
+            throw batch.mWriteError;
+        }
+        return new Report(batch.mAudited, batch.mFailed, System.nanoTime() - start);
+    }
+
+    private void work(Batch batch, String name, CardSessionExecutor.TransportFactory reader) {
+        TransactionPlan plan = TransactionPlanner.plan(Collections.<PendingOperation>emptyList(), false,
+                TransactionPlanner.FULL_REFRESH);
+        while (batch.take()) {
+            CardTransport transport;
+            try {
+                transport = reader.open();
+            } catch (IOException e) {
+                batch.giveBack();
+                return;
+            }
+
+            AuditRecord record = new AuditRecord();
+            record.mReader = name;
+            long start = System.nanoTime();
+            try {
+                read(transport, plan, record);
+            } catch (RuntimeException e) {
+                record.mError = new IOException("Card operation failed: " + e, e);
+            } finally {
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    // Closing is best effort; the card may already be gone.
+                }
+                record.mElapsedNanos = System.nanoTime() - start;
+                record.mFinishedMillis = System.currentTimeMillis();
+            }
+
+            try {
+                batch.mWriter.write(record);
+            } catch (IOException e) {
+                batch.stop(e);
+                return;
+            }
+            batch.finish(record.isSuccess());
+            if (mListener != null) {
+                mListener.onCardAudited(record);
+            }
+        }
+    }
+
+    private static void read(CardTransport transport, TransactionPlan plan, AuditRecord record) {
+        TransactionResult result = new TransactionRunner(new OpenPgpCard(transport, null), null, null)
+                .run(plan, null, null);
+        record.mAid = result.mAid;
+        record.mReads = result.mReads;
+        record.mFailedStep = result.mFailedStep;
+        record.mError = result.mError;
+        if (result.mSnapshot != null) {
+            record.mSnapshot = result.mSnapshot;
+            return;
+        }
+
+        // Keep whatever was read before the card gave up.
+        CardSnapshot partial = new CardSnapshot();
+        partial.mAid = result.mAid;
+        for (Map.Entry<Integer, byte[]> read : result.mReads.entrySet()) {
+            try {
+                partial.decode(read.getKey(), read.getValue());
+            } catch (IOException e) {
+                // The raw data object is still in the record.
+            }
+        }
+        record.mSnapshot = partial;
+    }
+
+    /** The progress of one run, shared by its workers. */
+    private static class Batch {
+        final AuditWriter mWriter;
+        // Cards still to hand out, or -1 for as many as the readers produce
+        int mRemaining;
+        int mInFlight = 0;
+        int mAudited = 0;
+        int mFailed = 0;
+        IOException mWriteError;
+
+        Batch(int cards, AuditWriter writer) {
+            mRemaining = cards;
+            mWriter = writer;
+        }
+
+        /**
+         * Returns true if the worker should read another card. While other workers still have
+         * cards in progress it waits, as their reader may fail and give its card back.
+         */
+        synchronized boolean take() {
+            while (mRemaining == 0 && mInFlight > 0 && mWriteError == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            if (mRemaining == 0 || mWriteError != null) {
+                return false;
+            }
+            if (mRemaining > 0) {
+                mRemaining--;
+            }
+            mInFlight++;
+            return true;
+        }
+
+        synchronized void giveBack() {
+            mInFlight--;
+            if (mRemaining >= 0) {
+                mRemaining++;
+            }
+            notifyAll();
+        }
+
+        synchronized void finish(boolean success) {
+            mInFlight--;
+            mAudited++;
+            if (!success) {
+                mFailed++;
+            }
+            notifyAll();
+        }
+
+        synchronized void stop(IOException e) {
+            mInFlight--;
+            if (mWriteError == null) {
+                mWriteError = e;
+            }
+            notifyAll();
+        }
+    }
+
+}
@@ -132,7 +132,7 @@ public class Iso7816TLV {
             // skip 0x00 and 0xFF filler bytes
             buf.mark();
             byte peek = buf.get();
-            if (peek == 0xff || peek == 0x00) {
+            if (peek == (byte) 0xff || peek == 0x00) {
                 continue;
             }
             buf.reset();
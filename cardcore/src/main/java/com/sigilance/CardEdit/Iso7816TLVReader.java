@@ -0,0 +1,287 @@
+/* Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/** Pull parser for a stream of TLV packets.
+ *
+ * This is the streaming counterpart to Iso7816TLVView. Instead of building
+ * a tree, the reader walks the input once and reports one event per call
+ * to next(): the start and end of each composite packet, and each primitive
+ * packet. Only the value of the current primitive packet is ever read, and
+ * only if the caller asks for it; otherwise it is skipped. Memory use is
+ * the read buffer plus one entry per level of nesting, however large the
+ * input is, so a multi-gigabyte archive of card responses can be read
+ * straight from a channel.
+ *
+ * As in Iso7816TLVView.readList, 0x00 and 0xFF filler bytes between
+ * packets are skipped. Tags of up to two bytes are supported.
+ *
+ */
+public class Iso7816TLVReader {
+
+    // Events returned by next()
+    public static final int END_OF_INPUT = 0;
+    public static final int START_COMPOSITE = 1;
+    public static final int PRIMITIVE = 2;
+    public static final int END_COMPOSITE = 3;
+
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private boolean mEndOfChannel;
+
+    // Offset in the input of the next byte in mBuffer
+    private long mPosition;
+
+    private int mEvent = -1;
+    private int mTag;
+    private int mLength;
+    private long mPacketOffset;
+    private long mValueRemaining;
+
+    // End offsets and tags of the composite packets we are inside of
+    private long[] mEnds = new long[8];
+    private int[] mTags = new int[8];
+    private int mDepth;
+
+    /** Read the packets between the buffer's position and its limit. The
+     * buffer itself is not moved.
+     */
+    public Iso7816TLVReader(ByteBuffer buffer) {
+        mChannel = null;
+        mBuffer = buffer.slice();
+        mEndOfChannel = true;
+    }
+
+    /** Read the packets from a channel, through a buffer of the given size.
+     * If the channel is a FileChannel, values that aren't read are skipped
+     * without reading them.
+     */
+    public Iso7816TLVReader(ReadableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+        mBuffer.limit(0);
+    }
+
+    /** Advance to the next event and return it.
+     *
+     * This method is fail-fast, if the input is invalid or ends in the
+     * middle of a packet it will throw an exception.
+     */
+    public int next() throws IOException {
+        mEvent = nextEvent();
+        return mEvent;
+    }
+
+    private int nextEvent() throws IOException {
+        if (mValueRemaining > 0) {
+            skipBytes(mValueRemaining);
+            mValueRemaining = 0;
+        }
+
+        while (true) {
+            if (mDepth > 0 && mPosition == mEnds[mDepth - 1]) {
+                mDepth--;
+                mTag = mTags[mDepth];
+                mLength = 0;
+                return END_COMPOSITE;
+            }
+            if (!ensure(1)) {
+                if (mDepth > 0) {
+                    throw new IOException("TLV data truncated!");
+                }
+                return END_OF_INPUT;
+            }
+            byte peek = mBuffer.get(mBuffer.position());
+            if (peek == (byte) 0xff || peek == 0x00) {
+                mBuffer.get();
+                mPosition++;
+                continue;
+            }
+            break;
+        }
+
+        mPacketOffset = mPosition;
+        int T = readByte();
+        boolean composite = (T & 0x20) == 0x20;
+        if ((T & 0x1f) == 0x1f) {
+            int T2 = readByte();
+            if ((T2 & 0x1f) == 0x1f) {
+                throw new IOException("Only tags up to two bytes are supported!");
+            }
+            T = (T << 8) | (T2 & 0x7f);
+        }
+
+        // parse length, according to ISO 7816-4 (openpgp card 2.0 specs, page 24)
+        int L = readByte();
+        if (L == 0x81) {
+            L = readByte();
+        } else if (L == 0x82) {
+            L = readByte();
+            L = (L << 8) | readByte();
+        } else if (L >= 0x80) {
+            throw new IOException("Invalid length field!");
+        }
+
+        if (mDepth > 0 && mPosition + L > mEnds[mDepth - 1]) {
+            throw new IOException("TLV data truncated!");
+        }
+
+        mTag = T;
+        mLength = L;
+        if (composite) {
+            if (mDepth == mEnds.length) {
+                mEnds = Arrays.copyOf(mEnds, mDepth * 2);
+                mTags = Arrays.copyOf(mTags, mDepth * 2);
+            }
+            mEnds[mDepth] = mPosition + L;
+            mTags[mDepth] = T;
+            mDepth++;
+            return START_COMPOSITE;
+        }
+        mValueRemaining = L;
+        return PRIMITIVE;
+    }
+
+    /** The tag of the current packet; for END_COMPOSITE, of the packet that ended. */
+    public int getTag() {
+        return mTag;
+    }
+
+    /** The length of the current packet's value. */
+    public int getLength() {
+        return mLength;
+    }
+
+    /** How many composite packets the reader is inside of. */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /** The offset in the input of the current packet's tag. */
+    public long getPacketOffset() {
+        return mPacketOffset;
+    }
+
+    /** Read the value of the current primitive packet into dst, which must
+     * have room for getLength() bytes at offset. The value can only be read
+     * once.
+     */
+    public void readValue(byte[] dst, int offset) throws IOException {
+        if (mEvent != PRIMITIVE || mValueRemaining != mLength) {
+            throw new IllegalStateException("No value to read!");
+        }
+        int pos = offset;
+        while (mValueRemaining > 0) {
+            if (!ensure(1)) {
+                throw new IOException("TLV data truncated!");
+            }
+            int n = (int) Math.min(mValueRemaining, mBuffer.remaining());
+            mBuffer.get(dst, pos, n);
+            pos += n;
+            mPosition += n;
+            mValueRemaining -= n;
+        }
+    }
+
+    /** Read the value of the current primitive packet into a new array. */
+    public byte[] getValue() throws IOException {
+        byte[] value = new byte[mLength];
+        readValue(value, 0);
+        return value;
+    }
+
+    /** Skip the rest of the current packet. For a composite packet that has
+     * just started, its children and its END_COMPOSITE are skipped as well.
+     */
+    public void skip() throws IOException {
+        if (mValueRemaining > 0) {
+            skipBytes(mValueRemaining);
+            mValueRemaining = 0;
+        } else if (mEvent == START_COMPOSITE) {
+            mDepth--;
+            skipBytes(mEnds[mDepth] - mPosition);
+            mEvent = -1;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (!ensure(1)) {
+            throw new IOException("TLV data truncated!");
+        }
+        mPosition++;
+        return mBuffer.get() & 0xff;
+    }
+
+    private void skipBytes(long count) throws IOException {
+        long buffered = Math.min(count, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + (int) buffered);
+        mPosition += buffered;
+        count -= buffered;
+        if (count == 0) {
+            return;
+        }
+
+        // SeekableByteChannel would cover more channels, but Android only has it from API 24.
+        if (mChannel instanceof FileChannel) {
+            FileChannel file = (FileChannel) mChannel;
+            long target = file.position() + count;
+            if (target > file.size()) {
+                throw new IOException("TLV data truncated!");
+            }
+            file.position(target);
+            mPosition += count;
+            return;
+        }
+        while (count > 0) {
+            if (!ensure(1)) {
+                throw new IOException("TLV data truncated!");
+            }
+            int n = (int) Math.min(count, mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + n);
+            mPosition += n;
+            count -= n;
+        }
+    }
+
+    /** Makes sure at least count bytes are buffered, unless the input ends first. */
+    private boolean ensure(int count) throws IOException {
+        if (mBuffer.remaining() >= count) {
+            return true;
+        }
+        if (mEndOfChannel) {
+            return false;
+        }
+        mBuffer.compact();
+        try {
+            while (mBuffer.position() < count) {
+                if (mChannel.read(mBuffer) < 0) {
+                    mEndOfChannel = true;
+                    break;
+                }
+            }
+        } finally {
+            mBuffer.flip();
+        }
+        return mBuffer.remaining() >= count;
+    }
+
+}
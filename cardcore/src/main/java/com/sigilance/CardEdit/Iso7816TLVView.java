@@ -0,0 +1,248 @@
+/* Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Zero-copy view of a TLV packet.
+ *
+ * This is the view-based counterpart to Iso7816TLV. A view holds only the
+ * tag, length and offset of its value in the buffer it was parsed from, so
+ * parsing allocates one small object per node and never copies value bytes.
+ * Children of composite packets are parsed lazily the first time they are
+ * accessed, and value bytes are only copied when getValue() is called.
+ *
+ * The underlying buffer is shared, not copied, so it must not be modified
+ * while views into it are in use.
+ *
+ */
+public class Iso7816TLVView {
+
+    public final int mT;
+    public final int mL;
+    public final boolean mComposite;
+
+    private final byte[] mBuffer;
+    private final int mStart;
+    private final int mOffset;
+    private final int mEnd;
+
+    private Iso7816TLVView[] mSubs;
+
+    private Iso7816TLVView(byte[] buffer, int start, int T, int L, boolean composite, int offset) {
+        mBuffer = buffer;
+        mStart = start;
+        mT = T;
+        mL = L;
+        mComposite = composite;
+        mOffset = offset;
+        mEnd = offset + L;
+    }
+
+    /** Parse a single TLV packet at the start of the given data. */
+    public static Iso7816TLVView readSingle(byte[] data) throws IOException {
+        return readSingle(data, 0, data.length);
+    }
+
+    /** Parse a single TLV packet starting at offset, which must end before end.
+     *
+     * Only the header is parsed; children of a composite packet are parsed
+     * on first access. This method is fail-fast, if the header is invalid or
+     * the value runs past end it will throw an exception.
+     */
+    public static Iso7816TLVView readSingle(byte[] data, int offset, int end) throws IOException {
+        int pos = offset;
+        if (pos >= end) {
+            throw new IOException("TLV data truncated!");
+        }
+
+        int T = data[pos++] & 0xff;
+        boolean composite = (T & 0x20) == 0x20;
+        if ((T & 0x1f) == 0x1f) {
+            if (pos >= end) {
+                throw new IOException("TLV data truncated!");
+            }
+            int T2 = data[pos++] & 0xff;
+            if ((T2 & 0x1f) == 0x1f) {
+                throw new IOException("Only tags up to two bytes are supported!");
+            }
+            T = (T << 8) | (T2 & 0x7f);
+        }
+
+        // parse length, according to ISO 7816-4 (openpgp card 2.0 specs, page 24)
+        if (pos >= end) {
+            throw new IOException("TLV data truncated!");
+        }
+        int L = data[pos++] & 0xff;
+        if (L == 0x81) {
+            if (pos >= end) {
+                throw new IOException("TLV data truncated!");
+            }
+            L = data[pos++] & 0xff;
+        } else if (L == 0x82) {
+            if (pos + 1 >= end) {
+                throw new IOException("TLV data truncated!");
+            }
+            L = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+            pos += 2;
+        } else if (L >= 0x80) {
+            throw new IOException("Invalid length field!");
+        }
+
+        if (L > end - pos) {
+            throw new IOException("TLV data truncated!");
+        }
+
+        return new Iso7816TLVView(data, offset, T, L, composite, pos);
+    }
+
+    /** Parse a list of TLV packets between offset and end, skipping 0x00 and
+     * 0xFF filler bytes.
+     *
+     * This method is fail-fast, if any parsing error occurs it will throw an
+     * exception.
+     */
+    public static Iso7816TLVView[] readList(byte[] data, int offset, int end) throws IOException {
+        ArrayList<Iso7816TLVView> result = new ArrayList<>();
+
+        int pos = offset;
+        while (pos < end) {
+            byte peek = data[pos];
+            if (peek == (byte) 0xff || peek == 0x00) {
+                pos++;
+                continue;
+            }
+            Iso7816TLVView packet = readSingle(data, pos, end);
+            result.add(packet);
+            pos = packet.mEnd;
+        }
+
+        return result.toArray(new Iso7816TLVView[result.size()]);
+    }
+
+    /** Returns the buffer this view was parsed from. The value starts at getValueOffset(). */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getValueOffset() {
+        return mOffset;
+    }
+
+    /** Returns a copy of the value bytes. */
+    public byte[] getValue() {
+        return Arrays.copyOfRange(mBuffer, mOffset, mEnd);
+    }
+
+    /** Returns the value byte at index, as an unsigned int. */
+    public int getByte(int index) {
+        if (index < 0 || index >= mL) {
+            throw new IndexOutOfBoundsException("index " + index + " outside value of length " + mL);
+        }
+        return mBuffer[mOffset + index] & 0xff;
+    }
+
+    /** Decodes length bytes of the value starting at index as a big-endian unsigned number. */
+    public long getUnsigned(int index, int length) {
+        if (index < 0 || length < 0 || length > 8 || index + length > mL) {
+            throw new IndexOutOfBoundsException("range " + index + "+" + length + " outside value of length " + mL);
+        }
+        long result = 0;
+        for (int i = mOffset + index; i < mOffset + index + length; i++) {
+            result = (result << 8) | (mBuffer[i] & 0xff);
+        }
+        return result;
+    }
+
+    /** Decodes the value as a string in the platform default charset. */
+    public String getString() {
+        return new String(mBuffer, mOffset, mL);
+    }
+
+    public String getString(Charset charset) {
+        return new String(mBuffer, mOffset, mL, charset);
+    }
+
+    /** Compares the value bytes to the given array without copying them. */
+    public boolean valueEquals(byte[] other) {
+        if (other == null || other.length != mL) {
+            return false;
+        }
+        for (int i = 0; i < mL; i++) {
+            if (mBuffer[mOffset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the children of a composite packet, parsing them on first access.
+     * Non-composite packets have no children.
+     */
+    public Iso7816TLVView[] getSubs() throws IOException {
+        if (mSubs == null) {
+            mSubs = mComposite ? readList(mBuffer, mOffset, mEnd) : new Iso7816TLVView[0];
+        }
+        return mSubs;
+    }
+
+    /** Recursively searches for a specific tag in this packet and its children, depth first.
+     * Only the composites on the way to the result are expanded.
+     */
+    public Iso7816TLVView findRecursive(int tag) throws IOException {
+        if (mT == tag) {
+            return this;
+        }
+        if (mComposite) {
+            for (Iso7816TLVView sub : getSubs()) {
+                Iso7816TLVView result = sub.findRecursive(tag);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Copies this view into a regular Iso7816TLV tree. */
+    public Iso7816TLV toTLV() throws IOException {
+        return Iso7816TLV.readSingle(Arrays.copyOfRange(mBuffer, mStart, mEnd), true);
+    }
+
+    public String prettyPrint() throws IOException {
+        return prettyPrint(0);
+    }
+
+    public String prettyPrint(int indent) throws IOException {
+        StringBuilder result = new StringBuilder();
+        // lol
+        result.append("                                                  ".substring(0, indent*2));
+        if (!mComposite) {
+            result.append(String.format("tag T %4x L %04d", mT, mL));
+            return result.toString();
+        }
+        result.append(String.format("composite tag T %4x L %04d", mT, mL));
+        for (Iso7816TLVView sub : getSubs()) {
+            result.append('\n');
+            result.append(sub.prettyPrint(indent+1));
+        }
+        return result.toString();
+    }
+
+}
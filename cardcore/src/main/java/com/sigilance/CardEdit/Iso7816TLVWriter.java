@@ -0,0 +1,183 @@
+/* Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.util.Arrays;
+
+/** Streaming encoder for TLV packets.
+ *
+ * This is the writing counterpart to Iso7816TLVView. Packets are written
+ * straight into one growable buffer: primitive packets with write(), and
+ * composite packets by writing their children between begin() and end().
+ * The length of a composite packet isn't known until its end, so begin()
+ * leaves one byte for it and end() patches it in, moving the value up by
+ * one or two bytes in the rare case that it needs the 0x81 or 0x82 form.
+ * No intermediate arrays are built for the children.
+ *
+ * Tags of up to two bytes and lengths of up to 0xFFFF are supported, as in
+ * Iso7816TLVView.
+ *
+ */
+public class Iso7816TLVWriter {
+
+    private static final int MAX_LENGTH = 0xFFFF;
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    // Offsets of the length bytes of the composite packets that are still open
+    private int[] mOpen = new int[4];
+    private int mDepth;
+
+    public Iso7816TLVWriter() {
+        this(256);
+    }
+
+    /** Creates a writer whose buffer starts out with the given capacity; it grows as needed. */
+    public Iso7816TLVWriter(int capacity) {
+        mBuffer = new byte[Math.max(capacity, 16)];
+    }
+
+    /** Write a primitive packet. */
+    public Iso7816TLVWriter write(int tag, byte[] value) {
+        return write(tag, value, 0, value.length);
+    }
+
+    /** Write a primitive packet with part of the given array as its value. */
+    public Iso7816TLVWriter write(int tag, byte[] value, int offset, int length) {
+        writeTagAndLength(tag, length);
+        writeRaw(value, offset, length);
+        return this;
+    }
+
+    /** Write a tag and length with no value after them, as in the header list of an
+     * extended header list (7F48), where the values follow separately.
+     */
+    public Iso7816TLVWriter writeTagAndLength(int tag, int length) {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("TLV length out of range: " + length);
+        }
+        writeTag(tag);
+        if (length > 0xff) {
+            ensureCapacity(3);
+            mBuffer[mLength++] = (byte) 0x82;
+            mBuffer[mLength++] = (byte) (length >> 8);
+            mBuffer[mLength++] = (byte) length;
+        } else if (length > 0x7f) {
+            ensureCapacity(2);
+            mBuffer[mLength++] = (byte) 0x81;
+            mBuffer[mLength++] = (byte) length;
+        } else {
+            ensureCapacity(1);
+            mBuffer[mLength++] = (byte) length;
+        }
+        return this;
+    }
+
+    /** Append bytes to the value of the open composite packet, or to the output, as they are. */
+    public Iso7816TLVWriter writeRaw(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mBuffer, mLength, length);
+        mLength += length;
+        return this;
+    }
+
+    public Iso7816TLVWriter writeRaw(byte[] data) {
+        return writeRaw(data, 0, data.length);
+    }
+
+    /** Start a composite packet. Everything written until the matching end() is its value. */
+    public Iso7816TLVWriter begin(int tag) {
+        writeTag(tag);
+        ensureCapacity(1);
+        if (mDepth == mOpen.length) {
+            mOpen = Arrays.copyOf(mOpen, mDepth * 2);
+        }
+        mOpen[mDepth++] = mLength;
+        mBuffer[mLength++] = 0;
+        return this;
+    }
+
+    /** Finish the composite packet started by the last open begin(). */
+    public Iso7816TLVWriter end() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("end() without begin()!");
+        }
+        int lengthOffset = mOpen[--mDepth];
+        int valueOffset = lengthOffset + 1;
+        int length = mLength - valueOffset;
+        if (length > MAX_LENGTH) {
+            throw new IllegalStateException("TLV length out of range: " + length);
+        }
+
+        int extra = length > 0xff ? 2 : length > 0x7f ? 1 : 0;
+        if (extra > 0) {
+            ensureCapacity(extra);
+            System.arraycopy(mBuffer, valueOffset, mBuffer, valueOffset + extra, length);
+            mLength += extra;
+        }
+        if (extra == 2) {
+            mBuffer[lengthOffset] = (byte) 0x82;
+            mBuffer[lengthOffset + 1] = (byte) (length >> 8);
+            mBuffer[lengthOffset + 2] = (byte) length;
+        } else if (extra == 1) {
+            mBuffer[lengthOffset] = (byte) 0x81;
+            mBuffer[lengthOffset + 1] = (byte) length;
+        } else {
+            mBuffer[lengthOffset] = (byte) length;
+        }
+        return this;
+    }
+
+    /** Returns the number of bytes written so far. */
+    public int length() {
+        return mLength;
+    }
+
+    /** Returns the buffer the packets are written to. The output is its first length() bytes. */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /** Returns a copy of the output. Every composite packet must have been ended. */
+    public byte[] toByteArray() {
+        if (mDepth != 0) {
+            throw new IllegalStateException("Composite packet not ended!");
+        }
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+
+    /** Discard the output, keeping the buffer for the next packets. */
+    public void reset() {
+        mLength = 0;
+        mDepth = 0;
+    }
+
+    private void writeTag(int tag) {
+        ensureCapacity(2);
+        if (tag > 0xff) {
+            mBuffer[mLength++] = (byte) (tag >> 8);
+        }
+        mBuffer[mLength++] = (byte) tag;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * An index from tag to node over a parsed TLV tree, built in a single depth-first pass.
+ *
+ * Composite DOs like 0x65 and 0x6E are read once and then queried for several tags. Instead of
+ * walking the tree once per tag with findRecursive, build an index once per DO and look the
+ * tags up in it. Lookups return the same node findRecursive would: the first occurrence in
+ * depth-first pre-order. findAll returns every occurrence, in the same order.
+ *
+ * The index is an open-addressing hash table keyed on the primitive tag, with the occurrences
+ * of each tag chained through an int array, so lookups do not box or allocate.
+ */
+public class Iso7816TagIndex {
+
+    private static final Iso7816TLVView[] NO_NODES = new Iso7816TLVView[0];
+
+    // All nodes in depth-first pre-order, and for each node the index of the next node with
+    // the same tag, or -1.
+    private final Iso7816TLVView[] mNodes;
+    private final int[] mNext;
+
+    // Hash table: tag -> index of its first node in mNodes. A head of -1 marks an empty slot.
+    private final int[] mKeys;
+    private final int[] mHeads;
+    private final int[] mCounts;
+    private final int mMask;
+
+    /** Builds an index over root and all of its descendants, expanding every composite. */
+    public Iso7816TagIndex(Iso7816TLVView root) throws IOException {
+        ArrayList<Iso7816TLVView> nodes = new ArrayList<>();
+        collect(root, nodes);
+        mNodes = nodes.toArray(new Iso7816TLVView[nodes.size()]);
+        mNext = new int[mNodes.length];
+
+        int capacity = Integer.highestOneBit(Math.max(mNodes.length, 4) * 2 - 1) << 1;
+        mKeys = new int[capacity];
+        mHeads = new int[capacity];
+        mCounts = new int[capacity];
+        mMask = capacity - 1;
+        int[] tails = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mHeads[i] = -1;
+        }
+
+        for (int i = 0; i < mNodes.length; i++) {
+            mNext[i] = -1;
+            int slot = slotOf(mNodes[i].mT);
+            if (mHeads[slot] == -1) {
+                mKeys[slot] = mNodes[i].mT;
+                mHeads[slot] = i;
+            } else {
+                mNext[tails[slot]] = i;
+            }
+            tails[slot] = i;
+            mCounts[slot]++;
+        }
+    }
+
+    private static void collect(Iso7816TLVView node, ArrayList<Iso7816TLVView> nodes) throws IOException {
+        nodes.add(node);
+        if (node.mComposite) {
+            for (Iso7816TLVView sub : node.getSubs()) {
+                collect(sub, nodes);
+            }
+        }
+    }
+
+    /** Returns the slot holding tag, or the empty slot where it would go. */
+    private int slotOf(int tag) {
+        int slot = (tag * 0x9E3779B9) >>> 16 & mMask;
+        while (mHeads[slot] != -1 && mKeys[slot] != tag) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    /** Returns the number of nodes in the tree, including the root. */
+    public int size() {
+        return mNodes.length;
+    }
+
+    public boolean contains(int tag) {
+        return mHeads[slotOf(tag)] != -1;
+    }
+
+    /** Returns the first node with the given tag, or null if there is none. */
+    public Iso7816TLVView find(int tag) {
+        int head = mHeads[slotOf(tag)];
+        return head == -1 ? null : mNodes[head];
+    }
+
+    /** Looks up several tags at once. The result holds the first node for each tag, or null,
+     * in the order the tags were given. */
+    public Iso7816TLVView[] find(int... tags) {
+        Iso7816TLVView[] result = new Iso7816TLVView[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            result[i] = find(tags[i]);
+        }
+        return result;
+    }
+
+    /** Returns every node with the given tag, in depth-first order. */
+    public Iso7816TLVView[] findAll(int tag) {
+        int slot = slotOf(tag);
+        if (mHeads[slot] == -1) {
+            return NO_NODES;
+        }
+        Iso7816TLVView[] result = new Iso7816TLVView[mCounts[slot]];
+        int n = 0;
+        for (int i = mHeads[slot]; i != -1; i = mNext[i]) {
+            result[n++] = mNodes[i];
+        }
+        return result;
+    }
+
+    /** Looks up every occurrence of several tags at once, in the order the tags were given. */
+    public Iso7816TLVView[][] findAll(int... tags) {
+        Iso7816TLVView[][] result = new Iso7816TLVView[tags.length][];
+        for (int i = 0; i < tags.length; i++) {
+            result[i] = findAll(tags[i]);
+        }
+        return result;
+    }
+
+}
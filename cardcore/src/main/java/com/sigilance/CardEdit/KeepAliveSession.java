@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * The state of a card whose connection is kept open after a transaction, for as long as it
+ * stays in the field.
+ *
+ * While the connection holds, the OpenPGP application stays selected, the card can't have been
+ * swapped for another one, and a PIN the card accepted stays verified. Edits can therefore run
+ * as soon as they are made, without SELECT, without reading the AID again and without sending
+ * the Admin PIN a second time. Between edits, the caller probes the card to notice when it
+ * leaves the field.
+ *
+ * A session is only used on the card session thread.
+ */
+public class KeepAliveSession {
+
+    private final byte[] mAid;
+    private boolean mPw3Verified = false;
+    private OperationJournal mJournal;
+
+    private KeepAliveSession(byte[] aid) {
+        mAid = aid;
+    }
+
+    /**
+     * Starts a session on the connection that a transaction just ran on.
+     *
+     * @return The session, or null if the transaction didn't get as far as reading the AID.
+     */
+    public static KeepAliveSession start(TransactionResult result) {
+        if (result.mAid == null) {
+            return null;
+        }
+        KeepAliveSession session = new KeepAliveSession(result.mAid);
+        session.track(result);
+        return session;
+    }
+
+    public byte[] getAid() {
+        return mAid;
+    }
+
+    /** Sets where the edits run on the held connection are recorded, or null. */
+    public void setJournal(OperationJournal journal) {
+        mJournal = journal;
+    }
+
+    /** Returns true if the card has accepted the Admin PIN on this connection. */
+    public boolean isPw3Verified() {
+        return mPw3Verified;
+    }
+
+    /**
+     * Runs the pending operations on the held connection.
+     *
+     * @param card         The card, on the held connection.
+     * @param pending      The pending operations, in the order the user queued them.
+     * @param refreshReads The data objects to read back afterwards.
+     * @param base         The card as last read, which the reads are decoded into. It is modified.
+     * @param cache        Where to save the updated snapshot, or null.
+     */
+    public TransactionResult run(OpenPgpCard card, List<PendingOperation> pending, int[] refreshReads,
+                                 CardSnapshot base, CardSnapshotCache cache) {
+        TransactionPlan plan = TransactionPlanner.planInSession(pending, mPw3Verified, refreshReads);
+        TransactionRunner runner = new TransactionRunner(card, cache, null);
+        runner.setJournal(mJournal);
+        TransactionResult result = runner.run(plan, null, base);
+        track(result);
+        return result;
+    }
+
+    /**
+     * Reads the on-demand data objects, like the private DOs, that the snapshot doesn't hold yet.
+     * Those it already holds aren't read again.
+     *
+     * @param card        The card, on the held connection.
+     * @param dataObjects The on-demand data objects wanted.
+     * @param base        The card as last read, which the reads are decoded into. It is modified.
+     */
+    public TransactionResult load(OpenPgpCard card, int[] dataObjects, CardSnapshot base) {
+        return run(card, Collections.<PendingOperation>emptyList(), base.missing(dataObjects), base, null);
+    }
+
+    /**
+     * Checks that the card is still there, with a GET DATA of the PW status bytes: a single short
+     * APDU that doesn't change any state on the card.
+     *
+     * @throws IOException if the card has left the field.
+     */
+    public byte[] probe(OpenPgpCard card) throws IOException {
+        return card.getData(DO_PW_STATUS_BYTES);
+    }
+
+    private void track(TransactionResult result) {
+        for (TransactionPlan.Step step : result.mCompletedSteps) {
+            if (step.mSlot != TransactionPlanner.PIN_PW3) {
+                continue;
+            }
+            if (step.mType == TransactionPlan.STEP_VERIFY) {
+                mPw3Verified = true;
+            } else if (step.mType == TransactionPlan.STEP_CHANGE_PIN) {
+                mPw3Verified = false;
+            }
+        }
+        TransactionPlan.Step failed = result.mFailedStep;
+        if (result.mError != null && failed != null && failed.mSlot == TransactionPlanner.PIN_PW3
+                && failed.mType == TransactionPlan.STEP_VERIFY) {
+            // A wrong PIN resets the card's verified state.
+            mPw3Verified = false;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Names the manufacturers of OpenPGP cards by the ID in their AID.
+ *
+ * The table is plain text, one manufacturer per line: the ID as four hex digits, whitespace
+ * and the name. Blank lines and lines starting with # are skipped. The default table ships as
+ * the manufacturers.txt resource; a fleet with cards from elsewhere can load its own.
+ */
+public class ManufacturerRegistry {
+
+    private static final String DEFAULT_TABLE = "manufacturers.txt";
+
+    private static ManufacturerRegistry sDefault;
+
+    private final Map<Integer, String> mNames;
+
+    private ManufacturerRegistry(Map<Integer, String> names) {
+        mNames = names;
+    }
+
+    /** Returns the registry loaded from the table that ships with the app. */
+    public static synchronized ManufacturerRegistry getDefault() {
+        if (sDefault == null) {
+            InputStream in = ManufacturerRegistry.class.getResourceAsStream(DEFAULT_TABLE);
+            try {
+                if (in == null) {
+                    throw new IOException("Missing " + DEFAULT_TABLE);
+                }
+                sDefault = load(in);
+            } catch (IOException e) {
+                // The names are only for display; every card still shows as unknown.
+                sDefault = new ManufacturerRegistry(new HashMap<Integer, String>());
+            }
+        }
+        return sDefault;
+    }
+
+    /** Reads a table in the format described above. The stream is closed. */
+    public static ManufacturerRegistry load(InputStream in) throws IOException {
+        HashMap<Integer, String> names = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+", 2);
+                int id;
+                try {
+                    id = Integer.parseInt(fields[0], 16);
+                } catch (NumberFormatException e) {
+                    id = -1;
+                }
+                if (fields.length != 2 || fields[0].length() != 4 || id < 0) {
+                    throw new IOException("Bad manufacturer on line " + lineNumber + ": " + line);
+                }
+                names.put(id, fields[1]);
+            }
+        } finally {
+            reader.close();
+        }
+        return new ManufacturerRegistry(names);
+    }
+
+    /** Returns the name of the manufacturer with the given ID, or a description of its range. */
+    public String getName(int manufacturer) {
+        String name = mNames.get(manufacturer);
+        if (name != null) {
+            return name;
+        }
+        if (manufacturer == 0x0000 || manufacturer == 0xFFFF) {
+            return "test card";
+        }
+        if ((manufacturer & 0xFF00) == 0xFF00) {
+            return "unmanaged S/N range";
+        }
+        return "unknown";
+    }
+
+    public String getName(OpenPgpAid aid) {
+        return getName(aid.mManufacturer);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+
+/**
+ * The application identifier of an OpenPGP card (DO 4F), decoded once into its fields.
+ *
+ * The 16 bytes are the RID D2 76 00 01 24, the application 01, the version as two BCD bytes,
+ * the manufacturer (u16), the serial number (u32) and two RFU bytes. An AID is immutable, and
+ * equality and hashing work on two longs, so it makes a cheap map key.
+ */
+public final class OpenPgpAid {
+
+    public static final int LENGTH = 16;
+
+    private static final byte[] RID = {(byte) 0xD2, 0x76, 0x00, 0x01, 0x24};
+
+    public final int mApplication;
+    public final int mVersionMajor;
+    public final int mVersionMinor;
+    public final int mManufacturer;
+    public final long mSerial;
+    public final int mRfu;
+
+    // The whole AID, for equality and for getBytes()
+    private final long mHigh;
+    private final long mLow;
+
+    private OpenPgpAid(long high, long low) {
+        mHigh = high;
+        mLow = low;
+        mApplication = (int) (high >>> 16) & 0xFF;
+        mVersionMajor = bcd((int) (high >>> 8) & 0xFF);
+        mVersionMinor = bcd((int) high & 0xFF);
+        mManufacturer = (int) (low >>> 48) & 0xFFFF;
+        mSerial = (low >>> 16) & 0xFFFFFFFFL;
+        mRfu = (int) low & 0xFFFF;
+    }
+
+    /**
+     * Decodes the value of DO 4F.
+     *
+     * @throws IOException if it isn't a 16-byte OpenPGP card AID.
+     */
+    public static OpenPgpAid decode(byte[] aid) throws IOException {
+        if (aid == null || aid.length != LENGTH) {
+            throw new IOException("AID is not " + LENGTH + " bytes long!");
+        }
+        for (int i = 0; i < RID.length; i++) {
+            if (aid[i] != RID[i]) {
+                throw new IOException("Not an OpenPGP card AID!");
+            }
+        }
+        return new OpenPgpAid(getLong(aid, 0), getLong(aid, 8));
+    }
+
+    /** Returns the version as printed by gpg, like "2.1". */
+    public String getVersion() {
+        return mVersionMajor + "." + mVersionMinor;
+    }
+
+    /** Returns the serial number as printed on the card: 8 hex digits. */
+    public String getSerialString() {
+        return String.format("%08X", mSerial);
+    }
+
+    /** Returns true if the AID decodes to these bytes. */
+    public boolean matches(byte[] aid) {
+        return aid != null && aid.length == LENGTH && getLong(aid, 0) == mHigh && getLong(aid, 8) == mLow;
+    }
+
+    public byte[] getBytes() {
+        byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (mHigh >>> (56 - i * 8));
+            bytes[8 + i] = (byte) (mLow >>> (56 - i * 8));
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OpenPgpAid)) {
+            return false;
+        }
+        OpenPgpAid other = (OpenPgpAid) o;
+        return mHigh == other.mHigh && mLow == other.mLow;
+    }
+
+    @Override
+    public int hashCode() {
+        // The serial number does most of the work; the rest is mostly the same across a fleet.
+        long h = mLow * 31 + mHigh;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public String toString() {
+        return ByteUtils.hexString(getBytes());
+    }
+
+    // Spec states that the version is BCD, so 0x10 is 10, not 16.
+    private static int bcd(int value) {
+        return (value >> 4) * 10 + (value & 0x0F);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * The OpenPGP card application, spoken to over a CardTransport.
+ *
+ * Each method sends one logical command, and deals with however the card and the link want
+ * it framed: extended lengths, command chaining, GET RESPONSE and Le corrections. A refusal
+ * from the card is reported as an IOException that names the status word.
+ *
+ * An OpenPgpCard is used by one thread at a time, for the length of one connection.
+ */
+public class OpenPgpCard {
+
+    // Status words
+    public static final int SW_ACCEPTED = 0x9000;
+
+    private final CardTransport mTransport;
+    private final ApduRecorder mRecorder;
+
+    // Reused for every command and response on this connection
+    private final CommandApdu mCommand = new CommandApdu();
+    private final ResponseApdu mResponse = new ResponseApdu();
+    private byte[] mResponseData;
+
+    // How the card wants large APDUs framed. Learned from its historical bytes.
+    private CardCapabilities mCapabilities = CardCapabilities.SHORT_APDUS_ONLY;
+    private boolean mCapabilitiesKnown = false;
+
+    private ChunkedUpload.Listener mUploadListener;
+
+    /**
+     * @param transport The connection to the card.
+     * @param recorder  Where to record each APDU, or null.
+     */
+    public OpenPgpCard(CardTransport transport, ApduRecorder recorder) {
+        mTransport = transport;
+        mRecorder = recorder;
+    }
+
+    public CardTransport getTransport() {
+        return mTransport;
+    }
+
+    /** Returns the card's capabilities, or null if they haven't been learned yet. */
+    public CardCapabilities getCapabilities() {
+        return mCapabilitiesKnown ? mCapabilities : null;
+    }
+
+    /** Tells the card what we already know about it, so its historical bytes needn't be read again. */
+    public void setCapabilities(CardCapabilities capabilities) {
+        mCapabilities = capabilities;
+        mCapabilitiesKnown = true;
+    }
+
+    /** Sets who hears about the progress of writes, or null for no one. */
+    public void setUploadListener(ChunkedUpload.Listener listener) {
+        mUploadListener = listener;
+    }
+
+    public byte[] communicate(byte[] apdu) throws IOException {
+        if (mRecorder == null || !mRecorder.isEnabled()) {
+            return mTransport.transceive(apdu);
+        }
+        byte[] response = null;
+        long start = System.nanoTime();
+        try {
+            response = mTransport.transceive(apdu);
+            return response;
+        } finally {
+            mRecorder.record(apdu, response, System.nanoTime() - start);
+        }
+    }
+
+    /** Selects the OpenPGP application. This has to come first after connecting. */
+    public void select() throws IOException {
+        ResponseApdu response = mResponse.wrap(communicate(OpenPgpCommands.SELECT));
+        if (!response.isAccepted()) {
+            throw statusWordError("Initialization failed!", response);
+        }
+    }
+
+    /**
+     * Returns true if both the link and the card accept extended-length APDUs.
+     */
+    private boolean useExtendedLength() {
+        return mTransport.isExtendedLengthSupported() && mCapabilities.mExtendedLength;
+    }
+
+    /**
+     * Makes sure the card's capabilities are known, reading the historical bytes if they aren't.
+     * This is only needed before a large write; reads can always fall back to GET RESPONSE.
+     */
+    private void ensureCapabilities() throws IOException {
+        if (!mCapabilitiesKnown) {
+            setCapabilities(CardCapabilities.fromHistoricalBytes(getData(DO_HISTORICAL_BYTES)));
+        }
+    }
+
+    /** Returns the status word at the end of a response, or 0 if it is too short to have one. */
+    public static int statusWord(byte[] response) {
+        if (response.length < 2) {
+            return 0;
+        }
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    /** Builds the error for a command the card refused, including the status word it answered with. */
+    static StatusWordException statusWordError(String message, ResponseApdu response) {
+        return new StatusWordException(message, response.getStatusWord());
+    }
+
+    /**
+     * Gets a data object from the card, of any length.
+     * If the card and reader support extended-length APDUs, the whole object is requested in one
+     * APDU. Otherwise the card returns it in parts, which are fetched with GET RESPONSE. If the
+     * card asks for a different Le (6Cxx), the command is repeated with that Le.
+     *
+     * @param dataObject The data object to get.
+     */
+    public byte[] getData(int dataObject) throws IOException {
+        int p1 = (dataObject >> 8) & 0xFF;
+        int p2 = dataObject & 0xFF;
+        byte[] getDataApdu;
+        if (useExtendedLength()) {
+            // Ask for as much as fits through the link in one response; 00 00 means 65536.
+            int le = Math.min(mTransport.getMaxTransceiveLength() - 2, 65536);
+            getDataApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_GET_DATA, p1, p2, null, 0, 0, le, true);
+        } else {
+            getDataApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_GET_DATA, p1, p2, null, 0, 0, 256, false);
+        }
+        ResponseApdu response = mResponse.wrap(communicate(getDataApdu));
+
+        if (response.getSw1() == 0x6C) {
+            byte[] retryApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_GET_DATA, p1, p2, null, 0, 0,
+                    response.getSw2() == 0 ? 256 : response.getSw2(), false);
+            response.wrap(communicate(retryApdu));
+        }
+
+        if (response.getSw1() != 0x61) {
+            if (!response.isAccepted()) {
+                throw statusWordError(String.format("GET DATA %04X failed!", dataObject), response);
+            }
+            return Arrays.copyOf(response.getBytes(), response.getDataLength());
+        }
+
+        // The card sends the rest in parts; collect them before copying out the whole object.
+        int length = 0;
+        do {
+            length = appendResponseData(length, response);
+            byte[] getResponseApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_GET_RESPONSE, 0x00, 0x00,
+                    null, 0, 0, response.getSw2() == 0 ? 256 : response.getSw2(), false);
+            response.wrap(communicate(getResponseApdu));
+        } while (response.getSw1() == 0x61);
+        length = appendResponseData(length, response);
+
+        if (!response.isAccepted()) {
+            throw statusWordError(String.format("GET DATA %04X failed!", dataObject), response);
+        }
+        return Arrays.copyOf(mResponseData, length);
+    }
+
+    private int appendResponseData(int length, ResponseApdu response) {
+        int dataLength = response.getDataLength();
+        if (mResponseData == null) {
+            mResponseData = new byte[Math.max(1024, dataLength)];
+        } else if (length + dataLength > mResponseData.length) {
+            mResponseData = Arrays.copyOf(mResponseData, Math.max(mResponseData.length * 2, length + dataLength));
+        }
+        System.arraycopy(response.getBytes(), 0, mResponseData, length, dataLength);
+        return length + dataLength;
+    }
+
+    /**
+     * Stores a data object on the card, of any length the card accepts. The PIN the card wants
+     * for the object has to have been verified in this session.
+     * Objects over 255 bytes, like the cardholder certificate (0x7F21), are sent in one
+     * extended-length APDU if the card and reader support it, and with command chaining otherwise.
+     *
+     * @param dataObject The data object to be stored.
+     * @param data       The data to store in the object
+     */
+    public void putData(int dataObject, byte[] data) throws IOException {
+        putData(dataObject, data, null);
+    }
+
+    /**
+     * Stores a data object on the card, as above, and records how far the write got. The upload
+     * listener, if any, hears about every chained segment the card acknowledges, or about the
+     * whole object at once when it goes in a single APDU.
+     *
+     * @param upload The progress of this write, kept across taps, or null.
+     */
+    public void putData(int dataObject, byte[] data, ChunkedUpload upload) throws IOException {
+        if (upload != null) {
+            upload.begin();
+        }
+        if (data.length > 255) {
+            ensureCapabilities();
+        }
+
+        int p1 = (dataObject >> 8) & 0xFF;
+        int p2 = dataObject & 0xFF;
+        int maxTransceiveLength = mTransport.getMaxTransceiveLength();
+        byte[] putDataApdu = null;
+        if (data.length <= 255 && data.length + 5 <= maxTransceiveLength) {
+            putDataApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_PUT_DATA, p1, p2, data, 0, data.length, 0, false);
+        } else if (useExtendedLength() && data.length + 7 <= maxTransceiveLength) {
+            putDataApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_PUT_DATA, p1, p2, data, 0, data.length, 0, true);
+        }
+
+        if (putDataApdu != null) {
+            ResponseApdu response = mResponse.wrap(communicate(putDataApdu));
+
+            if (!response.isAccepted()) {
+                throw statusWordError(String.format("PUT DATA %04X failed!", dataObject), response);
+            }
+            if (upload != null) {
+                upload.acknowledge(data.length);
+            }
+            if (mUploadListener != null) {
+                mUploadListener.onProgress(dataObject, data.length, data.length);
+            }
+        } else if (mCapabilities.mCommandChaining) {
+            // Every segment but the last has the chaining bit (0x10) set in CLA.
+            int segmentLength = Math.min(255, maxTransceiveLength - 5);
+            int offset = 0;
+            do {
+                int length = Math.min(segmentLength, data.length - offset);
+                boolean last = offset + length == data.length;
+                byte[] segmentApdu = mCommand.encode(last ? OpenPgpCommands.CLA : OpenPgpCommands.CLA_CHAINING,
+                        OpenPgpCommands.INS_PUT_DATA, p1, p2, data, offset, length, 0, false);
+
+                ResponseApdu response = mResponse.wrap(communicate(segmentApdu));
+
+                if (!response.isAccepted()) {
+                    throw statusWordError(String.format("PUT DATA %04X failed!", dataObject), response);
+                }
+                offset += length;
+                if (upload != null) {
+                    upload.acknowledge(offset);
+                }
+                if (mUploadListener != null) {
+                    mUploadListener.onProgress(dataObject, offset, data.length);
+                }
+            } while (offset < data.length);
+        } else {
+            throw new IOException("Data object is too large for this card!");
+        }
+    }
+
+    /**
+     * Modifies the user's PW1 or PW3.
+     *
+     * @param slot   For PW1, this is 0x81. For PW3 (Admin PIN), mode is 0x83.
+     * @param oldPin The old PW1 or PW3.
+     * @param newPin The new PW1 or PW3.
+     */
+    public void modifyPin(int slot, String oldPin, String newPin) throws IOException {
+        byte[] pins = (oldPin + newPin).getBytes();
+        byte[] changePinApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_CHANGE_REFERENCE_DATA, 0x00, slot,
+                pins, 0, pins.length, 0, false);
+
+        ResponseApdu response = mResponse.wrap(communicate(changePinApdu)); // change PIN
+        if (!response.isAccepted()) {
+            throw statusWordError("CHANGE PIN failed!", response);
+        }
+    }
+
+    /** Verifies the user's PW1 or PW3 with the appropriate mode.
+     *
+     * @param mode For PW1, this is 0x81 for signing, 0x82 for everything else.
+     *             For PW3 (Admin PIN), mode is 0x83.
+     */
+    public void verifyPin(int mode, String pinString) throws IOException {
+        if (pinString != null || mode == 0x83) {
+            if (pinString == null || pinString.length() < 6)
+                throw new IOException("Invalid PIN!");
+            byte[] pin = pinString.getBytes();
+            byte[] verifyPinApdu = mCommand.encode(OpenPgpCommands.CLA, OpenPgpCommands.INS_VERIFY, 0x00, mode,
+                    pin, 0, pin.length, 0, false);
+
+            ResponseApdu response = mResponse.wrap(communicate(verifyPinApdu));
+            if (!response.isAccepted()) {
+                throw statusWordError("Incorrect PIN. Do not attempt again with the same PIN, or you risk locking the card!", response);
+            }
+        }
+    }
+
+}
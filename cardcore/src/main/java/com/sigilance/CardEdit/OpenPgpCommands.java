@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/**
+ * The command bytes of the OpenPGP card application, and the body of the one command that
+ * needs more than a plain encoding: the key import.
+ *
+ * The APDUs themselves are encoded with a CommandApdu, which reuses its buffers. Nothing here
+ * decides how a command should be framed; the caller picks short or extended length, or
+ * splits the data for command chaining, based on what the card and the link support.
+ */
+public final class OpenPgpCommands {
+
+    // CLA byte; the chaining bit is set on every command of a chain but the last.
+    public static final int CLA = 0x00;
+    public static final int CLA_CHAINING = 0x10;
+
+    public static final int INS_SELECT = 0xA4;
+    public static final int INS_VERIFY = 0x20;
+    public static final int INS_CHANGE_REFERENCE_DATA = 0x24;
+    public static final int INS_GET_RESPONSE = 0xC0;
+    public static final int INS_GET_DATA = 0xCA;
+    public static final int INS_PUT_DATA = 0xDA;
+    public static final int INS_PUT_DATA_ODD = 0xDB;
+
+    // P1 P2 of the odd PUT DATA that imports a key
+    public static final int EXTENDED_HEADER_LIST_P1P2 = 0x3FFF;
+
+    // The OpenPGP application identifier, without the manufacturer and serial number
+    static final byte[] OPENPGP_RID_PIX = {(byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01};
+
+    // SELECT never changes, so it is encoded once. Not to be modified.
+    static final byte[] SELECT = new CommandApdu().encode(CLA, INS_SELECT, 0x04, 0x00,
+            OPENPGP_RID_PIX, 0, OPENPGP_RID_PIX.length, 256, false);
+
+    private OpenPgpCommands() {
+    }
+
+    /**
+     * The extended header list (4D) that imports a private key, to be sent with
+     * PUT DATA INS_PUT_DATA_ODD and EXTENDED_HEADER_LIST_P1P2. The private key template (7F48)
+     * lists the tag and length of each key part; the parts themselves follow, concatenated, in
+     * 5F48.
+     *
+     * @param keyReference TAG_KEY_SIGNATURE, TAG_KEY_DECRYPTION or TAG_KEY_AUTHENTICATION.
+     * @param tags         The tags of the key parts, e.g. 91 (e), 92 (p) and 93 (q) for RSA.
+     * @param values       The key parts, in the same order.
+     */
+    public static byte[] extendedHeaderList(int keyReference, int[] tags, byte[][] values) {
+        int keyDataLength = 0;
+        for (byte[] value : values) {
+            keyDataLength += value.length;
+        }
+
+        Iso7816TLVWriter writer = new Iso7816TLVWriter(keyDataLength + 32);
+        writer.begin(OpenPgpDataObjects.DO_EXTENDED_HEADER_LIST)
+                .writeTagAndLength(keyReference, 0)
+                .begin(OpenPgpDataObjects.TAG_PRIVATE_KEY_TEMPLATE);
+        for (int i = 0; i < tags.length; i++) {
+            writer.writeTagAndLength(tags[i], values[i].length);
+        }
+        writer.end().writeTagAndLength(OpenPgpDataObjects.TAG_CONCATENATED_KEY_DATA, keyDataLength);
+        for (byte[] value : values) {
+            writer.writeRaw(value);
+        }
+        return writer.end().toByteArray();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.nio.charset.Charset;
+
+/**
+ * Tags of the OpenPGP card data objects this app reads and writes, and of the fields inside the
+ * composite ones, and how the text ones are encoded. See the OpenPGP card specification 2.0,
+ * section 4.3.
+ */
+public final class OpenPgpDataObjects {
+
+    // DO slots for reading and writing
+    public static final int DO_PRIVATE_1 = 0x0101;
+    public static final int DO_PRIVATE_2 = 0x0102;
+    public static final int DO_PRIVATE_3 = 0x0103;
+    public static final int DO_PRIVATE_4 = 0x0104;
+    public static final int DO_LOGIN_DATA = 0x005E;
+    public static final int DO_URL = 0x5F50;
+    public static final int DO_PW1_STATUS_BYTE = 0x00C4;
+    public static final int DO_CARDHOLDER_CERTIFICATE = 0x7F21;
+
+    // DO slots for reading only
+    public static final int DO_AID = 0x004F;
+    public static final int DO_CARDHOLDER_DATA = 0x0065;
+    public static final int DO_APPLICATION_DATA = 0x006E;
+    public static final int DO_SECURITY_TEMPLATE = 0x007A;
+    public static final int DO_PW_STATUS_BYTES = 0x00C4;
+    public static final int DO_HISTORICAL_BYTES = 0x5F52;
+
+    // DO slots for writing only
+    public static final int DO_NAME = 0x005B;
+    public static final int DO_LANGUAGE = 0x5F2D;
+    public static final int DO_SEX = 0x5F35;
+
+    // Key import: the extended header list (4D), written with PUT DATA DB 3FFF
+    public static final int DO_EXTENDED_HEADER_LIST = 0x004D;
+    public static final int TAG_KEY_SIGNATURE = 0xB6;
+    public static final int TAG_KEY_DECRYPTION = 0xB8;
+    public static final int TAG_KEY_AUTHENTICATION = 0xA4;
+    public static final int TAG_PRIVATE_KEY_TEMPLATE = 0x7F48;
+    public static final int TAG_CONCATENATED_KEY_DATA = 0x5F48;
+
+    // Tags for compound objects
+    public static final int TAG_FINGERPRINTS = 0xC5;
+    public static final int TAG_TIMESTAMPS = 0xCD;
+    public static final int TAG_NAME = 0x005B;
+    public static final int TAG_LANGUAGE = 0x5F2D;
+    public static final int TAG_SEX = 0x5F35;
+    public static final int TAG_SIG_COUNT = 0x93;
+
+    // Encodings of the text DOs. The name is ISO 8859-1, as the specification asks, and the
+    // language and sex are ASCII codes. The specification gives no charset for the URL; it is
+    // written as UTF-8, like any other text the app stores.
+    public static final Charset CHARSET_NAME = Charset.forName("ISO-8859-1");
+    public static final Charset CHARSET_ASCII = Charset.forName("US-ASCII");
+    public static final Charset CHARSET_URL = Charset.forName("UTF-8");
+
+    private OpenPgpDataObjects() {
+    }
+
+}
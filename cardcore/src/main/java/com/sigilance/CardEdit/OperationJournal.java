@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * An append-only journal of the writes queued for each card, one file per card, named after its
+ * AID. A batch cut short by a lost tag or a killed process picks up with only the operations
+ * that didn't go through.
+ *
+ * For every PUT DATA and CHANGE PIN, the journal records that it was queued, that it was about
+ * to be sent, and that the card accepted it. A PUT DATA that wasn't accepted is simply sent
+ * again: writing the same value twice does no harm. A CHANGE PIN is different. PINs are never
+ * written to the journal, and one that was sent but never confirmed may well have gone through,
+ * in which case sending it again with the old PIN uses up a retry. Unfinished PIN changes are
+ * therefore reported instead of replayed.
+ *
+ * The private DOs 0103 and 0104 can only be read with a PIN, so their values don't belong in a
+ * file anyone with the device can read. A write to one of them is journaled without its value,
+ * and like a PIN change, an unfinished one is reported so that the user can enter it again. The
+ * login data is journaled like any other DO: the card hands it out without a PIN, and the
+ * snapshot cache keeps it on the device anyway.
+ *
+ * A file is deleted as soon as nothing in it is left open. A record cut off by a killed process
+ * is dropped the next time the file is read. A file that is damaged in any other way is never
+ * changed; reading it throws instead. Methods may be called from any thread.
+ */
+public class OperationJournal {
+
+    /** What was left unfinished for a card. */
+    public static class Recovery {
+        /** The PUT DATAs that still have to be sent, in the order they were queued. */
+        public final List<PendingOperation> mOperations = new ArrayList<>();
+
+        /** The PIN slots of CHANGE PINs that were sent, but never confirmed by the card. */
+        public final List<Integer> mUnconfirmedPinChanges = new ArrayList<>();
+
+        /** The PIN slots of CHANGE PINs that were queued, but never sent. */
+        public final List<Integer> mUnsentPinChanges = new ArrayList<>();
+
+        /** The protected data objects whose writes weren't confirmed, and whose values weren't kept. */
+        public final List<Integer> mUnfinishedProtectedWrites = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return mOperations.isEmpty() && mUnconfirmedPinChanges.isEmpty() && mUnsentPinChanges.isEmpty()
+                    && mUnfinishedProtectedWrites.isEmpty();
+        }
+    }
+
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x43454A31; // "CEJ1"
+
+    // Record types
+    private static final int RECORD_QUEUED_PUT_DATA = 1;
+    private static final int RECORD_QUEUED_CHANGE_PIN = 2;
+    private static final int RECORD_STARTED = 3;
+    private static final int RECORD_DONE = 4;
+    private static final int RECORD_DROPPED = 5;
+    private static final int RECORD_QUEUED_PROTECTED_PUT_DATA = 6;
+
+    // An operation that was queued, and not yet done or dropped.
+    private static class Entry {
+        final int mType;
+        final int mSlot;
+        final byte[] mData;
+        boolean mStarted = false;
+
+        Entry(int type, int slot, byte[] data) {
+            mType = type;
+            mSlot = slot;
+            mData = data;
+        }
+    }
+
+    // The open entries of one card's file, in the order they were queued.
+    private static class CardJournal {
+        final LinkedHashMap<Long, Entry> mOpen = new LinkedHashMap<>();
+        long mNextId = 1;
+    }
+
+    private final File mDirectory;
+    private final Map<String, CardJournal> mJournals = new HashMap<>();
+
+    /**
+     * @param directory Where to keep the journal files. Created on the first write.
+     */
+    public OperationJournal(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Records that an operation is queued for the card. VERIFY operations and operations that are
+     * already in the journal are ignored.
+     */
+    public synchronized void queued(byte[] aid, PendingOperation operation) throws IOException {
+        if (operation.mJournalId != 0) {
+            return;
+        }
+        Entry entry;
+        if (operation instanceof PendingPutDataOperation && isProtected(operation.getSlot())) {
+            entry = new Entry(RECORD_QUEUED_PROTECTED_PUT_DATA, operation.getSlot(), null);
+        } else if (operation instanceof PendingPutDataOperation) {
+            entry = new Entry(RECORD_QUEUED_PUT_DATA, operation.getSlot(), ((PendingPutDataOperation) operation).getData());
+        } else if (operation instanceof PendingChangePinOperation) {
+            entry = new Entry(RECORD_QUEUED_CHANGE_PIN, operation.getSlot(), null);
+        } else {
+            return;
+        }
+        CardJournal journal = journalFor(aid);
+        long id = journal.mNextId++;
+        append(aid, entry.mType, id, entry, false);
+        journal.mOpen.put(id, entry);
+        operation.mJournalId = id;
+    }
+
+    /**
+     * Records that operations are about to be sent to the card, queueing them first if needed.
+     * The record of a CHANGE PIN reaches the disk before this returns.
+     */
+    public synchronized void started(byte[] aid, List<PendingOperation> operations) throws IOException {
+        for (PendingOperation operation : operations) {
+            queued(aid, operation);
+            Entry entry = openEntry(aid, operation);
+            if (entry != null && !entry.mStarted) {
+                append(aid, RECORD_STARTED, operation.mJournalId, null, entry.mType == RECORD_QUEUED_CHANGE_PIN);
+                entry.mStarted = true;
+            }
+        }
+    }
+
+    /** Records that the card has accepted the operations. */
+    public synchronized void done(byte[] aid, List<PendingOperation> operations) throws IOException {
+        close(aid, operations, RECORD_DONE);
+    }
+
+    /** Records that the operations won't be sent, because the user took them back or they failed. */
+    public synchronized void dropped(byte[] aid, List<PendingOperation> operations) throws IOException {
+        close(aid, operations, RECORD_DROPPED);
+    }
+
+    /**
+     * Returns what was left unfinished for the card. The PUT DATAs come back as new operations
+     * that the journal already knows; the PIN changes and the writes to protected data objects,
+     * which can't be resumed, are closed.
+     *
+     * @param known Operations that are still queued in memory, which are left out.
+     */
+    public synchronized Recovery recover(byte[] aid, List<PendingOperation> known) throws IOException {
+        CardJournal journal = journalFor(aid);
+        HashSet<Long> knownIds = new HashSet<>();
+        for (PendingOperation operation : known) {
+            knownIds.add(operation.mJournalId);
+        }
+        Recovery recovery = new Recovery();
+        ArrayList<PendingOperation> reported = new ArrayList<>();
+        for (Map.Entry<Long, Entry> open : journal.mOpen.entrySet()) {
+            if (knownIds.contains(open.getKey())) {
+                continue;
+            }
+            Entry entry = open.getValue();
+            if (entry.mType == RECORD_QUEUED_PUT_DATA) {
+                PendingOperation operation = new PendingPutDataOperation(entry.mSlot, entry.mData);
+                operation.mJournalId = open.getKey();
+                recovery.mOperations.add(operation);
+            } else if (entry.mType == RECORD_QUEUED_PROTECTED_PUT_DATA) {
+                recovery.mUnfinishedProtectedWrites.add(entry.mSlot);
+                PendingOperation operation = new PendingPutDataOperation(entry.mSlot, new byte[0]);
+                operation.mJournalId = open.getKey();
+                reported.add(operation);
+            } else {
+                (entry.mStarted ? recovery.mUnconfirmedPinChanges : recovery.mUnsentPinChanges).add(entry.mSlot);
+                PendingOperation operation = new PendingChangePinOperation(entry.mSlot, null, null);
+                operation.mJournalId = open.getKey();
+                reported.add(operation);
+            }
+        }
+        close(aid, reported, RECORD_DROPPED);
+        return recovery;
+    }
+
+    private void close(byte[] aid, List<PendingOperation> operations, int type) throws IOException {
+        CardJournal journal = journalFor(aid);
+        for (PendingOperation operation : operations) {
+            if (operation.mJournalId == 0 || !journal.mOpen.containsKey(operation.mJournalId)) {
+                continue;
+            }
+            append(aid, type, operation.mJournalId, null, false);
+            journal.mOpen.remove(operation.mJournalId);
+        }
+        if (journal.mOpen.isEmpty()) {
+            // Nothing left to resume; the next operation starts a new file.
+            fileFor(aid).delete();
+        }
+    }
+
+    private Entry openEntry(byte[] aid, PendingOperation operation) throws IOException {
+        return operation.mJournalId == 0 ? null : journalFor(aid).mOpen.get(operation.mJournalId);
+    }
+
+    private CardJournal journalFor(byte[] aid) throws IOException {
+        String key = ByteUtils.hexString(aid);
+        CardJournal journal = mJournals.get(key);
+        if (journal == null) {
+            journal = read(fileFor(aid));
+            mJournals.put(key, journal);
+        }
+        return journal;
+    }
+
+    // Each record goes out in a single write, so a killed process leaves at most one partial record.
+    private void append(byte[] aid, int type, long id, Entry entry, boolean sync) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        File file = fileFor(aid);
+        if (!file.isFile() || file.length() == 0) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create journal directory!");
+            }
+            record.writeInt(MAGIC);
+        }
+        record.writeByte(type);
+        record.writeLong(id);
+        if (entry != null) {
+            record.writeInt(entry.mSlot);
+        }
+        if (type == RECORD_QUEUED_PUT_DATA) {
+            record.writeInt(entry.mData.length);
+            record.write(entry.mData);
+        }
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(buffer.toByteArray());
+            if (sync) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static CardJournal read(File file) throws IOException {
+        CardJournal journal = new CardJournal();
+        if (!file.isFile()) {
+            return journal;
+        }
+        long good = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an operation journal!");
+            }
+            good = 4;
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                long id = in.readLong();
+                long length = 9;
+                switch (type) {
+                    case RECORD_QUEUED_PUT_DATA:
+                        int slot = in.readInt();
+                        int dataLength = in.readInt();
+                        if (dataLength < 0 || dataLength > 65535) {
+                            throw new IOException("Invalid length in journal!");
+                        }
+                        byte[] data = new byte[dataLength];
+                        in.readFully(data);
+                        journal.mOpen.put(id, new Entry(type, slot, data));
+                        length += 8 + dataLength;
+                        break;
+                    case RECORD_QUEUED_CHANGE_PIN:
+                    case RECORD_QUEUED_PROTECTED_PUT_DATA:
+                        journal.mOpen.put(id, new Entry(type, in.readInt(), null));
+                        length += 4;
+                        break;
+                    case RECORD_STARTED:
+                        Entry entry = journal.mOpen.get(id);
+                        if (entry != null) {
+                            entry.mStarted = true;
+                        }
+                        break;
+                    case RECORD_DONE:
+                    case RECORD_DROPPED:
+                        journal.mOpen.remove(id);
+                        break;
+                    default:
+                        throw new IOException("Invalid record in journal!");
+                }
+                journal.mNextId = Math.max(journal.mNextId, id + 1);
+                good += length;
+            }
+        } catch (EOFException e) {
+            // The process was killed while writing the last record; cut it off, so that the next
+            // record starts where this one did. Any other damage is thrown as it is, and the file
+            // is left alone: it may still hold operations that someone can look into.
+            closeQuietly(in);
+            in = null;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        return journal;
+    }
+
+    private static boolean isProtected(int slot) {
+        return slot == DO_PRIVATE_3 || slot == DO_PRIVATE_4;
+    }
+
+    private File fileFor(byte[] aid) {
+        return new File(mDirectory, ByteUtils.hexString(aid) + SUFFIX);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing useful to do; whatever was read has been read.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/** Changes PW1 (slot 0x81) or PW3 (slot 0x83). */
+public class PendingChangePinOperation extends PendingOperation {
+    private String mOldPin;
+    private String mNewPin;
+
+    public PendingChangePinOperation(int slot, String oldPin, String newPin) {
+        mSlot = slot;
+        mOldPin = oldPin;
+        mNewPin = newPin;
+    }
+
+    public String getOldPin() {
+        return mOldPin;
+    }
+
+    public String getNewPin() {
+        return mNewPin;
+    }
+}
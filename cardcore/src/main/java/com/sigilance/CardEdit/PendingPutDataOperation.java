@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/** Stores new contents for a data object. */
+public class PendingPutDataOperation extends PendingOperation {
+    private byte[] mData;
+    private final ChunkedUpload mUpload;
+
+    public PendingPutDataOperation(int slot, byte[] data) {
+        mSlot = slot;
+        mData = data;
+        mUpload = new ChunkedUpload(slot, data.length);
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /** Returns how far writing the data has got, over every tap so far. */
+    public ChunkedUpload getUpload() {
+        return mUpload;
+    }
+}
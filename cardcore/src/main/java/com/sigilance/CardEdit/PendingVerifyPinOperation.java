@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/** Verifies PW1 or PW3; the slot is the VERIFY mode (0x81, 0x82 or 0x83). */
+public class PendingVerifyPinOperation extends PendingOperation {
+    private String mPin;
+
+    public PendingVerifyPinOperation(int mode, String pin) {
+        mSlot = mode;
+        mPin = pin;
+    }
+
+    public String getPin() {
+        return mPin;
+    }
+
+    public void setPin(String pin) {
+        mPin = pin;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Personalizes a batch of cards from a list of profiles, on all attached readers at once.
+ *
+ * Each reader has its own worker thread. A worker takes the next profile, waits for its reader
+ * to hand over a fresh card, and reads the data objects the profile sets. Only the ones that
+ * don't already hold the profile's values are written, together with any PIN changes, in one
+ * more transaction that reads back what it wrote. Re-running a batch over cards that already
+ * have their profiles costs one read pass and no writes. Profiles go to whichever reader is
+ * free first, so the result of each one records the reader and the AID of the card it ended
+ * up on.
+ *
+ * A card that refuses a write gets a failed result and its profile is not retried; the card
+ * may be half written and needs a look. A reader that can't produce a card at all is dropped
+ * from the batch and its profile goes back to the other readers.
+ */
+public class ProvisioningEngine {
+
+    /** Hears about each card as it is finished. Called on the reader's worker thread. */
+    public interface Listener {
+        void onCardFinished(ProvisioningResult result);
+    }
+
+    /** The results of a batch, in profile order, and how long it took. */
+    public static class Report {
+        public final List<ProvisioningResult> mResults;
+        public final long mElapsedNanos;
+
+        Report(List<ProvisioningResult> results, long elapsedNanos) {
+            mResults = results;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public int getSucceeded() {
+            int succeeded = 0;
+            for (ProvisioningResult result : mResults) {
+                if (result.isSuccess()) {
+                    succeeded++;
+                }
+            }
+            return succeeded;
+        }
+
+        /** Cards successfully personalized per hour of wall-clock time. */
+        public double getCardsPerHour() {
+            return mElapsedNanos > 0 ? getSucceeded() * 3600e9 / mElapsedNanos : 0;
+        }
+
+        public String toString() {
+            return String.format("%d of %d cards in %.1f s, %.0f cards/hour", getSucceeded(), mResults.size(),
+                    mElapsedNanos / 1e9, getCardsPerHour());
+        }
+    }
+
+    private final String mUserPin;
+    private final String mAdminPin;
+    private final ArrayList<String> mReaderNames = new ArrayList<>();
+    private final ArrayList<CardSessionExecutor.TransportFactory> mReaders = new ArrayList<>();
+    private Listener mListener;
+    private boolean mSkipUnchanged = true;
+
+    /**
+     * @param userPin  The user PIN the blank cards come with, e.g. 123456.
+     * @param adminPin The Admin PIN the blank cards come with, e.g. 12345678.
+     */
+    public ProvisioningEngine(String userPin, String adminPin) {
+        mUserPin = userPin;
+        mAdminPin = adminPin;
+    }
+
+    /**
+     * Adds a reader to the pool.
+     *
+     * @param factory Blocks until the next card is in the reader and connects to it. It is called
+     *                again, on the same thread, once the previous card has been closed.
+     */
+    public void addReader(String name, CardSessionExecutor.TransportFactory factory) {
+        mReaderNames.add(name);
+        mReaders.add(factory);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets whether the cards are read first, so that the fields they already hold are not
+     * written again. On by default; turn it off to save the read pass on cards known to be blank.
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        mSkipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Personalizes one card per profile and waits for the whole batch to finish.
+     */
+    public Report run(List<ProvisioningProfile> profiles) throws InterruptedException {
+        if (mReaders.isEmpty()) {
+            throw new IllegalStateException("No readers to provision with!");
+        }
+        final Batch batch = new Batch(profiles);
+        long start = System.nanoTime();
+
+        Thread[] workers = new Thread[mReaders.size()];
+        for (int i = 0; i < workers.length; i++) {
+            final String name = mReaderNames.get(i);
+            final CardSessionExecutor.TransportFactory reader = mReaders.get(i);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(batch, name, reader);
+                }
+            }, "provisioning-" + name);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+
+        // Whatever is left over had no reader to go to.
+        Integer index;
+        while ((index = batch.mQueue.poll()) != null) {
+            ProvisioningResult result = new ProvisioningResult(profiles.get(index));
+            result.mError = new IOException("No reader left to provision this card!");
+            batch.mResults[index] = result;
+        }
+        return new Report(Collections.unmodifiableList(Arrays.asList(batch.mResults)), System.nanoTime() - start);
+    }
+
+    private void work(Batch batch, String name, CardSessionExecutor.TransportFactory reader) {
+        int index;
+        while ((index = batch.take()) >= 0) {
+            ProvisioningProfile profile = batch.mProfiles.get(index);
+            ProvisioningResult result = new ProvisioningResult(profile);
+
+            int[] reads;
+            try {
+                reads = mSkipUnchanged ? CardStateDiff.requiredReads(profile) : null;
+            } catch (IOException e) {
+                // Caught before a card is used up.
+                result.mError = e;
+                finish(batch, index, result);
+                continue;
+            }
+
+            CardTransport transport;
+            try {
+                transport = reader.open();
+            } catch (IOException e) {
+                batch.requeue(index);
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                result.mReader = name;
+                provision(transport, profile, reads, result);
+            } catch (IOException e) {
+                result.mError = e;
+            } catch (RuntimeException e) {
+                result.mError = new IOException("Card operation failed: " + e, e);
+            } finally {
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    // Closing is best effort; the card may already be gone.
+                }
+                result.mElapsedNanos = System.nanoTime() - start;
+            }
+            finish(batch, index, result);
+        }
+    }
+
+    /**
+     * Applies the profile to the card.
+     *
+     * @param reads The data objects to compare with the profile first, or null to write every field.
+     */
+    private void provision(CardTransport transport, ProvisioningProfile profile, int[] reads, ProvisioningResult result)
+            throws IOException {
+        TransactionRunner runner = new TransactionRunner(new OpenPgpCard(transport, null), null, null);
+        CardSnapshot current = null;
+        byte[] aid = null;
+        if (reads != null) {
+            TransactionResult read = runner.run(TransactionPlanner.plan(
+                    Collections.<PendingOperation>emptyList(), false, reads), null, null);
+            result.mTransaction = read;
+            result.mAid = read.mAid;
+            if (read.mError != null) {
+                result.mError = read.mError;
+                return;
+            }
+            current = read.mSnapshot;
+            aid = read.mAid;
+        }
+
+        CardStateDiff diff = CardStateDiff.compute(profile, current, mUserPin, mAdminPin);
+        result.mDiff = diff;
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        // Read back what was written, so the result shows the card as it was left.
+        List<PendingOperation> operations = diff.mOperations;
+        TransactionPlan plan = TransactionPlanner.plan(operations, false, TransactionPlanner.dirtyReads(operations, false));
+        TransactionResult transaction = runner.run(plan, aid, current);
+        result.mTransaction = transaction;
+        result.mAid = transaction.mAid;
+        result.mError = transaction.mError;
+    }
+
+    private void finish(Batch batch, int index, ProvisioningResult result) {
+        batch.finish(index, result);
+        if (mListener != null) {
+            mListener.onCardFinished(result);
+        }
+    }
+
+    /** The profiles of one run, shared by its workers. */
+    private static class Batch {
+        final List<ProvisioningProfile> mProfiles;
+        final ProvisioningResult[] mResults;
+        final ArrayDeque<Integer> mQueue = new ArrayDeque<>();
+        int mInFlight = 0;
+
+        Batch(List<ProvisioningProfile> profiles) {
+            mProfiles = profiles;
+            mResults = new ProvisioningResult[profiles.size()];
+            for (int i = 0; i < profiles.size(); i++) {
+                mQueue.add(i);
+            }
+        }
+
+        /**
+         * Returns the index of the next profile, or -1 when there are none left. While other
+         * workers still have cards in progress it waits, as their reader may fail and give
+         * its profile back.
+         */
+        synchronized int take() {
+            while (mQueue.isEmpty() && mInFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+            if (mQueue.isEmpty()) {
+                return -1;
+            }
+            mInFlight++;
+            return mQueue.poll();
+        }
+
+        synchronized void requeue(int index) {
+            mInFlight--;
+            mQueue.addFirst(index);
+            notifyAll();
+        }
+
+        synchronized void finish(int index, ProvisioningResult result) {
+            mInFlight--;
+            mResults[index] = result;
+            notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * What one card should look like after personalization: the cardholder fields, the signature
+ * PIN policy and new PINs. A field left null is not touched on the card.
+ */
+public class ProvisioningProfile {
+
+    // Values of the sex DO, per ISO/IEC 5218
+    public static final int SEX_UNCHANGED = 0;
+    public static final int SEX_MALE = 0x31;
+    public static final int SEX_FEMALE = 0x32;
+    public static final int SEX_NOT_APPLICABLE = 0x39;
+
+    /** Shown in reports, e.g. an employee number. Not written to the card. */
+    public String mLabel;
+
+    public String mSurname;
+    public String mGivenNames;
+    public String mLanguage;
+    public int mSex = SEX_UNCHANGED;
+    public String mUrl;
+    public String mLoginData;
+
+    /** True if PW1 has to be entered for every signature, false if once per session. */
+    public Boolean mForceSignaturePin;
+
+    // PINs can't be read back, so a PIN change is sent every time the profile is applied.
+    public String mNewUserPin;
+    public String mNewAdminPin;
+
+    /**
+     * Compiles the profile into the same pending operations the app queues when the fields are
+     * edited by hand, encoded the same way. Every field that is set is written; use
+     * CardStateDiff to leave out the ones the card already holds.
+     *
+     * @param userPin  The card's current user PIN, only needed to change it.
+     * @param adminPin The card's current Admin PIN.
+     * @throws IOException if a field cannot be stored on the card.
+     */
+    public List<PendingOperation> toOperations(String userPin, String adminPin) throws IOException {
+        return CardStateDiff.compute(this, null, userPin, adminPin).mOperations;
+    }
+
+    /**
+     * Returns the value to write to each data object the profile sets, in the order they are
+     * written.
+     *
+     * @throws IOException if a field cannot be stored on the card.
+     */
+    public Map<Integer, byte[]> getDataObjects() throws IOException {
+        LinkedHashMap<Integer, byte[]> values = new LinkedHashMap<>();
+        if (mSurname != null || mGivenNames != null) {
+            String surname = mSurname == null ? "" : mSurname.trim().replace(' ', '<');
+            String givenNames = mGivenNames == null ? "" : mGivenNames.trim().replace(' ', '<');
+            byte[] name = (surname + "<<" + givenNames).getBytes(CHARSET_NAME);
+            if (name.length > 39) {
+                throw new IOException("Name is too long!");
+            }
+            values.put(DO_NAME, name);
+        }
+        if (mLanguage != null) {
+            if (mLanguage.length() != 2 && mLanguage.length() != 0) {
+                throw new IOException("Language must be a two-letter ISO 639-1 code!");
+            }
+            values.put(DO_LANGUAGE, mLanguage.toLowerCase().getBytes(CHARSET_ASCII));
+        }
+        if (mSex != SEX_UNCHANGED) {
+            values.put(DO_SEX, new byte[]{(byte) mSex});
+        }
+        if (mUrl != null) {
+            values.put(DO_URL, checkLength("URL", mUrl.getBytes(CHARSET_URL)));
+        }
+        if (mLoginData != null) {
+            values.put(DO_LOGIN_DATA, checkLength("Login data", mLoginData.getBytes()));
+        }
+        if (mForceSignaturePin != null) {
+            values.put(DO_PW1_STATUS_BYTE, new byte[]{(byte) (mForceSignaturePin ? 0 : 1)});
+        }
+        return values;
+    }
+
+    private static byte[] checkLength(String field, byte[] data) throws IOException {
+        if (data.length > 254) {
+            throw new IOException(field + " is too long!");
+        }
+        return data;
+    }
+
+    public String toString() {
+        return mLabel != null ? mLabel : String.valueOf(mSurname);
+    }
+
+}
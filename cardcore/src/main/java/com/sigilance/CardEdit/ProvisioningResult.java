@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+
+/**
+ * The outcome of personalizing one card with a ProvisioningProfile.
+ */
+public class ProvisioningResult {
+
+    public final ProvisioningProfile mProfile;
+
+    /** The reader the card was in, or null if no card was reached. */
+    public String mReader;
+
+    /** The AID of the card that got the profile, or null if no card was reached. */
+    public byte[] mAid;
+
+    /** The last transaction against the card, or null if no card was reached. */
+    public TransactionResult mTransaction;
+
+    /** Which fields had to be written and which the card already held, or null if no card was reached. */
+    public CardStateDiff mDiff;
+
+    /** What went wrong, or null if every field and PIN was written. */
+    public IOException mError;
+
+    /** From connecting to the card to closing it again. */
+    public long mElapsedNanos;
+
+    public ProvisioningResult(ProvisioningProfile profile) {
+        mProfile = profile;
+    }
+
+    public boolean isSuccess() {
+        return mError == null;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append(mProfile);
+        if (mAid != null) {
+            // The serial number, as printed on the card
+            result.append(' ').append(mAid.length >= 14 ? ByteUtils.hexString(mAid, 10, 4) : ByteUtils.hexString(mAid));
+        }
+        if (mReader != null) {
+            result.append(" in ").append(mReader);
+        }
+        if (mError == null) {
+            result.append(String.format(": OK in %d ms", mElapsedNanos / 1000000));
+            if (mDiff != null) {
+                result.append(", ").append(mDiff);
+            }
+        } else if (mTransaction != null && mTransaction.mFailedStep != null) {
+            result.append(": failed at ").append(mTransaction.mFailedStep).append(": ").append(mError.getMessage());
+        } else {
+            result.append(": ").append(mError.getMessage());
+        }
+        return result.toString();
+    }
+
+}
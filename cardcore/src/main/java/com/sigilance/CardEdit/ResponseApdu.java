@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+/**
+ * A response APDU as received from the card: the response data followed by SW1 and SW2.
+ *
+ * This is a view onto the array the transport returned, which is not copied. The data is the
+ * first getDataLength() bytes of getBytes(). One ResponseApdu can be pointed at each response
+ * in turn with wrap().
+ */
+public final class ResponseApdu {
+
+    private byte[] mBytes;
+    private int mLength;
+
+    public ResponseApdu wrap(byte[] response) {
+        return wrap(response, response.length);
+    }
+
+    /** Points the view at the first length bytes of the array. */
+    public ResponseApdu wrap(byte[] response, int length) {
+        mBytes = response;
+        mLength = length;
+        return this;
+    }
+
+    /** Returns the status word, or 0 if the response is too short to have one. */
+    public int getStatusWord() {
+        if (mLength < 2) {
+            return 0;
+        }
+        return ((mBytes[mLength - 2] & 0xFF) << 8) | (mBytes[mLength - 1] & 0xFF);
+    }
+
+    public int getSw1() {
+        return mLength < 2 ? 0 : mBytes[mLength - 2] & 0xFF;
+    }
+
+    public int getSw2() {
+        return mLength < 2 ? 0 : mBytes[mLength - 1] & 0xFF;
+    }
+
+    public boolean isAccepted() {
+        return getStatusWord() == OpenPgpCard.SW_ACCEPTED;
+    }
+
+    /** The array the response is in; the data starts at index 0. */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    public int getDataLength() {
+        return Math.max(mLength - 2, 0);
+    }
+
+}
@@ -0,0 +1,706 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * An in-memory OpenPGP card that answers APDUs without any hardware.
+ *
+ * The simulator implements enough of the OpenPGP card 2.0 command set for this app: SELECT,
+ * GET DATA, PUT DATA, VERIFY and CHANGE REFERENCE DATA, including PIN retry counters and the
+ * access conditions for writing. The composite DOs 0x65, 0x6E and 0x7A are assembled from their
+ * constituent DOs on every read, so writes show up in them just like on a real card.
+ *
+ * APDUs may use short or extended Lc/Le fields and command chaining, each of which can be
+ * switched off to model cards and readers without them. Responses longer than Le are returned
+ * in parts with 61xx and GET RESPONSE.
+ *
+ * For measuring protocol changes, every APDU can be delayed by a fixed latency, and failures can
+ * be injected: a one-shot status word, or losing the tag after a given number of APDUs.
+ */
+public class SimulatedOpenPgpCard implements CardTransport {
+
+    static final int SW_OK = 0x9000;
+    static final int SW_WRONG_LENGTH = 0x6700;
+    static final int SW_LAST_COMMAND_OF_CHAIN_EXPECTED = 0x6883;
+    static final int SW_COMMAND_CHAINING_NOT_SUPPORTED = 0x6884;
+    static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    static final int SW_AUTH_METHOD_BLOCKED = 0x6983;
+    static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    static final int SW_WRONG_DATA = 0x6A80;
+    static final int SW_FILE_NOT_FOUND = 0x6A82;
+    static final int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
+    static final int SW_INCORRECT_P1_P2 = 0x6B00;
+    static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+    private static final int PIN_RETRIES = 3;
+    private static final int MAX_PIN_LENGTH = 0x20;
+    private static final int MAX_CERTIFICATE_LENGTH = 2048;
+
+    private final Map<Integer, byte[]> mDataObjects = new HashMap<>();
+
+    private String mPw1 = "123456";
+    private String mPw3 = "12345678";
+    private int mPw1Retries = PIN_RETRIES;
+    private int mPw3Retries = PIN_RETRIES;
+
+    private boolean mSelected = false;
+    private boolean mPw1Verified81 = false;
+    private boolean mPw1Verified82 = false;
+    private boolean mPw3Verified = false;
+
+    private boolean mExtendedLength = true;
+    private boolean mCommandChaining = true;
+    private int mMaxTransceiveLength = 65546;
+
+    // Command chaining in progress: the header of the chain and the data received so far.
+    private int mChainHeader = -1;
+    private ByteArrayOutputStream mChainData;
+
+    // Response data still waiting to be fetched with GET RESPONSE.
+    private byte[] mPendingResponse;
+    private int mPendingResponseOffset;
+
+    private long mLatencyMillis = 0;
+    private int mApdusUntilTagLoss = -1;
+    private boolean mTagLost = false;
+    private int mInjectedStatusWord = 0;
+    private long mApduCount = 0;
+
+    /**
+     * Creates a blank OpenPGP 2.0 card with the default PINs 123456 and 12345678.
+     *
+     * @param manufacturer The two-byte manufacturer ID that goes into the AID.
+     * @param serial       The four-byte serial number that goes into the AID.
+     */
+    public SimulatedOpenPgpCard(int manufacturer, int serial) {
+        byte[] aid = new byte[16];
+        System.arraycopy(OpenPgpCommands.OPENPGP_RID_PIX, 0, aid, 0, OpenPgpCommands.OPENPGP_RID_PIX.length);
+        aid[6] = 0x02; // version 2.0, BCD
+        aid[7] = 0x00;
+        aid[8] = (byte) (manufacturer >> 8);
+        aid[9] = (byte) manufacturer;
+        aid[10] = (byte) (serial >> 24);
+        aid[11] = (byte) (serial >> 16);
+        aid[12] = (byte) (serial >> 8);
+        aid[13] = (byte) serial;
+
+        mDataObjects.put(DO_AID, aid);
+        mDataObjects.put(DO_NAME, new byte[0]);
+        mDataObjects.put(DO_LANGUAGE, "en".getBytes());
+        mDataObjects.put(DO_SEX, new byte[]{0x39});
+        mDataObjects.put(DO_URL, new byte[0]);
+        mDataObjects.put(DO_LOGIN_DATA, new byte[0]);
+        mDataObjects.put(DO_PRIVATE_1, new byte[0]);
+        mDataObjects.put(DO_PRIVATE_2, new byte[0]);
+        mDataObjects.put(DO_PRIVATE_3, new byte[0]);
+        mDataObjects.put(DO_PRIVATE_4, new byte[0]);
+        mDataObjects.put(DO_CARDHOLDER_CERTIFICATE, new byte[0]);
+        // Extended capabilities: GET CHALLENGE, key import, PW1 status changeable, private DOs.
+        mDataObjects.put(0xC0, new byte[]{0x7C, 0x00, 0x00, (byte) 0xFF, 0x04, (byte) 0xC0, 0x00, (byte) 0xFF, 0x00, (byte) 0xFF});
+        // RSA 2048, e = 32 bits, standard key format, for all three keys.
+        byte[] rsa2048 = {0x01, 0x08, 0x00, 0x00, 0x20, 0x00};
+        mDataObjects.put(0xC1, rsa2048);
+        mDataObjects.put(0xC2, rsa2048.clone());
+        mDataObjects.put(0xC3, rsa2048.clone());
+        mDataObjects.put(0xC6, new byte[60]);
+        mDataObjects.put(0xC7, new byte[20]);
+        mDataObjects.put(0xC8, new byte[20]);
+        mDataObjects.put(0xC9, new byte[20]);
+        mDataObjects.put(0xCE, new byte[4]);
+        mDataObjects.put(0xCF, new byte[4]);
+        mDataObjects.put(0xD0, new byte[4]);
+        mDataObjects.put(TAG_SIG_COUNT, new byte[3]);
+        // PW1 valid for one signature only; the rest of 0xC4 is derived from the PIN state.
+        mDataObjects.put(DO_PW_STATUS_BYTES, new byte[]{0x00});
+    }
+
+    /**
+     * Sets which APDU framing the card and its link accept. The card announces its choice in the
+     * historical bytes; extended APDUs it does not support are rejected with 6700.
+     *
+     * @param extendedLength      Whether extended Lc/Le fields are supported.
+     * @param commandChaining     Whether command chaining (CLA bit 0x10) is supported.
+     * @param maxTransceiveLength The largest command or response APDU the link carries.
+     */
+    public synchronized void setApduFraming(boolean extendedLength, boolean commandChaining, int maxTransceiveLength) {
+        mExtendedLength = extendedLength;
+        mCommandChaining = commandChaining;
+        mMaxTransceiveLength = maxTransceiveLength;
+    }
+
+    /** Sets a fixed delay that is added to every APDU, to model the NFC link. */
+    public synchronized void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Makes the card disappear from the field after the given number of further APDUs. The APDU
+     * after that, and every one after it, throws an IOException until the card is powered up again.
+     */
+    public synchronized void injectTagLoss(int afterApdus) {
+        mApdusUntilTagLoss = afterApdus;
+    }
+
+    /** Answers the next APDU with the given status word instead of processing it. */
+    public synchronized void injectStatusWord(int sw) {
+        mInjectedStatusWord = sw;
+    }
+
+    /**
+     * Simulates the card leaving the field and being tapped again: the application is deselected
+     * and all PIN verifications are forgotten, but the stored data stays.
+     */
+    public synchronized void powerCycle() {
+        mTagLost = false;
+        mApdusUntilTagLoss = -1;
+        mSelected = false;
+        mPw1Verified81 = false;
+        mPw1Verified82 = false;
+        mPw3Verified = false;
+        mChainHeader = -1;
+        mChainData = null;
+        mPendingResponse = null;
+    }
+
+    /**
+     * Returns the answer-to-reset a contact reader would see: T=1, with the same historical bytes
+     * as DO 0x5F52, as the OpenPGP card specification requires.
+     */
+    public synchronized byte[] getAtr() {
+        byte[] historical = historicalBytes();
+        byte[] atr = new byte[4 + historical.length + 1];
+        atr[0] = 0x3B;                                   // TS: direct convention
+        atr[1] = (byte) (0x80 | historical.length);      // T0: TD1 follows, K historical bytes
+        atr[2] = (byte) 0x80;                            // TD1: TD2 follows, T=0
+        atr[3] = 0x01;                                   // TD2: T=1
+        System.arraycopy(historical, 0, atr, 4, historical.length);
+        // TCK makes the XOR of T0 to TCK zero.
+        byte check = 0;
+        for (int i = 1; i < atr.length - 1; i++) {
+            check ^= atr[i];
+        }
+        atr[atr.length - 1] = check;
+        return atr;
+    }
+
+    /** Returns the number of APDUs this card has received, including failed ones. */
+    public synchronized long getApduCount() {
+        return mApduCount;
+    }
+
+    /** Stores a DO directly, bypassing access conditions. Useful for setting up a card's contents. */
+    public synchronized void setDataObject(int tag, byte[] value) {
+        mDataObjects.put(tag, value.clone());
+    }
+
+    public synchronized byte[] getDataObject(int tag) {
+        byte[] value = mDataObjects.get(tag);
+        return value == null ? null : value.clone();
+    }
+
+    @Override
+    public byte[] transceive(byte[] apdu) throws IOException {
+        long latency;
+        synchronized (this) {
+            mApduCount++;
+            latency = mLatencyMillis;
+        }
+
+        // Sleep without holding the lock, so that close() can take the card away meanwhile.
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while talking to card!");
+            }
+        }
+
+        return exchange(apdu);
+    }
+
+    private synchronized byte[] exchange(byte[] apdu) throws IOException {
+        if (mApdusUntilTagLoss == 0) {
+            mApdusUntilTagLoss = -1;
+            mTagLost = true;
+        } else if (mApdusUntilTagLoss > 0) {
+            mApdusUntilTagLoss--;
+        }
+        if (mTagLost) {
+            throw new IOException("Tag was lost.");
+        }
+
+        if (mInjectedStatusWord != 0) {
+            int sw = mInjectedStatusWord;
+            mInjectedStatusWord = 0;
+            return statusWord(sw);
+        }
+
+        if (apdu.length > mMaxTransceiveLength) {
+            throw new IOException("Transceive length exceeds supported maximum");
+        }
+        byte[] response = process(apdu);
+        if (response.length > mMaxTransceiveLength) {
+            throw new IOException("Transceive length exceeds supported maximum");
+        }
+        return response;
+    }
+
+    @Override
+    public synchronized boolean isExtendedLengthSupported() {
+        return mExtendedLength;
+    }
+
+    @Override
+    public synchronized int getMaxTransceiveLength() {
+        return mMaxTransceiveLength;
+    }
+
+    /** Closing the connection takes the card out of the field, until the next powerCycle(). */
+    @Override
+    public synchronized void close() {
+        mTagLost = true;
+        mApdusUntilTagLoss = -1;
+    }
+
+    private byte[] process(byte[] apdu) {
+        if (apdu.length < 4) {
+            return statusWord(SW_WRONG_LENGTH);
+        }
+
+        int cla = apdu[0] & 0xff;
+        int ins = apdu[1] & 0xff;
+        int p1 = apdu[2] & 0xff;
+        int p2 = apdu[3] & 0xff;
+
+        // Case 1 (header only), case 2 (Le), case 3 (Lc data) or case 4 (Lc data Le), each in
+        // short or extended form. An absent Le means no response data; Le 00 (or 00 00) means
+        // the maximum.
+        byte[] data = new byte[0];
+        int le = 0;
+        if (apdu.length == 5) {
+            le = apdu[4] == 0 ? 256 : apdu[4] & 0xff;
+        } else if (apdu.length > 5 && apdu[4] == 0x00 && apdu.length >= 7) {
+            if (!mExtendedLength) {
+                return statusWord(SW_WRONG_LENGTH);
+            }
+            int length = ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+            if (apdu.length == 7) {
+                le = length == 0 ? 65536 : length;
+            } else if (apdu.length == 7 + length || apdu.length == 9 + length) {
+                data = Arrays.copyOfRange(apdu, 7, 7 + length);
+                if (apdu.length == 9 + length) {
+                    int extendedLe = ((apdu[7 + length] & 0xff) << 8) | (apdu[8 + length] & 0xff);
+                    le = extendedLe == 0 ? 65536 : extendedLe;
+                }
+            } else {
+                return statusWord(SW_WRONG_LENGTH);
+            }
+        } else if (apdu.length > 5) {
+            int lc = apdu[4] & 0xff;
+            if (apdu.length == 5 + lc) {
+                le = 0;
+            } else if (apdu.length == 6 + lc) {
+                le = apdu[5 + lc] == 0 ? 256 : apdu[5 + lc] & 0xff;
+            } else {
+                return statusWord(SW_WRONG_LENGTH);
+            }
+            data = Arrays.copyOfRange(apdu, 5, 5 + lc);
+        }
+
+        if ((cla & ~0x10) != 0x00) {
+            return statusWord(SW_CLA_NOT_SUPPORTED);
+        }
+
+        if (ins == OpenPgpCommands.INS_GET_RESPONSE) {
+            return getResponse(le);
+        }
+        mPendingResponse = null;
+
+        // Collect chained command data until the last command of the chain arrives.
+        int header = (ins << 16) | (p1 << 8) | p2;
+        if ((cla & 0x10) != 0) {
+            if (!mCommandChaining) {
+                return statusWord(SW_COMMAND_CHAINING_NOT_SUPPORTED);
+            }
+            if (mChainHeader == -1) {
+                mChainHeader = header;
+                mChainData = new ByteArrayOutputStream();
+            } else if (mChainHeader != header) {
+                mChainHeader = -1;
+                mChainData = null;
+                return statusWord(SW_LAST_COMMAND_OF_CHAIN_EXPECTED);
+            }
+            mChainData.write(data, 0, data.length);
+            return statusWord(SW_OK);
+        }
+        if (mChainHeader != -1) {
+            boolean matches = mChainHeader == header;
+            mChainData.write(data, 0, data.length);
+            data = mChainData.toByteArray();
+            mChainHeader = -1;
+            mChainData = null;
+            if (!matches) {
+                return statusWord(SW_LAST_COMMAND_OF_CHAIN_EXPECTED);
+            }
+        }
+
+        if (ins == OpenPgpCommands.INS_SELECT) {
+            return select(p1, p2, data);
+        }
+        if (!mSelected) {
+            return statusWord(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        switch (ins) {
+            case OpenPgpCommands.INS_GET_DATA:
+                return getData((p1 << 8) | p2, le, apdu.length == 5);
+            case OpenPgpCommands.INS_PUT_DATA:
+                return putData((p1 << 8) | p2, data);
+            case OpenPgpCommands.INS_VERIFY:
+                return verify(p1, p2, data);
+            case OpenPgpCommands.INS_CHANGE_REFERENCE_DATA:
+                return changeReferenceData(p1, p2, data);
+            default:
+                return statusWord(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * Sends response data of at most le bytes. If there is more, the rest is kept for
+     * GET RESPONSE and announced with 61xx. If a short Le was given explicitly and is too small
+     * for data that would fit, the card asks for the exact length with 6Cxx instead.
+     */
+    private byte[] respond(byte[] value, int le, boolean shortLe) {
+        if (le >= value.length) {
+            return response(value, SW_OK);
+        }
+        if (shortLe && le != 256 && value.length <= 256) {
+            return statusWord(0x6C00 | (value.length & 0xff));
+        }
+        mPendingResponse = value;
+        mPendingResponseOffset = 0;
+        return getResponse(le);
+    }
+
+    private byte[] getResponse(int le) {
+        if (mPendingResponse == null) {
+            return statusWord(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        int remaining = mPendingResponse.length - mPendingResponseOffset;
+        int length = Math.min(le, remaining);
+        byte[] chunk = Arrays.copyOfRange(mPendingResponse, mPendingResponseOffset, mPendingResponseOffset + length);
+        mPendingResponseOffset += length;
+        remaining -= length;
+        if (remaining == 0) {
+            mPendingResponse = null;
+            return response(chunk, SW_OK);
+        }
+        return response(chunk, 0x6100 | (remaining > 0xff ? 0x00 : remaining));
+    }
+
+    private byte[] select(int p1, int p2, byte[] data) {
+        if (p1 != 0x04 || p2 != 0x00) {
+            return statusWord(SW_INCORRECT_P1_P2);
+        }
+        if (data.length < OpenPgpCommands.OPENPGP_RID_PIX.length
+                || !Arrays.equals(Arrays.copyOf(data, OpenPgpCommands.OPENPGP_RID_PIX.length), OpenPgpCommands.OPENPGP_RID_PIX)) {
+            return statusWord(SW_FILE_NOT_FOUND);
+        }
+        mSelected = true;
+        mPw1Verified81 = false;
+        mPw1Verified82 = false;
+        mPw3Verified = false;
+        return statusWord(SW_OK);
+    }
+
+    private byte[] getData(int tag, int le, boolean shortLe) {
+        byte[] value;
+        switch (tag) {
+            case DO_CARDHOLDER_DATA:
+                value = cardholderData();
+                break;
+            case DO_APPLICATION_DATA:
+                value = applicationData();
+                break;
+            case DO_SECURITY_TEMPLATE:
+                value = securityTemplate();
+                break;
+            case DO_PW_STATUS_BYTES:
+                value = pwStatusBytes();
+                break;
+            case DO_HISTORICAL_BYTES:
+                value = historicalBytes();
+                break;
+            case DO_PRIVATE_3:
+                if (!mPw1Verified82) {
+                    return statusWord(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                value = mDataObjects.get(tag);
+                break;
+            case DO_PRIVATE_4:
+                if (!mPw3Verified) {
+                    return statusWord(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                value = mDataObjects.get(tag);
+                break;
+            default:
+                value = mDataObjects.get(tag);
+        }
+
+        if (value == null) {
+            return statusWord(SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        return respond(value, le, shortLe);
+    }
+
+    private byte[] putData(int tag, byte[] data) {
+        switch (tag) {
+            case DO_PRIVATE_1:
+            case DO_PRIVATE_3:
+                if (!mPw1Verified82) {
+                    return statusWord(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                break;
+            case DO_PRIVATE_2:
+            case DO_PRIVATE_4:
+            case DO_NAME:
+            case DO_LANGUAGE:
+            case DO_SEX:
+            case DO_URL:
+            case DO_LOGIN_DATA:
+            case DO_CARDHOLDER_CERTIFICATE:
+            case 0xC7:
+            case 0xC8:
+            case 0xC9:
+            case 0xCE:
+            case 0xCF:
+            case 0xD0:
+                if (!mPw3Verified) {
+                    return statusWord(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                break;
+            case DO_PW_STATUS_BYTES:
+                if (!mPw3Verified) {
+                    return statusWord(SW_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                if (data.length != 1 || (data[0] != 0x00 && data[0] != 0x01)) {
+                    return statusWord(SW_WRONG_DATA);
+                }
+                break;
+            default:
+                return statusWord(SW_REFERENCED_DATA_NOT_FOUND);
+        }
+
+        if (data.length > maxLength(tag)) {
+            return statusWord(SW_WRONG_LENGTH);
+        }
+
+        mDataObjects.put(tag, data.clone());
+        return statusWord(SW_OK);
+    }
+
+    private byte[] verify(int p1, int p2, byte[] data) {
+        if (p1 != 0x00 || (p2 != 0x81 && p2 != 0x82 && p2 != 0x83)) {
+            return statusWord(SW_INCORRECT_P1_P2);
+        }
+        boolean admin = p2 == 0x83;
+        int retries = admin ? mPw3Retries : mPw1Retries;
+
+        // A VERIFY without data asks for the verification status without using up a retry.
+        if (data.length == 0) {
+            boolean verified = p2 == 0x81 ? mPw1Verified81 : p2 == 0x82 ? mPw1Verified82 : mPw3Verified;
+            return statusWord(verified ? SW_OK : 0x63C0 | retries);
+        }
+
+        if (retries == 0) {
+            return statusWord(SW_AUTH_METHOD_BLOCKED);
+        }
+        String pin = admin ? mPw3 : mPw1;
+        if (!pin.equals(new String(data))) {
+            return statusWord(0x63C0 | decrementRetries(admin));
+        }
+
+        resetRetries(admin);
+        if (p2 == 0x81) {
+            mPw1Verified81 = true;
+        } else if (p2 == 0x82) {
+            mPw1Verified82 = true;
+        } else {
+            mPw3Verified = true;
+        }
+        return statusWord(SW_OK);
+    }
+
+    private byte[] changeReferenceData(int p1, int p2, byte[] data) {
+        if (p1 != 0x00 || (p2 != 0x81 && p2 != 0x83)) {
+            return statusWord(SW_INCORRECT_P1_P2);
+        }
+        boolean admin = p2 == 0x83;
+        int retries = admin ? mPw3Retries : mPw1Retries;
+        if (retries == 0) {
+            return statusWord(SW_AUTH_METHOD_BLOCKED);
+        }
+
+        // The old and new PIN are simply concatenated; the card splits them at the current length.
+        String pin = admin ? mPw3 : mPw1;
+        String pins = new String(data);
+        if (pins.length() <= pin.length() || !pins.startsWith(pin)) {
+            return statusWord(0x63C0 | decrementRetries(admin));
+        }
+        String newPin = pins.substring(pin.length());
+        if (newPin.length() < (admin ? 8 : 6) || newPin.length() > MAX_PIN_LENGTH) {
+            return statusWord(SW_WRONG_LENGTH);
+        }
+
+        if (admin) {
+            mPw3 = newPin;
+            mPw3Verified = false;
+        } else {
+            mPw1 = newPin;
+            mPw1Verified81 = false;
+            mPw1Verified82 = false;
+        }
+        resetRetries(admin);
+        return statusWord(SW_OK);
+    }
+
+    private int decrementRetries(boolean admin) {
+        if (admin) {
+            mPw3Verified = false;
+            return --mPw3Retries;
+        } else {
+            mPw1Verified81 = false;
+            mPw1Verified82 = false;
+            return --mPw1Retries;
+        }
+    }
+
+    private void resetRetries(boolean admin) {
+        if (admin) {
+            mPw3Retries = PIN_RETRIES;
+        } else {
+            mPw1Retries = PIN_RETRIES;
+        }
+    }
+
+    private static int maxLength(int tag) {
+        switch (tag) {
+            case DO_NAME:
+                return 39;
+            case DO_LANGUAGE:
+                return 8;
+            case DO_SEX:
+                return 1;
+            case DO_CARDHOLDER_CERTIFICATE:
+                return MAX_CERTIFICATE_LENGTH;
+            case 0xC7:
+            case 0xC8:
+            case 0xC9:
+                return 20;
+            case 0xCE:
+            case 0xCF:
+            case 0xD0:
+                return 4;
+            default:
+                return 254;
+        }
+    }
+
+    private byte[] pwStatusBytes() {
+        return new byte[]{
+                mDataObjects.get(DO_PW_STATUS_BYTES)[0],
+                MAX_PIN_LENGTH, MAX_PIN_LENGTH, MAX_PIN_LENGTH,
+                (byte) mPw1Retries, 0x00, (byte) mPw3Retries};
+    }
+
+    private byte[] historicalBytes() {
+        // Category 00, card service data, card capabilities, status indicator 05 90 00.
+        int capabilities = (mCommandChaining ? 0x80 : 0) | (mExtendedLength ? 0x40 : 0);
+        return new byte[]{0x00, 0x31, (byte) 0xC5, 0x73, (byte) 0xC0, 0x01, (byte) capabilities,
+                0x05, (byte) 0x90, 0x00};
+    }
+
+    private byte[] cardholderData() {
+        return new Iso7816TLVWriter()
+                .begin(DO_CARDHOLDER_DATA)
+                .write(DO_NAME, mDataObjects.get(DO_NAME))
+                .write(DO_LANGUAGE, mDataObjects.get(DO_LANGUAGE))
+                .write(DO_SEX, mDataObjects.get(DO_SEX))
+                .end()
+                .toByteArray();
+    }
+
+    private byte[] applicationData() {
+        Iso7816TLVWriter writer = new Iso7816TLVWriter(512);
+        writer.begin(DO_APPLICATION_DATA)
+                .write(DO_AID, mDataObjects.get(DO_AID))
+                .write(DO_HISTORICAL_BYTES, historicalBytes())
+                .begin(0x73)
+                .write(0xC0, mDataObjects.get(0xC0))
+                .write(0xC1, mDataObjects.get(0xC1))
+                .write(0xC2, mDataObjects.get(0xC2))
+                .write(0xC3, mDataObjects.get(0xC3))
+                .write(DO_PW_STATUS_BYTES, pwStatusBytes());
+        writeConcatenated(writer, TAG_FINGERPRINTS, 0xC7, 0xC8, 0xC9);
+        writer.write(0xC6, mDataObjects.get(0xC6));
+        writeConcatenated(writer, TAG_TIMESTAMPS, 0xCE, 0xCF, 0xD0);
+        return writer.end().end().toByteArray();
+    }
+
+    private byte[] securityTemplate() {
+        return new Iso7816TLVWriter()
+                .begin(DO_SECURITY_TEMPLATE)
+                .write(TAG_SIG_COUNT, mDataObjects.get(TAG_SIG_COUNT))
+                .end()
+                .toByteArray();
+    }
+
+    /** Writes the values of several DOs, one after the other, as the value of one tag. */
+    private void writeConcatenated(Iso7816TLVWriter writer, int tag, int... parts) {
+        int length = 0;
+        for (int part : parts) {
+            length += mDataObjects.get(part).length;
+        }
+        writer.writeTagAndLength(tag, length);
+        for (int part : parts) {
+            writer.writeRaw(mDataObjects.get(part));
+        }
+    }
+
+    private static byte[] response(byte[] data, int sw) {
+        byte[] response = Arrays.copyOf(data, data.length + 2);
+        response[data.length] = (byte) (sw >> 8);
+        response[data.length + 1] = (byte) sw;
+        return response;
+    }
+
+    private static byte[] statusWord(int sw) {
+        return new byte[]{(byte) (sw >> 8), (byte) sw};
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only archive of card snapshots, written by SnapshotArchiveWriter and read through a
+ * memory-mapped FileChannel, so that opening it costs nothing however many cards it holds.
+ *
+ * The file has four sections, all big-endian:
+ *
+ * - a 64-byte header: magic "CESA", version, record size, record count, and the offsets of the
+ *   records, the heap and the index.
+ * - one fixed-width record per snapshot: the time it was taken, the 16-byte AID, the three
+ *   20-byte key fingerprints, the three key creation times as u32, the 3-byte signature counter
+ *   and the PW status bytes, plus the offset and length of its strings in the heap.
+ * - the heap: the name, language, sex and URL as UTF-8, the login data and the historical
+ *   bytes, each with a u16 length, 0xFFFF for a missing value.
+ * - the index: the AID and record number of every record, sorted by AID and then by time.
+ *
+ * A card's history is found with a binary search of the index, and only its own records are
+ * decoded. Records can also be read by number, in the order they were appended; getKeys()
+ * decodes the fixed-width fields alone, for scans that don't need the strings.
+ *
+ * An archive may be read from several threads at once.
+ */
+public class SnapshotArchive {
+
+    static final int MAGIC = 0x43455341;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    static final int AID_LENGTH = 16;
+    static final int PW_STATUS_LENGTH = 7;
+    static final int NULL_LENGTH = 0xFFFF;
+
+    static final int OFFSET_TIME = 0;
+    static final int OFFSET_AID = 8;
+    static final int OFFSET_FINGERPRINTS = 24;
+    static final int OFFSET_TIMESTAMPS = 84;
+    static final int OFFSET_SIGNATURE_COUNT = 96;
+    static final int OFFSET_PW_STATUS = 99;
+    static final int OFFSET_HEAP = 108;
+    static final int RECORD_SIZE = 120;
+
+    static final int INDEX_ENTRY_SIZE = AID_LENGTH + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private final int mCount;
+    private final MappedByteBuffer mRecords;
+    private final MappedByteBuffer mHeap;
+    private final MappedByteBuffer mIndex;
+
+    private SnapshotArchive(RandomAccessFile file, int count, MappedByteBuffer records, MappedByteBuffer heap,
+                            MappedByteBuffer index) {
+        mFile = file;
+        mCount = count;
+        mRecords = records;
+        mHeap = heap;
+        mIndex = index;
+    }
+
+    /** Maps an archive written by SnapshotArchiveWriter. */
+    public static SnapshotArchive open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a snapshot archive!");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot archive!");
+            }
+            if (header.getInt() != VERSION || header.getInt() != RECORD_SIZE) {
+                throw new IOException("Unsupported snapshot archive version!");
+            }
+            int count = header.getInt();
+            long recordsOffset = header.getLong();
+            long heapOffset = header.getLong();
+            long heapLength = header.getLong();
+            long indexOffset = header.getLong();
+            long recordsLength = (long) count * RECORD_SIZE;
+            long indexLength = (long) count * INDEX_ENTRY_SIZE;
+            if (count < 0 || recordsOffset < HEADER_SIZE || heapOffset < recordsOffset + recordsLength
+                    || heapLength < 0 || heapLength > Integer.MAX_VALUE || indexOffset < heapOffset + heapLength
+                    || indexLength > Integer.MAX_VALUE || indexOffset + indexLength > size) {
+                throw new IOException("Snapshot archive is truncated or corrupt!");
+            }
+
+            SnapshotArchive archive = new SnapshotArchive(file, count,
+                    channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, recordsLength),
+                    channel.map(FileChannel.MapMode.READ_ONLY, heapOffset, heapLength),
+                    channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength));
+            file = null;
+            return archive;
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /** Returns the number of snapshots in the archive. */
+    public int size() {
+        return mCount;
+    }
+
+    /** Returns when the given record was taken, in milliseconds since the epoch. */
+    public long getTime(int record) {
+        return mRecords.getLong(recordOffset(record) + OFFSET_TIME);
+    }
+
+    /** Returns the AID of the card in the given record. */
+    public byte[] getAid(int record) {
+        return getBytes(mRecords, recordOffset(record) + OFFSET_AID, AID_LENGTH);
+    }
+
+    /**
+     * Returns the fixed-width fields of a record: the AID, the fingerprints, the key creation
+     * times, the signature counter and the PW status bytes. The heap isn't touched.
+     */
+    public CardSnapshot getKeys(int record) {
+        int offset = recordOffset(record);
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.mAid = getBytes(mRecords, offset + OFFSET_AID, AID_LENGTH);
+        snapshot.mFingerprints = getBytes(mRecords, offset + OFFSET_FINGERPRINTS, 60);
+        snapshot.mSigKeyTimestamp = mRecords.getInt(offset + OFFSET_TIMESTAMPS) & 0xFFFFFFFFL;
+        snapshot.mEncKeyTimestamp = mRecords.getInt(offset + OFFSET_TIMESTAMPS + 4) & 0xFFFFFFFFL;
+        snapshot.mAuthKeyTimestamp = mRecords.getInt(offset + OFFSET_TIMESTAMPS + 8) & 0xFFFFFFFFL;
+        snapshot.mSignatureCount = (mRecords.get(offset + OFFSET_SIGNATURE_COUNT) & 0xFF) << 16
+                | (mRecords.get(offset + OFFSET_SIGNATURE_COUNT + 1) & 0xFF) << 8
+                | (mRecords.get(offset + OFFSET_SIGNATURE_COUNT + 2) & 0xFF);
+        int pwStatusLength = mRecords.get(offset + OFFSET_PW_STATUS) & 0xFF;
+        snapshot.mPwStatusBytes = getBytes(mRecords, offset + OFFSET_PW_STATUS + 1, Math.min(pwStatusLength, PW_STATUS_LENGTH));
+        return snapshot;
+    }
+
+    /** Returns the whole snapshot in the given record. */
+    public CardSnapshot get(int record) throws IOException {
+        CardSnapshot snapshot = getKeys(record);
+        int offset = recordOffset(record);
+        int heapOffset = mRecords.getInt(offset + OFFSET_HEAP);
+        int heapLength = mRecords.getInt(offset + OFFSET_HEAP + 4);
+        if (heapOffset < 0 || heapLength < 0 || heapOffset > mHeap.capacity() - heapLength) {
+            throw new IOException("Snapshot archive is corrupt!");
+        }
+        ByteBuffer heap = mHeap.duplicate();
+        heap.position(heapOffset);
+        heap.limit(heapOffset + heapLength);
+        snapshot.mCardholderName = readString(heap);
+        snapshot.mCardholderLanguage = readString(heap);
+        snapshot.mCardholderSex = readString(heap);
+        snapshot.mUrl = readString(heap);
+        snapshot.mLoginData = readBytes(heap);
+        snapshot.mHistoricalBytes = readBytes(heap);
+        return snapshot;
+    }
+
+    /**
+     * Returns the records of the card with the given AID, oldest first, or an empty array if
+     * the archive has none.
+     */
+    public int[] find(byte[] aid) {
+        if (aid.length != AID_LENGTH) {
+            return new int[0];
+        }
+        ByteBuffer key = ByteBuffer.wrap(aid);
+        // The first entry that isn't less than the AID...
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareAid(mIndex, mid * INDEX_ENTRY_SIZE, key, 0) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // ...and the entries after it with the same AID.
+        int end = low;
+        while (end < mCount && compareAid(mIndex, end * INDEX_ENTRY_SIZE, key, 0) == 0) {
+            end++;
+        }
+        int[] records = new int[end - low];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = mIndex.getInt((low + i) * INDEX_ENTRY_SIZE + AID_LENGTH);
+        }
+        return records;
+    }
+
+    /** Returns the newest snapshot of the card with the given AID, or null if there is none. */
+    public CardSnapshot getLatest(byte[] aid) throws IOException {
+        int[] records = find(aid);
+        return records.length > 0 ? get(records[records.length - 1]) : null;
+    }
+
+    /**
+     * Closes the file. The mapping itself is only released once the archive has been garbage
+     * collected, so don't use the archive after closing it.
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /** Compares two AIDs as unsigned bytes. */
+    static int compareAid(ByteBuffer lhs, int lhsOffset, ByteBuffer rhs, int rhsOffset) {
+        for (int i = 0; i < AID_LENGTH; i++) {
+            int l = lhs.get(lhsOffset + i) & 0xFF;
+            int r = rhs.get(rhsOffset + i) & 0xFF;
+            if (l != r) {
+                return l - r;
+            }
+        }
+        return 0;
+    }
+
+    private int recordOffset(int record) {
+        if (record < 0 || record >= mCount) {
+            throw new IndexOutOfBoundsException("No record " + record + " in an archive of " + mCount);
+        }
+        return record * RECORD_SIZE;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer heap) throws IOException {
+        byte[] bytes = readBytes(heap);
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    private static byte[] readBytes(ByteBuffer heap) throws IOException {
+        if (heap.remaining() < 2) {
+            throw new IOException("Snapshot archive is corrupt!");
+        }
+        int length = heap.getShort() & 0xFFFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length > heap.remaining()) {
+            throw new IOException("Snapshot archive is corrupt!");
+        }
+        byte[] bytes = new byte[length];
+        heap.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Writes card snapshots to an archive that SnapshotArchive reads back through a memory map.
+ *
+ * Snapshots are appended in any order, each with the time it was taken. The fixed-width fields
+ * go straight into the record section; the strings go to a side heap, kept in a temporary file
+ * beside the archive until close(). close() then appends the heap, sorts the AID index and
+ * fills in the header, so the archive is only readable once it has been closed.
+ *
+ * To add to an existing archive, write a new one that starts with append(SnapshotArchive).
+ * Methods are synchronized, so several threads may append to one writer.
+ */
+public class SnapshotArchiveWriter {
+
+    private final File mHeapFile;
+    private final RandomAccessFile mArchive;
+    private final FileChannel mChannel;
+    private final OutputStream mHeap;
+    private final ByteArrayOutputStream mBlob = new ByteArrayOutputStream(512);
+    private final DataOutputStream mBlobOut = new DataOutputStream(mBlob);
+    private final ByteBuffer mRecords = ByteBuffer.allocate(SnapshotArchive.RECORD_SIZE * 512);
+    private long mRecordsWritten = SnapshotArchive.HEADER_SIZE;
+    private long mHeapLength = 0;
+    private int mCount = 0;
+    private boolean mClosed = false;
+
+    public SnapshotArchiveWriter(File file) throws IOException {
+        mHeapFile = new File(file.getPath() + ".heap");
+        mArchive = new RandomAccessFile(file, "rw");
+        mArchive.setLength(0);
+        mChannel = mArchive.getChannel();
+        mHeap = new BufferedOutputStream(new FileOutputStream(mHeapFile));
+    }
+
+    /**
+     * Appends a snapshot.
+     *
+     * @param timeMillis When the card was read, in milliseconds since the epoch.
+     * @param snapshot   A complete snapshot of a card with a 16-byte AID.
+     */
+    public synchronized void append(long timeMillis, CardSnapshot snapshot) throws IOException {
+        if (mClosed) {
+            throw new IOException("Archive is closed!");
+        }
+        if (!snapshot.isComplete() || snapshot.mAid.length != SnapshotArchive.AID_LENGTH) {
+            throw new IOException("Snapshot is incomplete!");
+        }
+        if (snapshot.mPwStatusBytes.length > SnapshotArchive.PW_STATUS_LENGTH) {
+            throw new IOException("PW status bytes are too long!");
+        }
+        if ((long) (mCount + 1) * SnapshotArchive.RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("Archive is full!");
+        }
+
+        mBlob.reset();
+        writeString(snapshot.mCardholderName);
+        writeString(snapshot.mCardholderLanguage);
+        writeString(snapshot.mCardholderSex);
+        writeString(snapshot.mUrl);
+        writeBytes(snapshot.mLoginData);
+        writeBytes(snapshot.mHistoricalBytes);
+        long heapOffset = mHeapLength;
+        if (heapOffset + mBlob.size() > Integer.MAX_VALUE) {
+            throw new IOException("Archive is full!");
+        }
+        mBlob.writeTo(mHeap);
+        mHeapLength += mBlob.size();
+
+        if (mRecords.remaining() < SnapshotArchive.RECORD_SIZE) {
+            flushRecords();
+        }
+        // The buffer is reused, so clear the padding left over from earlier records.
+        int start = mRecords.position();
+        for (int i = 0; i < SnapshotArchive.RECORD_SIZE; i++) {
+            mRecords.put(start + i, (byte) 0);
+        }
+        mRecords.putLong(timeMillis);
+        mRecords.put(snapshot.mAid);
+        mRecords.put(snapshot.mFingerprints, 0, 60);
+        mRecords.putInt((int) snapshot.mSigKeyTimestamp);
+        mRecords.putInt((int) snapshot.mEncKeyTimestamp);
+        mRecords.putInt((int) snapshot.mAuthKeyTimestamp);
+        int count = snapshot.mSignatureCount;
+        mRecords.put((byte) (count >> 16));
+        mRecords.put((byte) (count >> 8));
+        mRecords.put((byte) count);
+        mRecords.put((byte) snapshot.mPwStatusBytes.length);
+        mRecords.put(snapshot.mPwStatusBytes);
+        mRecords.position(start + SnapshotArchive.OFFSET_HEAP);
+        mRecords.putInt((int) heapOffset);
+        mRecords.putInt(mBlob.size());
+        mRecords.position(start + SnapshotArchive.RECORD_SIZE);
+        mCount++;
+    }
+
+    /** Appends every snapshot in another archive, with the times they were taken. */
+    public void append(SnapshotArchive archive) throws IOException {
+        for (int i = 0; i < archive.size(); i++) {
+            append(archive.getTime(i), archive.get(i));
+        }
+    }
+
+    /** Returns how many snapshots have been appended. */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /** Writes the heap, the index and the header, and closes the archive. */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            flushRecords();
+            mHeap.close();
+
+            long heapOffset = mRecordsWritten;
+            FileInputStream heap = new FileInputStream(mHeapFile);
+            try {
+                FileChannel source = heap.getChannel();
+                long copied = 0;
+                while (copied < mHeapLength) {
+                    copied += mChannel.transferFrom(source, heapOffset + copied, mHeapLength - copied);
+                }
+            } finally {
+                heap.close();
+            }
+
+            long indexOffset = heapOffset + mHeapLength;
+            writeIndex(indexOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(SnapshotArchive.HEADER_SIZE);
+            header.putInt(SnapshotArchive.MAGIC);
+            header.putInt(SnapshotArchive.VERSION);
+            header.putInt(SnapshotArchive.RECORD_SIZE);
+            header.putInt(mCount);
+            header.putLong(SnapshotArchive.HEADER_SIZE);
+            header.putLong(heapOffset);
+            header.putLong(mHeapLength);
+            header.putLong(indexOffset);
+            header.position(0);
+            writeFully(header, 0);
+            mChannel.force(false);
+        } finally {
+            mArchive.close();
+            mHeapFile.delete();
+        }
+    }
+
+    /** Sorts the records by AID and then by time, and writes the index in that order. */
+    private void writeIndex(long indexOffset) throws IOException {
+        final MappedByteBuffer records = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                SnapshotArchive.HEADER_SIZE, (long) mCount * SnapshotArchive.RECORD_SIZE);
+        Integer[] order = new Integer[mCount];
+        for (int i = 0; i < mCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int l = lhs * SnapshotArchive.RECORD_SIZE;
+                int r = rhs * SnapshotArchive.RECORD_SIZE;
+                int result = SnapshotArchive.compareAid(records, l + SnapshotArchive.OFFSET_AID,
+                        records, r + SnapshotArchive.OFFSET_AID);
+                if (result == 0) {
+                    long lt = records.getLong(l + SnapshotArchive.OFFSET_TIME);
+                    long rt = records.getLong(r + SnapshotArchive.OFFSET_TIME);
+                    result = lt < rt ? -1 : (lt == rt ? 0 : 1);
+                }
+                // Keep the order they were appended in for equal times.
+                return result != 0 ? result : lhs.compareTo(rhs);
+            }
+        });
+
+        ByteBuffer index = ByteBuffer.allocate(SnapshotArchive.INDEX_ENTRY_SIZE * 512);
+        long position = indexOffset;
+        for (int record : order) {
+            if (index.remaining() < SnapshotArchive.INDEX_ENTRY_SIZE) {
+                index.flip();
+                position += writeFully(index, position);
+                index.clear();
+            }
+            int offset = record * SnapshotArchive.RECORD_SIZE + SnapshotArchive.OFFSET_AID;
+            for (int i = 0; i < SnapshotArchive.AID_LENGTH; i++) {
+                index.put(records.get(offset + i));
+            }
+            index.putInt(record);
+        }
+        index.flip();
+        writeFully(index, position);
+    }
+
+    private void flushRecords() throws IOException {
+        mRecords.flip();
+        mRecordsWritten += writeFully(mRecords, mRecordsWritten);
+        mRecords.clear();
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+        return length;
+    }
+
+    private void writeString(String value) throws IOException {
+        writeBytes(value.getBytes("UTF-8"));
+    }
+
+    private void writeBytes(byte[] value) throws IOException {
+        if (value == null) {
+            mBlobOut.writeShort(SnapshotArchive.NULL_LENGTH);
+            return;
+        }
+        if (value.length >= SnapshotArchive.NULL_LENGTH) {
+            throw new IOException("Data object is too long to archive!");
+        }
+        mBlobOut.writeShort(value.length);
+        mBlobOut.write(value);
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+
+/**
+ * A command that reached the card and was refused by it. Unlike a lost tag or a broken reader,
+ * this means the card answered, so a command that changes state is known not to have done so.
+ */
+public class StatusWordException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatusWord;
+
+    public StatusWordException(String message, int statusWord) {
+        super(String.format("%s (SW %04X)", message, statusWord));
+        mStatusWord = statusWord;
+    }
+
+    /** Returns the status word the card answered with. */
+    public int getStatusWord() {
+        return mStatusWord;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered program of card commands for one tap, as compiled by TransactionPlanner.
+ *
+ * Each step carries the pending operations it was compiled from, so that the caller can retire
+ * exactly those operations once the step has gone through.
+ */
+public class TransactionPlan {
+
+    // Step types
+    public static final int STEP_SELECT = 1;
+    public static final int STEP_GET_DATA = 2;
+    public static final int STEP_VERIFY = 3;
+    public static final int STEP_CHANGE_PIN = 4;
+    public static final int STEP_PUT_DATA = 5;
+
+    public static class Step {
+        public final int mType;
+        public final int mSlot;
+        public final byte[] mData;
+        public final String mPin;
+        public final String mNewPin;
+        public final List<PendingOperation> mOperations;
+
+        Step(int type, int slot, byte[] data, String pin, String newPin, List<PendingOperation> operations) {
+            mType = type;
+            mSlot = slot;
+            mData = data;
+            mPin = pin;
+            mNewPin = newPin;
+            mOperations = operations;
+        }
+
+        /**
+         * Returns the progress of a PUT DATA, kept with the operation whose value it writes, or
+         * null for other steps.
+         */
+        public ChunkedUpload getUpload() {
+            // If the DO was edited several times, the value written is the latest edit's.
+            for (int i = mOperations.size() - 1; i >= 0; i--) {
+                PendingOperation operation = mOperations.get(i);
+                if (operation instanceof PendingPutDataOperation) {
+                    return ((PendingPutDataOperation) operation).getUpload();
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            switch (mType) {
+                case STEP_SELECT:
+                    return "SELECT";
+                case STEP_GET_DATA:
+                    return String.format("GET DATA %04X", mSlot);
+                case STEP_VERIFY:
+                    return String.format("VERIFY %02X", mSlot);
+                case STEP_CHANGE_PIN:
+                    return String.format("CHANGE PIN %02X", mSlot);
+                case STEP_PUT_DATA:
+                    return String.format("PUT DATA %04X L %d", mSlot, mData.length);
+                default:
+                    return "unknown step";
+            }
+        }
+    }
+
+    private final ArrayList<Step> mSteps = new ArrayList<>();
+
+    void add(Step step) {
+        mSteps.add(step);
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(mSteps);
+    }
+
+    /** Returns true if the plan contains at least one step of the given type. */
+    public boolean contains(int type) {
+        for (Step step : mSteps) {
+            if (step.mType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Step step : mSteps) {
+            if (result.length() > 0) {
+                result.append('\n');
+            }
+            result.append(step);
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * Compiles the queue of pending operations, plus the data objects to read back, into a single
+ * ordered TransactionPlan before the first APDU goes out.
+ *
+ * The plan always opens with SELECT and a GET DATA of the AID, so the caller can check that the
+ * right card was tapped. After that it issues, in order:
+ *
+ * - every CHANGE PIN, in the order the user asked for them. A VERIFY that follows a change of
+ *   the same PIN is sent with the new PIN.
+ * - at most one VERIFY per mode. A VERIFY is only sent if this tap writes something that needs
+ *   it, or if the PIN has not been confirmed on this card yet.
+ * - one PUT DATA per data object. If a DO was edited several times, only the last value is
+ *   written. Objects too large for a short APDU go after the others, so that a tap that is cut
+ *   short during a long write has already stored the small ones.
+ * - the refresh reads, each DO at most once.
+ *
+ * A plan for a connection that has been held open since an earlier transaction skips the SELECT
+ * and the AID: the application is still selected and the card can't have been swapped without
+ * the connection dropping. It also skips a VERIFY of the Admin PIN that the card already accepted
+ * on that connection.
+ */
+public class TransactionPlanner {
+
+    public static final int PIN_PW1 = 0x81;
+    public static final int PIN_PW3 = 0x83;
+
+    // Everything we read back to show a card.
+    public static final int[] FULL_REFRESH = {DO_APPLICATION_DATA, DO_SECURITY_TEMPLATE,
+            DO_CARDHOLDER_DATA, DO_URL, DO_LOGIN_DATA, DO_PW_STATUS_BYTES};
+
+    // The most data a short PUT DATA APDU carries; larger writes are chained or extended-length.
+    static final int MAX_SHORT_WRITE = 255;
+
+    // What is only read when someone asks for it, and then kept for the session with the card.
+    // The private DOs 0103 and 0104 are read on demand too, but only after a PIN, so they have
+    // to be asked for on their own.
+    public static final int[] ON_DEMAND_READS = {DO_PRIVATE_1, DO_PRIVATE_2, DO_CARDHOLDER_CERTIFICATE};
+
+    /**
+     * Compiles a plan for one tap.
+     *
+     * @param pending      The pending operations, in the order the user queued them. The list
+     *                     is not modified.
+     * @param pw3Verified  Whether the Admin PIN has already been confirmed on this card, in which
+     *                     case it is only re-sent when this tap writes data.
+     * @param refreshReads The data objects to read back at the end of the transaction.
+     */
+    public static TransactionPlan plan(List<PendingOperation> pending, boolean pw3Verified, int[] refreshReads) {
+        return plan(pending, pw3Verified, false, refreshReads);
+    }
+
+    /**
+     * Compiles a plan for a connection that has been kept open since an earlier transaction.
+     *
+     * @param pending      The pending operations, in the order the user queued them. The list
+     *                     is not modified.
+     * @param pw3Verified  Whether the card has accepted the Admin PIN on this connection.
+     * @param refreshReads The data objects to read back at the end of the transaction.
+     */
+    public static TransactionPlan planInSession(List<PendingOperation> pending, boolean pw3Verified,
+                                                int[] refreshReads) {
+        return plan(pending, pw3Verified, true, refreshReads);
+    }
+
+    private static TransactionPlan plan(List<PendingOperation> pending, boolean pw3Verified, boolean inSession,
+                                        int[] refreshReads) {
+        ArrayList<PendingChangePinOperation> changes = new ArrayList<>();
+        Map<Integer, PendingVerifyPinOperation> verifies = new LinkedHashMap<>();
+        Map<Integer, List<PendingOperation>> verifySources = new LinkedHashMap<>();
+        Map<Integer, PendingPutDataOperation> writes = new LinkedHashMap<>();
+        Map<Integer, List<PendingOperation>> writeSources = new LinkedHashMap<>();
+
+        for (PendingOperation operation : pending) {
+            if (operation instanceof PendingChangePinOperation) {
+                changes.add((PendingChangePinOperation) operation);
+            } else if (operation instanceof PendingVerifyPinOperation) {
+                verifies.put(operation.getSlot(), (PendingVerifyPinOperation) operation);
+                addSource(verifySources, operation);
+            } else if (operation instanceof PendingPutDataOperation) {
+                // Re-insert so that the DO is written in the order of its latest edit.
+                writes.remove(operation.getSlot());
+                writes.put(operation.getSlot(), (PendingPutDataOperation) operation);
+                addSource(writeSources, operation);
+            }
+        }
+
+        TransactionPlan plan = new TransactionPlan();
+        if (!inSession) {
+            plan.add(new TransactionPlan.Step(TransactionPlan.STEP_SELECT, 0, null, null, null,
+                    Collections.<PendingOperation>emptyList()));
+            plan.add(new TransactionPlan.Step(TransactionPlan.STEP_GET_DATA, DO_AID, null, null, null,
+                    Collections.<PendingOperation>emptyList()));
+        }
+
+        // CHANGE PIN goes first: it carries its own proof of the old PIN, and any VERIFY for the
+        // same PIN has to use the new one.
+        Map<Integer, String> changedPins = new LinkedHashMap<>();
+        for (PendingChangePinOperation op : changes) {
+            plan.add(new TransactionPlan.Step(TransactionPlan.STEP_CHANGE_PIN, op.getSlot(), null,
+                    op.getOldPin(), op.getNewPin(), Collections.<PendingOperation>singletonList(op)));
+            changedPins.put(op.getSlot(), op.getNewPin());
+        }
+
+        for (PendingVerifyPinOperation op : verifies.values()) {
+            int mode = op.getSlot();
+            boolean needed;
+            if (mode == PIN_PW3 && inSession) {
+                // Changing the Admin PIN may drop the card's verified state, so verify again.
+                needed = !pw3Verified || changedPins.containsKey(PIN_PW3);
+            } else if (mode == PIN_PW3) {
+                needed = !writes.isEmpty() || !pw3Verified;
+            } else {
+                needed = true;
+            }
+            if (!needed) {
+                continue;
+            }
+
+            // VERIFY 0x81 and 0x82 both check PW1.
+            int pinSlot = mode == PIN_PW3 ? PIN_PW3 : PIN_PW1;
+            String pin = changedPins.containsKey(pinSlot) ? changedPins.get(pinSlot) : op.getPin();
+            plan.add(new TransactionPlan.Step(TransactionPlan.STEP_VERIFY, mode, null, pin, null,
+                    verifySources.get(mode)));
+        }
+
+        for (PendingPutDataOperation op : writes.values()) {
+            if (op.getData().length <= MAX_SHORT_WRITE) {
+                plan.add(new TransactionPlan.Step(TransactionPlan.STEP_PUT_DATA, op.getSlot(), op.getData(),
+                        null, null, writeSources.get(op.getSlot())));
+            }
+        }
+        for (PendingPutDataOperation op : writes.values()) {
+            if (op.getData().length > MAX_SHORT_WRITE) {
+                plan.add(new TransactionPlan.Step(TransactionPlan.STEP_PUT_DATA, op.getSlot(), op.getData(),
+                        null, null, writeSources.get(op.getSlot())));
+            }
+        }
+
+        LinkedHashSet<Integer> reads = new LinkedHashSet<>();
+        for (int dataObject : refreshReads) {
+            // The AID has already been read at the start of the transaction.
+            if (dataObject != DO_AID) {
+                reads.add(dataObject);
+            }
+        }
+        for (int dataObject : reads) {
+            plan.add(new TransactionPlan.Step(TransactionPlan.STEP_GET_DATA, dataObject, null, null, null,
+                    Collections.<PendingOperation>emptyList()));
+        }
+
+        return plan;
+    }
+
+    /**
+     * Returns the data objects that the given operations change, as they have to be read back
+     * to bring a card that is already on screen up to date. A field that lives inside a
+     * composite DO, like the name in the cardholder data, is read back through the composite.
+     * PIN operations change the retry counters in the PW status bytes.
+     *
+     * @param pending     The pending operations.
+     * @param pw3Verified Whether the Admin PIN has already been confirmed on this card; if so, a
+     *                    queued VERIFY of it doesn't touch the card's state.
+     */
+    public static int[] dirtyReads(List<PendingOperation> pending, boolean pw3Verified) {
+        LinkedHashSet<Integer> reads = new LinkedHashSet<>();
+        for (PendingOperation operation : pending) {
+            if (operation instanceof PendingPutDataOperation) {
+                int dataObject = containingDataObject(operation.getSlot());
+                if (dataObject != 0) {
+                    reads.add(dataObject);
+                }
+            } else if (operation instanceof PendingChangePinOperation
+                    || (operation instanceof PendingVerifyPinOperation && !(pw3Verified && operation.getSlot() == PIN_PW3))) {
+                reads.add(DO_PW_STATUS_BYTES);
+            }
+        }
+
+        int[] result = new int[reads.size()];
+        int i = 0;
+        for (int dataObject : reads) {
+            result[i++] = dataObject;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the DO to read to see a written DO's new value, or 0 if it isn't one we show.
+     */
+    static int containingDataObject(int dataObject) {
+        switch (dataObject) {
+            case DO_NAME:
+            case DO_LANGUAGE:
+            case DO_SEX:
+                return DO_CARDHOLDER_DATA;
+            case DO_URL:
+            case DO_LOGIN_DATA:
+            case DO_PW1_STATUS_BYTE:
+                return dataObject;
+            default:
+                // The private DOs and the cardholder certificate are only read on demand; the
+                // runner keeps what was written to them instead.
+                return 0;
+        }
+    }
+
+    private static void addSource(Map<Integer, List<PendingOperation>> sources, PendingOperation operation) {
+        List<PendingOperation> list = sources.get(operation.getSlot());
+        if (list == null) {
+            list = new ArrayList<>();
+            sources.put(operation.getSlot(), list);
+        }
+        list.add(operation);
+    }
+
+}
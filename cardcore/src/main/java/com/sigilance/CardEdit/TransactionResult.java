@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What happened while a TransactionPlan ran against the card.
+ *
+ * The plan may stop part way through, so the result records exactly which steps went through,
+ * the data that was read, and the error that stopped it, if any. The caller can then retire
+ * the pending operations that completed and keep the rest for the next tap.
+ */
+public class TransactionResult {
+
+    /** The AID of the card, once it has been read and matched. */
+    public byte[] mAid;
+
+    public final List<TransactionPlan.Step> mCompletedSteps = new ArrayList<>();
+
+    /** Data objects read during the transaction, by tag. */
+    public final Map<Integer, byte[]> mReads = new HashMap<>();
+
+    /** The card as it stands after the transaction; only set if the whole plan went through. */
+    public CardSnapshot mSnapshot;
+
+    /** The step that failed, or null if the failure was outside a step or there was none. */
+    public TransactionPlan.Step mFailedStep;
+
+    public IOException mError;
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+
+/**
+ * Runs a TransactionPlan against a card and records the outcome in a TransactionResult.
+ *
+ * Reads are decoded into a CardSnapshot as they arrive. A card that hasn't been read before
+ * is looked up in the snapshot cache, if there is one, so that the listener can show it while
+ * the card is read. Every data object in the plan is still read from the card: the keys and the
+ * signature counter say nothing about the cardholder data, which may have been edited elsewhere.
+ */
+public class TransactionRunner {
+
+    /** Hears about a cached snapshot of the card while the transaction is still running. */
+    public interface Listener {
+        /** Called on the thread running the transaction, with a copy the listener may keep. */
+        void onCachedSnapshot(CardSnapshot cached);
+    }
+
+    private final OpenPgpCard mCard;
+    private final CardSnapshotCache mCache;
+    private final Listener mListener;
+    private OperationJournal mJournal;
+
+    /**
+     * @param card     The card to run the plan against.
+     * @param cache    Cached snapshots to check first, and to save the result in, or null.
+     * @param listener Told about a cached snapshot as soon as the AID has been read, or null.
+     */
+    public TransactionRunner(OpenPgpCard card, CardSnapshotCache cache, Listener listener) {
+        mCard = card;
+        mCache = cache;
+        mListener = listener;
+    }
+
+    /**
+     * Sets where to record the PUT DATAs and CHANGE PINs as they are sent and accepted, or null.
+     * A step isn't sent if it can't be recorded.
+     */
+    public void setJournal(OperationJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Runs the plan, stopping at the first step that fails. The result records the steps that
+     * went through and the error, if any; the snapshot is only set when the whole plan went through.
+     *
+     * @param expectedAid The AID of the card that should be tapped, or null for any card.
+     * @param base        The card as last read, which the reads are decoded into, or null for
+     *                    a card that hasn't been read yet. It is modified.
+     */
+    public TransactionResult run(TransactionPlan plan, byte[] expectedAid, CardSnapshot base) {
+        TransactionResult result = new TransactionResult();
+        try {
+            run(plan, expectedAid, base, result);
+        } catch (IOException e) {
+            result.mError = e;
+        }
+        return result;
+    }
+
+    private void run(TransactionPlan plan, byte[] expectedAid, CardSnapshot base, TransactionResult result) throws IOException {
+        CardSnapshot snapshot = base != null ? base : new CardSnapshot();
+        if (snapshot.mHistoricalBytes != null && mCard.getCapabilities() == null) {
+            mCard.setCapabilities(CardCapabilities.fromHistoricalBytes(snapshot.mHistoricalBytes));
+        }
+        boolean journaled = false;
+
+        for (TransactionPlan.Step step : plan.getSteps()) {
+            result.mFailedStep = step;
+            if (!journaled && (step.mType == TransactionPlan.STEP_CHANGE_PIN || step.mType == TransactionPlan.STEP_PUT_DATA)) {
+                // Before the first write goes out, the journal learns about all of them.
+                journalQueued(plan, snapshot);
+                journaled = true;
+            }
+            switch (step.mType) {
+                case TransactionPlan.STEP_SELECT:
+                    mCard.select();
+                    break;
+                case TransactionPlan.STEP_GET_DATA:
+                    if (step.mSlot == DO_AID) {
+                        byte[] aid = mCard.getData(DO_AID);
+
+                        // Confirm that they're still tapping the same card.
+                        if (expectedAid != null && !Arrays.equals(aid, expectedAid)) {
+                            throw new IOException("Serial numbers did not match; did you tap a different card?");
+                        }
+                        result.mAid = aid;
+                        snapshot.decode(DO_AID, aid);
+
+                        if (base == null && mCache != null) {
+                            CardSnapshot cached = mCache.load(aid);
+                            if (cached != null && mListener != null) {
+                                mListener.onCachedSnapshot(cached.copy());
+                            }
+                        }
+                    } else {
+                        byte[] data = mCard.getData(step.mSlot);
+                        result.mReads.put(step.mSlot, data);
+                        snapshot.decode(step.mSlot, data);
+                        if (step.mSlot == DO_APPLICATION_DATA && snapshot.mHistoricalBytes != null) {
+                            mCard.setCapabilities(CardCapabilities.fromHistoricalBytes(snapshot.mHistoricalBytes));
+                        }
+                    }
+                    break;
+                case TransactionPlan.STEP_CHANGE_PIN:
+                    journalStarted(step, snapshot);
+                    mCard.modifyPin(step.mSlot, step.mPin, step.mNewPin);
+                    journalDone(step, snapshot);
+                    break;
+                case TransactionPlan.STEP_VERIFY:
+                    mCard.verifyPin(step.mSlot, step.mPin);
+                    break;
+                case TransactionPlan.STEP_PUT_DATA:
+                    journalStarted(step, snapshot);
+                    mCard.putData(step.mSlot, step.mData, step.getUpload());
+                    journalDone(step, snapshot);
+                    if (CardSnapshot.isOnDemand(step.mSlot)) {
+                        // The card returns these just as they were written, so there's no need to read them back.
+                        snapshot.decode(step.mSlot, step.mData);
+                    }
+                    break;
+            }
+            result.mCompletedSteps.add(step);
+        }
+        result.mFailedStep = null;
+        result.mSnapshot = snapshot;
+
+        if (mCache != null && snapshot.isComplete()) {
+            try {
+                mCache.store(snapshot);
+            } catch (IOException e) {
+                // The cache only saves time on the next tap; the card data itself is fine.
+            }
+        }
+    }
+
+    // A held connection has no AID step; its card is the one the snapshot was read from.
+    private void journalQueued(TransactionPlan plan, CardSnapshot snapshot) throws IOException {
+        if (mJournal != null && snapshot.mAid != null) {
+            for (TransactionPlan.Step step : plan.getSteps()) {
+                for (PendingOperation operation : step.mOperations) {
+                    mJournal.queued(snapshot.mAid, operation);
+                }
+            }
+        }
+    }
+
+    private void journalStarted(TransactionPlan.Step step, CardSnapshot snapshot) throws IOException {
+        if (mJournal != null && snapshot.mAid != null) {
+            mJournal.started(snapshot.mAid, step.mOperations);
+        }
+    }
+
+    private void journalDone(TransactionPlan.Step step, CardSnapshot snapshot) {
+        if (mJournal != null && snapshot.mAid != null) {
+            try {
+                mJournal.done(snapshot.mAid, step.mOperations);
+            } catch (IOException e) {
+                // The card took it all the same. The journal is left thinking the step may not
+                // have gone through, which only means a PUT DATA is sent again, or a PIN change
+                // is reported as unconfirmed.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CardSnapshotCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void storesAndLoadsASnapshot() throws IOException {
+        CardSnapshotCache cache = new CardSnapshotCache(mFolder.getRoot(), 4);
+        CardSnapshot snapshot = snapshot(1);
+        cache.store(snapshot);
+
+        CardSnapshot loaded = cache.load(snapshot.mAid);
+        assertNotNull(loaded);
+        assertEquals("Name 1", loaded.mCardholderName);
+        assertArrayEquals(snapshot.mFingerprints, loaded.mFingerprints);
+        assertEquals(Integer.valueOf(7), loaded.mSignatureCount);
+        assertNull(cache.load(snapshot(2).mAid));
+    }
+
+    @Test
+    public void treatsAnUnreadableFileAsAMissAndDeletesIt() throws IOException {
+        CardSnapshotCache cache = new CardSnapshotCache(mFolder.getRoot(), 4);
+        CardSnapshot snapshot = snapshot(1);
+        File file = new File(mFolder.getRoot(), ByteUtils.hexString(snapshot.mAid) + ".snapshot");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        assertNull(cache.load(snapshot.mAid));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void evictsTheOldestCards() throws IOException {
+        CardSnapshotCache cache = new CardSnapshotCache(mFolder.getRoot(), 2);
+        for (int i = 1; i <= 3; i++) {
+            cache.store(snapshot(i));
+            // Eviction goes by modification time, which may only have a one second resolution.
+            new File(mFolder.getRoot(), ByteUtils.hexString(snapshot(i).mAid) + ".snapshot")
+                    .setLastModified(1000000L * i);
+        }
+        cache.store(snapshot(3));
+
+        assertNull(cache.load(snapshot(1).mAid));
+        assertNotNull(cache.load(snapshot(2).mAid));
+        assertNotNull(cache.load(snapshot(3).mAid));
+    }
+
+    private static CardSnapshot snapshot(int serial) {
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.mAid = new SimulatedOpenPgpCard(0x0005, serial).getDataObject(OpenPgpDataObjects.DO_AID);
+        snapshot.mCardholderName = "Name " + serial;
+        snapshot.mCardholderSex = "9";
+        snapshot.mCardholderLanguage = "en";
+        snapshot.mUrl = "";
+        snapshot.mLoginData = new byte[0];
+        snapshot.mPwStatusBytes = new byte[]{0, 0x20, 0x20, 0x20, 3, 0, 3};
+        snapshot.mHistoricalBytes = new byte[]{0x00, 0x73, 0x00, 0x00, (byte) 0xC0};
+        snapshot.mFingerprints = new byte[60];
+        snapshot.mFingerprints[0] = (byte) serial;
+        snapshot.mSignatureCount = 7;
+        return snapshot;
+    }
+
+}
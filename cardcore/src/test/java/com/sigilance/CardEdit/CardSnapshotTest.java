@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CardSnapshotTest {
+
+    @Test
+    public void readsOnlyTheLargeOrPrivateObjectsOnDemand() {
+        int[] onDemand = {DO_PRIVATE_1, DO_PRIVATE_2, DO_PRIVATE_3, DO_PRIVATE_4, DO_CARDHOLDER_CERTIFICATE};
+        for (int dataObject : onDemand) {
+            assertTrue(CardSnapshot.isOnDemand(dataObject));
+        }
+        int[] onTap = {DO_AID, DO_LOGIN_DATA, DO_URL, DO_CARDHOLDER_DATA, DO_APPLICATION_DATA,
+                DO_SECURITY_TEMPLATE};
+        for (int dataObject : onTap) {
+            assertFalse(CardSnapshot.isOnDemand(dataObject));
+        }
+    }
+
+    @Test
+    public void listsWhatHasntBeenRead() throws IOException {
+        CardSnapshot snapshot = new CardSnapshot();
+        int[] wanted = {DO_CARDHOLDER_CERTIFICATE, DO_PRIVATE_2, DO_PRIVATE_1};
+        assertArrayEquals(wanted, snapshot.missing(wanted));
+
+        snapshot.decode(DO_PRIVATE_2, new byte[0]);
+        snapshot.decode(DO_CARDHOLDER_CERTIFICATE, new byte[]{0x30, 0x00});
+        // An empty data object has been read all the same.
+        assertArrayEquals(new byte[0], snapshot.getOnDemand(DO_PRIVATE_2));
+        assertArrayEquals(new int[]{DO_PRIVATE_1}, snapshot.missing(wanted));
+
+        CardSnapshot copy = snapshot.copy();
+        snapshot.clearOnDemand();
+        assertArrayEquals(wanted, snapshot.missing(wanted));
+        assertNull(snapshot.getOnDemand(DO_CARDHOLDER_CERTIFICATE));
+        assertArrayEquals(new int[]{DO_PRIVATE_1}, copy.missing(wanted));
+    }
+
+    @Test
+    public void refusesObjectsReadOnEveryTap() {
+        try {
+            new CardSnapshot().getOnDemand(DO_URL);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CardStateDiffTest {
+
+    private SimulatedOpenPgpCard mCard;
+    private ProvisioningProfile mProfile;
+
+    @Before
+    public void setUp() {
+        mCard = new SimulatedOpenPgpCard(0xFFFE, 1);
+        mProfile = new ProvisioningProfile();
+        mProfile.mSurname = "Müller";
+        mProfile.mGivenNames = "Zoë";
+        mProfile.mLanguage = "de";
+        mProfile.mSex = ProvisioningProfile.SEX_FEMALE;
+        mProfile.mUrl = "https://example.com/müller.asc";
+        mProfile.mLoginData = "zmueller";
+    }
+
+    @Test
+    public void writesEverythingWithoutASnapshot() throws IOException {
+        CardStateDiff diff = CardStateDiff.compute(mProfile, null, "123456", "12345678");
+        assertEquals(5, diff.mWrites.size());
+        assertEquals(0, diff.mUnchanged.size());
+        // VERIFY of the Admin PIN, then the writes
+        assertEquals(6, diff.mOperations.size());
+        assertTrue(diff.mOperations.get(0) instanceof PendingVerifyPinOperation);
+    }
+
+    @Test
+    public void leavesOutWhatTheCardAlreadyHolds() throws IOException {
+        assertEquals(5, provision().mDiff.mWrites.size());
+        assertArrayEquals(new byte[]{'M', (byte) 0xFC, 'l', 'l', 'e', 'r', '<', '<', 'Z', 'o', (byte) 0xEB},
+                mCard.getDataObject(DO_NAME));
+
+        long before = mCard.getApduCount();
+        ProvisioningResult again = provision();
+        assertTrue(again.isSuccess());
+        assertTrue(again.mDiff.isEmpty());
+        assertEquals(5, again.mDiff.mUnchanged.size());
+        // SELECT, the AID, and the cardholder data, URL and login data read to compare with
+        assertEquals(5, mCard.getApduCount() - before);
+    }
+
+    @Test
+    public void writesOnlyTheFieldsThatDiffer() throws IOException {
+        provision();
+        mProfile.mUrl = "https://example.org/";
+
+        CardStateDiff diff = provision().mDiff;
+        assertEquals(Collections.singletonList(DO_URL), diff.mWrites);
+        assertArrayEquals(mProfile.mUrl.getBytes(CHARSET_URL), mCard.getDataObject(DO_URL));
+    }
+
+    @Test
+    public void neverLeavesOutAPinChange() throws IOException {
+        provision();
+        mProfile.mNewUserPin = "654321";
+
+        List<PendingOperation> operations = provision().mDiff.mOperations;
+        assertEquals(1, operations.size());
+        assertTrue(operations.get(0) instanceof PendingChangePinOperation);
+    }
+
+    @Test
+    public void readsTheDataObjectsThatHoldTheProfilesFields() throws IOException {
+        assertArrayEquals(new int[]{DO_CARDHOLDER_DATA, DO_URL, DO_LOGIN_DATA}, CardStateDiff.requiredReads(mProfile));
+    }
+
+    private ProvisioningResult provision() throws IOException {
+        ProvisioningEngine engine = new ProvisioningEngine("123456", "12345678");
+        engine.addReader("reader", new CardSessionExecutor.TransportFactory() {
+            private boolean mUsed;
+
+            @Override
+            public CardTransport open() throws IOException {
+                if (mUsed) {
+                    throw new IOException("Only one card");
+                }
+                mUsed = true;
+                mCard.powerCycle();
+                return mCard;
+            }
+        });
+        try {
+            ProvisioningResult result = engine.run(Collections.singletonList(mProfile)).mResults.get(0);
+            if (result.mError != null) {
+                throw result.mError;
+            }
+            return result;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
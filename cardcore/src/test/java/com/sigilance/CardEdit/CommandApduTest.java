@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CommandApduTest {
+
+    private final CommandApdu mCommand = new CommandApdu();
+    private final byte[] mData = {1, 2, 3};
+
+    @Test
+    public void encodesEachShortCase() {
+        assertEquals("00A40400", hex(0xA4, 0x04, 0x00, null, 0, false));
+        assertEquals("00CA006E00", hex(0xCA, 0x00, 0x6E, null, 256, false));
+        assertEquals("00DA5F5003010203", hex(0xDA, 0x5F, 0x50, mData, 0, false));
+        assertEquals("00A404000301020310", hex(0xA4, 0x04, 0x00, mData, 0x10, false));
+    }
+
+    @Test
+    public void encodesEachExtendedCase() {
+        assertEquals("00CA7F21000000", hex(0xCA, 0x7F, 0x21, null, 65536, true));
+        assertEquals("00CA7F21000800", hex(0xCA, 0x7F, 0x21, null, 2048, true));
+        assertEquals("00DA7F21000003010203", hex(0xDA, 0x7F, 0x21, mData, 0, true));
+        // Lc and Le share the leading 00.
+        assertEquals("00DA7F210000030102030100", hex(0xDA, 0x7F, 0x21, mData, 256, true));
+    }
+
+    @Test
+    public void encodesPartOfTheData() {
+        assertEquals("10DA7F21020203",
+                ByteUtils.hexString(mCommand.encode(0x10, 0xDA, 0x7F, 0x21, mData, 1, 2, 0, false)));
+    }
+
+    @Test
+    public void reusesTheBufferForEachLength() {
+        byte[] first = mCommand.encode(0x00, 0xCA, 0x00, 0x6E, null, 0, 0, 256, false);
+        byte[] second = mCommand.encode(0x00, 0xCA, 0x00, 0x7A, null, 0, 0, 256, false);
+        assertSame(first, second);
+        assertEquals("00CA007A00", ByteUtils.hexString(second));
+        assertNotSame(first, mCommand.encode(0x00, 0xDA, 0x5F, 0x50, mData, 0, mData.length, 0, false));
+
+        byte[] large = new byte[300];
+        byte[] extended = mCommand.encode(0x00, 0xDA, 0x7F, 0x21, large, 0, large.length, 0, true);
+        assertSame(extended, mCommand.encode(0x00, 0xDA, 0x7F, 0x21, large, 0, large.length, 0, true));
+        assertEquals(307, extended.length);
+    }
+
+    private String hex(int ins, int p1, int p2, byte[] data, int le, boolean extended) {
+        int length = data == null ? 0 : data.length;
+        return ByteUtils.hexString(mCommand.encode(0x00, ins, p1, p2, data, 0, length, le, extended));
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.sigilance.CardEdit.FingerprintIndex.KEY_AUTHENTICATION;
+import static com.sigilance.CardEdit.FingerprintIndex.KEY_DECRYPTION;
+import static com.sigilance.CardEdit.FingerprintIndex.KEY_SIGNATURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void findsEachKeyOfACard() {
+        FingerprintIndex index = new FingerprintIndex(3);
+        CardSnapshot card = SnapshotArchiveTest.snapshot(7, 0);
+        index.addCard(card.mAid, card.mFingerprints);
+        assertEquals(3, index.size());
+
+        int[] keys = {KEY_SIGNATURE, KEY_DECRYPTION, KEY_AUTHENTICATION};
+        for (int key : keys) {
+            List<FingerprintIndex.Match> matches = index.find(fingerprint(card, key));
+            assertEquals(1, matches.size());
+            assertEquals(0x0005, matches.get(0).mManufacturer);
+            assertEquals(7, matches.get(0).mSerial);
+            assertEquals(key, matches.get(0).mKey);
+        }
+        assertTrue(index.find(new byte[20]).isEmpty());
+    }
+
+    @Test
+    public void skipsEmptySlotsAndDuplicates() {
+        FingerprintIndex index = new FingerprintIndex(3);
+        CardSnapshot card = SnapshotArchiveTest.snapshot(7, 0);
+        Arrays.fill(card.mFingerprints, 20, 40, (byte) 0);
+        index.addCard(card.mAid, card.mFingerprints);
+        index.addCard(card.mAid, card.mFingerprints);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void reportsEveryCardHoldingAKey() {
+        FingerprintIndex index = new FingerprintIndex(2);
+        CardSnapshot first = SnapshotArchiveTest.snapshot(1, 0);
+        CardSnapshot second = SnapshotArchiveTest.snapshot(2, 0);
+        // The same key imported onto a second card
+        System.arraycopy(first.mFingerprints, 0, second.mFingerprints, 0, 20);
+        index.addCard(first.mAid, first.mFingerprints);
+        index.addCard(second.mAid, second.mFingerprints);
+
+        List<FingerprintIndex.Match> matches = index.find(fingerprint(first, KEY_SIGNATURE));
+        assertEquals(2, matches.size());
+        assertEquals(3, matches.get(0).mSerial + matches.get(1).mSerial);
+    }
+
+    @Test
+    public void growsPastItsExpectedSize() {
+        FingerprintIndex index = new FingerprintIndex(1);
+        for (int serial = 0; serial < 1000; serial++) {
+            CardSnapshot card = uniqueCard(serial);
+            index.addCard(card.mAid, card.mFingerprints);
+        }
+        assertEquals(3000, index.size());
+        for (int serial = 0; serial < 1000; serial++) {
+            CardSnapshot card = uniqueCard(serial);
+            List<FingerprintIndex.Match> matches = index.find(fingerprint(card, KEY_AUTHENTICATION));
+            assertEquals(1, matches.size());
+            assertEquals(serial, matches.get(0).mSerial);
+        }
+    }
+
+    @Test
+    public void indexesAnArchive() throws IOException {
+        File file = mFolder.newFile("fleet.snap");
+        SnapshotArchiveWriter writer = new SnapshotArchiveWriter(file);
+        for (int serial = 0; serial < 10; serial++) {
+            writer.append(serial, SnapshotArchiveTest.snapshot(serial, 0));
+            // A later tap of the same card adds nothing.
+            writer.append(serial + 100, SnapshotArchiveTest.snapshot(serial, 1));
+        }
+        writer.close();
+
+        SnapshotArchive archive = SnapshotArchive.open(file);
+        try {
+            FingerprintIndex index = FingerprintIndex.fromArchive(archive);
+            assertEquals(30, index.size());
+            CardSnapshot card = SnapshotArchiveTest.snapshot(4, 0);
+            assertEquals("0005 00000004 decryption key",
+                    index.find(fingerprint(card, KEY_DECRYPTION)).get(0).toString());
+        } finally {
+            archive.close();
+        }
+    }
+
+    /** A card whose fingerprints carry its serial number, so that no two cards share a key. */
+    private static CardSnapshot uniqueCard(int serial) {
+        CardSnapshot card = SnapshotArchiveTest.snapshot(serial, 0);
+        for (int key = 0; key < 3; key++) {
+            card.mFingerprints[key * 20] = (byte) (serial >> 8);
+            card.mFingerprints[key * 20 + 1] = (byte) serial;
+        }
+        return card;
+    }
+
+    private static byte[] fingerprint(CardSnapshot card, int key) {
+        return Arrays.copyOfRange(card.mFingerprints, key * 20, key * 20 + 20);
+    }
+
+}
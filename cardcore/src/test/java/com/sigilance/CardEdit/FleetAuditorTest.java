@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FleetAuditorTest {
+
+    private ArrayDeque<SimulatedOpenPgpCard> mCards;
+    private ByteArrayOutputStream mOut;
+
+    @Before
+    public void setUp() {
+        mCards = new ArrayDeque<>();
+        for (int i = 1; i <= 4; i++) {
+            SimulatedOpenPgpCard card = new SimulatedOpenPgpCard(0x0005, i);
+            card.setDataObject(DO_NAME, ("Holder<<Card<" + i).getBytes(CHARSET_NAME));
+            mCards.add(card);
+        }
+        mOut = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void writesOneLinePerCard() throws Exception {
+        FleetAuditor auditor = new FleetAuditor();
+        auditor.addReader("reader 1", cards());
+        auditor.addReader("reader 2", cards());
+
+        FleetAuditor.Report report = auditor.run(0, new AuditWriter(mOut, AuditWriter.FORMAT_JSONL, false));
+        assertEquals(4, report.mAudited);
+        assertEquals(0, report.mFailed);
+
+        String[] lines = output().split("\n");
+        assertEquals(4, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("{\"time\":\""));
+            assertTrue(line, line.contains("\"manufacturer\":\"0005\""));
+            assertTrue(line, line.contains("\"name\":\"Holder<<Card<"));
+            assertTrue(line, line.contains("\"signature_count\":0,"));
+            assertTrue(line, line.endsWith("\"error\":null}"));
+        }
+    }
+
+    @Test
+    public void stopsAfterTheRequestedNumberOfCards() throws Exception {
+        FleetAuditor auditor = new FleetAuditor();
+        auditor.addReader("reader", cards());
+
+        assertEquals(2, auditor.run(2, new AuditWriter(mOut, AuditWriter.FORMAT_CSV, false)).mAudited);
+        String[] lines = output().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("time,reader,aid,"));
+        assertEquals(2, mCards.size());
+    }
+
+    @Test
+    public void keepsWhatWasReadBeforeTheCardWasLost() throws Exception {
+        // SELECT, the AID and 6E go through; the card is gone before 7A.
+        mCards.peekFirst().injectTagLoss(3);
+        FleetAuditor auditor = new FleetAuditor();
+        auditor.addReader("reader", cards());
+
+        FleetAuditor.Report report = auditor.run(1, new AuditWriter(mOut, AuditWriter.FORMAT_JSONL, true));
+        assertEquals(1, report.mFailed);
+        String line = output();
+        assertTrue(line, line.contains("\"sig_fingerprint\":\"0000"));
+        assertTrue(line, line.contains("\"signature_count\":null,"));
+        assertTrue(line, line.contains("\"error\":\"GET DATA 007A: Tag was lost.\""));
+        assertTrue(line, line.contains("\"raw\":{\"004F\":"));
+        assertTrue(line, !line.contains("\"007A\""));
+    }
+
+    @Test
+    public void quotesTextFields() throws IOException {
+        AuditRecord record = new AuditRecord();
+        record.mSnapshot = new CardSnapshot();
+        record.mSnapshot.mCardholderName = "Say \"hi\", Joey";
+        record.mError = new EOFException();
+
+        AuditWriter writer = new AuditWriter(mOut, AuditWriter.FORMAT_CSV, false);
+        writer.write(record);
+        writer.close();
+        String row = output().split("\n")[1];
+        assertTrue(row, row.contains(",\"Say \"\"hi\"\", Joey\","));
+        assertTrue(row, row.endsWith(",java.io.EOFException"));
+
+        mOut.reset();
+        writer = new AuditWriter(mOut, AuditWriter.FORMAT_JSONL, false);
+        writer.write(record);
+        writer.close();
+        assertTrue(output(), output().contains("\"name\":\"Say \\\"hi\\\", Joey\""));
+        assertTrue(output(), output().contains("\"signature_count\":null,"));
+    }
+
+    private CardSessionExecutor.TransportFactory cards() {
+        return new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() throws IOException {
+                synchronized (mCards) {
+                    if (mCards.isEmpty()) {
+                        throw new IOException("Out of cards");
+                    }
+                    return mCards.poll();
+                }
+            }
+        };
+    }
+
+    private String output() throws IOException {
+        return mOut.toString("UTF-8");
+    }
+
+}
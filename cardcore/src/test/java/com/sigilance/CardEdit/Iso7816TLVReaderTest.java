@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import static com.sigilance.CardEdit.Iso7816TLVReader.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Iso7816TLVReaderTest {
+
+    // 65 { 5B "Joey", 73 { 5F35 "9" } }, filler, 5E "joey"
+    private static final byte[] DATA = ByteUtils.fromHexString(
+            "650C5B044A6F65797304" + "5F350139" + "00FF" + "5E046A6F6579");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void reportsEachPacketInOrder() throws IOException {
+        Iso7816TLVReader reader = new Iso7816TLVReader(ByteBuffer.wrap(DATA));
+        assertEvents(reader);
+    }
+
+    @Test
+    public void readsFromAChannelThroughASmallBuffer() throws IOException {
+        Iso7816TLVReader reader = new Iso7816TLVReader(Channels.newChannel(new ByteArrayInputStream(DATA)), 16);
+        assertEvents(reader);
+    }
+
+    @Test
+    public void skipsValuesAndWholeComposites() throws IOException {
+        Iso7816TLVReader reader = new Iso7816TLVReader(Channels.newChannel(new ByteArrayInputStream(DATA)), 16);
+        assertEquals(START_COMPOSITE, reader.next());
+        reader.skip();
+        assertEquals(PRIMITIVE, reader.next());
+        assertEquals(0x5E, reader.getTag());
+        assertEquals(16, reader.getPacketOffset());
+        assertEquals(0, reader.getDepth());
+        // A value that isn't read is skipped by the next call.
+        assertEquals(END_OF_INPUT, reader.next());
+    }
+
+    @Test
+    public void seeksPastValuesInAFile() throws IOException {
+        // 5F50 with 300 bytes of value, far more than the buffer holds, then 5E "joey"
+        byte[] data = new byte[5 + 300 + 6];
+        System.arraycopy(ByteUtils.fromHexString("5F5082012C"), 0, data, 0, 5);
+        System.arraycopy(ByteUtils.fromHexString("5E046A6F6579"), 0, data, 305, 6);
+        File file = mFolder.newFile("packets.tlv");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            Iso7816TLVReader reader = new Iso7816TLVReader(channel, 16);
+            assertEquals(PRIMITIVE, reader.next());
+            assertEquals(0x5F50, reader.getTag());
+            assertEquals(PRIMITIVE, reader.next());
+            assertEquals(0x5E, reader.getTag());
+            assertEquals(305, reader.getPacketOffset());
+            assertEquals(END_OF_INPUT, reader.next());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void failsOnTruncatedInput() throws IOException {
+        Iso7816TLVReader reader = new Iso7816TLVReader(ByteBuffer.wrap(DATA, 0, 12));
+        assertEquals(START_COMPOSITE, reader.next());
+        assertEquals(PRIMITIVE, reader.next());
+        assertEquals(START_COMPOSITE, reader.next());
+        try {
+            reader.next();
+            fail();
+        } catch (IOException e) {
+            assertEquals("TLV data truncated!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void failsOnAChildLongerThanItsParent() throws IOException {
+        Iso7816TLVReader reader = new Iso7816TLVReader(ByteBuffer.wrap(ByteUtils.fromHexString("65035B044A6F6579")));
+        assertEquals(START_COMPOSITE, reader.next());
+        try {
+            reader.next();
+            fail();
+        } catch (IOException e) {
+            assertEquals("TLV data truncated!", e.getMessage());
+        }
+    }
+
+    private static void assertEvents(Iso7816TLVReader reader) throws IOException {
+        assertEquals(START_COMPOSITE, reader.next());
+        assertEquals(0x65, reader.getTag());
+        assertEquals(12, reader.getLength());
+        assertEquals(1, reader.getDepth());
+
+        assertEquals(PRIMITIVE, reader.next());
+        assertEquals(0x5B, reader.getTag());
+        assertArrayEquals("Joey".getBytes(), reader.getValue());
+
+        assertEquals(START_COMPOSITE, reader.next());
+        assertEquals(0x73, reader.getTag());
+        assertEquals(PRIMITIVE, reader.next());
+        assertEquals(0x5F35, reader.getTag());
+        assertEquals(2, reader.getDepth());
+        byte[] sex = new byte[3];
+        reader.readValue(sex, 1);
+        assertEquals(0x39, sex[1]);
+        assertEquals(END_COMPOSITE, reader.next());
+        assertEquals(0x73, reader.getTag());
+        assertEquals(END_COMPOSITE, reader.next());
+        assertEquals(0x65, reader.getTag());
+
+        assertEquals(PRIMITIVE, reader.next());
+        assertEquals(0x5E, reader.getTag());
+        assertEquals(16, reader.getPacketOffset());
+        assertArrayEquals("joey".getBytes(), reader.getValue());
+        assertEquals(END_OF_INPUT, reader.next());
+    }
+
+}
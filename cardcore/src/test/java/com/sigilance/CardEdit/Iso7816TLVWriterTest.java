@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Iso7816TLVWriterTest {
+
+    @Test
+    public void writesPrimitivePackets() {
+        Iso7816TLVWriter writer = new Iso7816TLVWriter();
+        writer.write(0x5B, "Joey".getBytes()).write(0x5F2D, "en".getBytes(), 0, 2);
+        assertEquals("5B044A6F65795F2D02656E", ByteUtils.hexString(writer.toByteArray()));
+    }
+
+    @Test
+    public void patchesTheLengthOfNestedComposites() throws IOException {
+        Iso7816TLVWriter writer = new Iso7816TLVWriter(16);
+        writer.begin(0x65)
+                .write(0x5B, "Joey".getBytes())
+                .begin(0x73).write(0x5F35, new byte[]{0x39}).end()
+                .end();
+        byte[] encoded = writer.toByteArray();
+        assertEquals("650C5B044A6F65797304" + "5F350139", ByteUtils.hexString(encoded));
+        assertEquals(0x39, new Iso7816TagIndex(Iso7816TLVView.readSingle(encoded)).find(0x5F35).getByte(0));
+    }
+
+    @Test
+    public void movesTheValueUpForLongLengths() throws IOException {
+        for (int length : new int[]{0x7F, 0x80, 0xFF, 0x100, 0x1234}) {
+            byte[] value = new byte[length];
+            value[length - 1] = 0x55;
+            Iso7816TLVWriter writer = new Iso7816TLVWriter(16);
+            byte[] encoded = writer.begin(0x7F21).write(0x04, value).end().toByteArray();
+
+            Iso7816TLVView root = Iso7816TLVView.readSingle(encoded);
+            assertEquals(encoded.length, root.getValueOffset() + root.mL);
+            assertArrayEquals(value, root.getSubs()[0].getValue());
+        }
+    }
+
+    @Test
+    public void writesTheKeyImportHeaderList() {
+        byte[] e = {0x01, 0x00, 0x01};
+        byte[] p = new byte[128];
+        byte[] list = OpenPgpCommands.extendedHeaderList(OpenPgpDataObjects.TAG_KEY_SIGNATURE,
+                new int[]{0x91, 0x92}, new byte[][]{e, p});
+
+        // 4D is a primitive tag, so its value is checked byte for byte.
+        assertEquals("4D8191" + "B600" + "7F48059103928180" + "5F488183" + "010001",
+                ByteUtils.hexString(list, 0, 20));
+        assertEquals(3 + 0x91, list.length);
+    }
+
+    @Test
+    public void reusesTheBufferAfterReset() {
+        Iso7816TLVWriter writer = new Iso7816TLVWriter();
+        writer.begin(0x65);
+        writer.reset();
+        byte[] buffer = writer.getBuffer();
+        writer.write(0x5E, "joey".getBytes());
+        assertEquals(6, writer.length());
+        assertEquals(buffer, writer.getBuffer());
+    }
+
+    @Test
+    public void refusesUnbalancedComposites() {
+        Iso7816TLVWriter writer = new Iso7816TLVWriter();
+        try {
+            writer.end();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        writer.begin(0x65);
+        try {
+            writer.toByteArray();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Iso7816TagIndexTest {
+
+    // 65 { 5B "Joey", 5F2D "en", 5F35 "9", 73 { 5B "Nested" } }
+    private static final byte[] CARDHOLDER_DATA = ByteUtils.fromHexString(
+            "6519" + "5B044A6F6579" + "5F2D02656E" + "5F350139" + "7308" + "5B064E6573746564");
+
+    @Test
+    public void viewsValuesInPlace() throws IOException {
+        Iso7816TLVView root = Iso7816TLVView.readSingle(CARDHOLDER_DATA);
+        assertEquals(0x65, root.mT);
+        assertTrue(root.mComposite);
+        assertSame(CARDHOLDER_DATA, root.getBuffer());
+
+        Iso7816TLVView[] subs = root.getSubs();
+        assertEquals(4, subs.length);
+        assertEquals("Joey", subs[0].getString());
+        assertEquals(0x5F2D, subs[1].mT);
+        assertTrue(subs[1].valueEquals("en".getBytes()));
+        assertEquals(0x39, subs[2].getByte(0));
+    }
+
+    @Test
+    public void rejectsALengthPastTheEnd() {
+        try {
+            Iso7816TLVView.readSingle(ByteUtils.fromHexString("5B054A6F6579"));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void findsTheFirstOccurrenceLikeFindRecursive() throws IOException {
+        Iso7816TLVView root = Iso7816TLVView.readSingle(CARDHOLDER_DATA);
+        Iso7816TagIndex index = new Iso7816TagIndex(root);
+
+        assertEquals(root.findRecursive(0x5B).getValueOffset(), index.find(0x5B).getValueOffset());
+        assertEquals("Joey", index.find(0x5B).getString());
+        assertNull(index.find(0x5F50));
+        assertTrue(index.contains(0x73));
+
+        Iso7816TLVView[] fields = index.find(0x5B, 0x5F35, 0x5F50);
+        assertEquals("Joey", fields[0].getString());
+        assertEquals("9", fields[1].getString());
+        assertNull(fields[2]);
+    }
+
+    @Test
+    public void findsEveryOccurrenceInOrder() throws IOException {
+        Iso7816TagIndex index = new Iso7816TagIndex(Iso7816TLVView.readSingle(CARDHOLDER_DATA));
+
+        Iso7816TLVView[] names = index.findAll(0x5B);
+        assertEquals(2, names.length);
+        assertEquals("Joey", names[0].getString());
+        assertEquals("Nested", names[1].getString());
+        assertEquals(0, index.findAll(0x5F50).length);
+        assertArrayEquals(index.find(0x5B).getValue(), names[0].getValue());
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeepAliveSessionTest {
+
+    private static final int[] NO_READS = {};
+
+    private SimulatedOpenPgpCard mSimulator;
+    private OpenPgpCard mCard;
+    private CardSnapshot mSnapshot;
+    private KeepAliveSession mSession;
+
+    @Before
+    public void setUp() {
+        mSimulator = new SimulatedOpenPgpCard(0xFFFE, 1);
+        mCard = new OpenPgpCard(mSimulator, null);
+        TransactionResult first = new TransactionRunner(mCard, null, null).run(TransactionPlanner.plan(
+                new ArrayList<PendingOperation>(), false, TransactionPlanner.FULL_REFRESH), null, null);
+        mSnapshot = first.mSnapshot;
+        mSession = KeepAliveSession.start(first);
+    }
+
+    @Test
+    public void needsTheAidToStart() {
+        assertArrayEquals(mSimulator.getDataObject(DO_AID), mSession.getAid());
+        assertNull(KeepAliveSession.start(new TransactionResult()));
+    }
+
+    @Test
+    public void sendsTheAdminPinOnlyOnce() {
+        long before = mSimulator.getApduCount();
+        assertNull(mSession.run(mCard, edit(DO_URL, "https://example.com"), NO_READS, mSnapshot, null).mError);
+        // No SELECT and no AID: just VERIFY and PUT DATA.
+        assertEquals(2, mSimulator.getApduCount() - before);
+        assertTrue(mSession.isPw3Verified());
+
+        before = mSimulator.getApduCount();
+        assertNull(mSession.run(mCard, edit(DO_LOGIN_DATA, "joey"), new int[]{DO_LOGIN_DATA}, mSnapshot, null).mError);
+        assertEquals(2, mSimulator.getApduCount() - before);
+        assertArrayEquals("joey".getBytes(), mSnapshot.mLoginData);
+    }
+
+    @Test
+    public void verifiesAgainAfterTheAdminPinChanges() {
+        List<PendingOperation> pending = edit(DO_URL, "https://example.com");
+        assertNull(mSession.run(mCard, pending, NO_READS, mSnapshot, null).mError);
+
+        pending = new ArrayList<>();
+        pending.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW3, "12345678", "87654321"));
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        pending.add(new PendingPutDataOperation(DO_URL, "https://example.org".getBytes()));
+        TransactionResult result = mSession.run(mCard, pending, NO_READS, mSnapshot, null);
+        assertNull(result.mError);
+        assertEquals("CHANGE PIN 83\nVERIFY 83\nPUT DATA 5F50 L 19", describe(result.mCompletedSteps));
+    }
+
+    @Test
+    public void forgetsTheAdminPinWhenTheCardRefusesIt() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "00000000"));
+        pending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        assertNotNull(mSession.run(mCard, pending, NO_READS, mSnapshot, null).mError);
+        assertFalse(mSession.isPw3Verified());
+    }
+
+    @Test
+    public void loadsOnlyWhatTheSnapshotLacks() {
+        mSimulator.setDataObject(DO_PRIVATE_1, "first".getBytes());
+        // A tap leaves the on-demand data objects alone.
+        assertNull(mSnapshot.mPrivateDo1);
+
+        long before = mSimulator.getApduCount();
+        TransactionResult result = mSession.load(mCard, new int[]{DO_PRIVATE_1, DO_PRIVATE_2}, mSnapshot);
+        assertNull(result.mError);
+        assertEquals("GET DATA 0101\nGET DATA 0102", describe(result.mCompletedSteps));
+        assertEquals(2, mSimulator.getApduCount() - before);
+        assertArrayEquals("first".getBytes(), mSnapshot.mPrivateDo1);
+        assertArrayEquals(new byte[0], mSnapshot.mPrivateDo2);
+
+        before = mSimulator.getApduCount();
+        assertNull(mSession.load(mCard, new int[]{DO_PRIVATE_1, DO_PRIVATE_2}, mSnapshot).mError);
+        assertEquals(0, mSimulator.getApduCount() - before);
+
+        mSnapshot.clearOnDemand();
+        before = mSimulator.getApduCount();
+        assertNull(mSession.load(mCard, new int[]{DO_PRIVATE_2}, mSnapshot).mError);
+        assertEquals(1, mSimulator.getApduCount() - before);
+        assertNull(mSnapshot.mPrivateDo1);
+    }
+
+    @Test
+    public void keepsWhatWasWrittenWithoutReadingItBack() {
+        assertNull(mSession.run(mCard, edit(DO_PRIVATE_2, "note"), NO_READS, mSnapshot, null).mError);
+        assertArrayEquals("note".getBytes(), mSnapshot.mPrivateDo2);
+
+        long before = mSimulator.getApduCount();
+        assertNull(mSession.load(mCard, new int[]{DO_PRIVATE_2}, mSnapshot).mError);
+        assertEquals(0, mSimulator.getApduCount() - before);
+    }
+
+    @Test
+    public void probeNoticesTheCardLeaving() throws IOException {
+        mSession.probe(mCard);
+        mSimulator.injectTagLoss(0);
+        try {
+            mSession.probe(mCard);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void executorKeepsTheTransportOpenOnlyAfterSuccess() throws Exception {
+        CardSessionExecutor executor = new CardSessionExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        try {
+            mSimulator.powerCycle();
+            runJob(executor, true, false);
+            // Still open: the simulator would throw if it had been closed.
+            mCard.select();
+
+            runJob(executor, true, true);
+            try {
+                mCard.select();
+                fail();
+            } catch (IOException e) {
+                // closed after the failure
+            }
+
+            mSimulator.powerCycle();
+            runJob(executor, false, false);
+            try {
+                mCard.select();
+                fail();
+            } catch (IOException e) {
+                // closed after the job
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runJob(CardSessionExecutor executor, boolean keepOpen, final boolean fail) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit(new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() {
+                return mSimulator;
+            }
+        }, new CardSessionExecutor.CardJob<Void>() {
+            @Override
+            public Void run(CardTransport transport) throws IOException {
+                new OpenPgpCard(transport, null).select();
+                if (fail) {
+                    throw new IOException("Job failed");
+                }
+                return null;
+            }
+        }, 0, keepOpen, new CardSessionExecutor.Callback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // The callback comes before the transport is closed; a task that runs after this one
+        // only starts once it has been.
+        final CountDownLatch next = new CountDownLatch(1);
+        executor.submit(new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() {
+                next.countDown();
+                return null;
+            }
+        }, new CardSessionExecutor.CardJob<Void>() {
+            @Override
+            public Void run(CardTransport transport) {
+                return null;
+            }
+        }, 0, new CardSessionExecutor.Callback<Void>() {
+            @Override
+            public void onResult(Void result) {
+            }
+
+            @Override
+            public void onError(IOException e) {
+            }
+        });
+        assertTrue(next.await(5, TimeUnit.SECONDS));
+    }
+
+    private static List<PendingOperation> edit(int dataObject, String value) {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        pending.add(new PendingPutDataOperation(dataObject, value.getBytes()));
+        return pending;
+    }
+
+    private static String describe(List<TransactionPlan.Step> steps) {
+        StringBuilder result = new StringBuilder();
+        for (TransactionPlan.Step step : steps) {
+            if (result.length() > 0) {
+                result.append('\n');
+            }
+            result.append(step);
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ManufacturerRegistryTest {
+
+    @Test
+    public void shipsWithTheKnownManufacturers() throws IOException {
+        ManufacturerRegistry registry = ManufacturerRegistry.getDefault();
+        assertEquals("Yubico", registry.getName(0x0006));
+        assertEquals("SIGILANCE", registry.getName(0x7615));
+        OpenPgpAid aid = OpenPgpAid.decode(ByteUtils.fromHexString("D2760001240102010005000012340000"));
+        assertEquals("ZeitControl", registry.getName(aid));
+    }
+
+    @Test
+    public void describesTheReservedRanges() {
+        ManufacturerRegistry registry = ManufacturerRegistry.getDefault();
+        assertEquals("test card", registry.getName(0x0000));
+        assertEquals("test card", registry.getName(0xFFFF));
+        assertEquals("unmanaged S/N range", registry.getName(0xFF42));
+        assertEquals("unknown", registry.getName(0x4242));
+    }
+
+    @Test
+    public void loadsATable() throws IOException {
+        ManufacturerRegistry registry = load("# comment\n\n  4242  Example Cards Ltd \r\nff01 Lab batch\n");
+        assertEquals("Example Cards Ltd", registry.getName(0x4242));
+        // Listed names win over the reserved ranges.
+        assertEquals("Lab batch", registry.getName(0xFF01));
+        assertEquals("unknown", registry.getName(0x0006));
+    }
+
+    @Test
+    public void refusesBadLines() {
+        String[] tables = {"4242\n", "42 Short ID\n", "XYZW Not hex\n", "# ok\n12345 Too long\n"};
+        int[] lines = {1, 1, 1, 2};
+        for (int i = 0; i < tables.length; i++) {
+            try {
+                load(tables[i]);
+                fail(tables[i]);
+            } catch (IOException e) {
+                assertEquals("Bad manufacturer on line " + lines[i] + ": " + tables[i].split("\n")[lines[i] - 1],
+                        e.getMessage());
+            }
+        }
+    }
+
+    private static ManufacturerRegistry load(String table) throws IOException {
+        return ManufacturerRegistry.load(new ByteArrayInputStream(table.getBytes("UTF-8")));
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OpenPgpAidTest {
+
+    private static final String AID = "D2760001240102010005000012340000";
+
+    @Test
+    public void decodesTheFields() throws IOException {
+        OpenPgpAid aid = OpenPgpAid.decode(ByteUtils.fromHexString(AID));
+        assertEquals(0x01, aid.mApplication);
+        assertEquals("2.1", aid.getVersion());
+        assertEquals(0x0005, aid.mManufacturer);
+        assertEquals(0x1234, aid.mSerial);
+        assertEquals("00001234", aid.getSerialString());
+        assertEquals(0, aid.mRfu);
+        assertArrayEquals(ByteUtils.fromHexString(AID), aid.getBytes());
+        assertEquals(AID, aid.toString());
+    }
+
+    @Test
+    public void readsTheVersionAsBcd() throws IOException {
+        OpenPgpAid aid = OpenPgpAid.decode(ByteUtils.fromHexString("D2760001240103100005000012340000"));
+        assertEquals("3.10", aid.getVersion());
+    }
+
+    @Test
+    public void keepsTheWholeSerialNumberUnsigned() throws IOException {
+        OpenPgpAid aid = OpenPgpAid.decode(ByteUtils.fromHexString("D276000124010201FFFEFEDCBA980000"));
+        assertEquals(0xFFFE, aid.mManufacturer);
+        assertEquals(0xFEDCBA98L, aid.mSerial);
+        assertEquals("FEDCBA98", aid.getSerialString());
+    }
+
+    @Test
+    public void comparesByValue() throws IOException {
+        OpenPgpAid aid = OpenPgpAid.decode(ByteUtils.fromHexString(AID));
+        OpenPgpAid same = OpenPgpAid.decode(ByteUtils.fromHexString(AID));
+        OpenPgpAid other = OpenPgpAid.decode(ByteUtils.fromHexString("D2760001240102010005000012350000"));
+        assertEquals(aid, same);
+        assertEquals(aid.hashCode(), same.hashCode());
+        assertNotEquals(aid, other);
+        assertTrue(aid.matches(ByteUtils.fromHexString(AID)));
+        assertFalse(aid.matches(other.getBytes()));
+        assertFalse(aid.matches(null));
+        assertFalse(aid.matches(new byte[8]));
+    }
+
+    @Test
+    public void refusesOtherApplications() {
+        try {
+            OpenPgpAid.decode(ByteUtils.fromHexString("D2760001"));
+            fail();
+        } catch (IOException e) {
+            assertEquals("AID is not 16 bytes long!", e.getMessage());
+        }
+        try {
+            OpenPgpAid.decode(ByteUtils.fromHexString("A0000005272101010005000012340000"));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Not an OpenPGP card AID!", e.getMessage());
+        }
+    }
+
+}
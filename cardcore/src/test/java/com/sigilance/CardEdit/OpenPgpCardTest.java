@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OpenPgpCardTest {
+
+    private SimulatedOpenPgpCard mSimulator;
+    private byte[] mCertificate;
+
+    @Before
+    public void setUp() {
+        mSimulator = new SimulatedOpenPgpCard(0x0005, 0x00001234);
+        mCertificate = new byte[1000];
+        for (int i = 0; i < mCertificate.length; i++) {
+            mCertificate[i] = (byte) i;
+        }
+    }
+
+    @Test
+    public void readsALargeObjectInOneExtendedApdu() throws IOException {
+        mSimulator.setDataObject(DO_CARDHOLDER_CERTIFICATE, mCertificate);
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.setCapabilities(CardCapabilities.fromHistoricalBytes(card.getData(DO_HISTORICAL_BYTES)));
+        long before = mSimulator.getApduCount();
+
+        assertArrayEquals(mCertificate, card.getData(DO_CARDHOLDER_CERTIFICATE));
+        assertEquals(1, mSimulator.getApduCount() - before);
+    }
+
+    @Test
+    public void fetchesTheRestOfALargeObjectWithGetResponse() throws IOException {
+        mSimulator.setApduFraming(false, true, 261);
+        mSimulator.setDataObject(DO_CARDHOLDER_CERTIFICATE, mCertificate);
+        OpenPgpCard card = selectedCard(mSimulator);
+        long before = mSimulator.getApduCount();
+
+        assertArrayEquals(mCertificate, card.getData(DO_CARDHOLDER_CERTIFICATE));
+        // GET DATA returns 256 bytes and 61xx, then three GET RESPONSEs fetch the rest.
+        assertEquals(4, mSimulator.getApduCount() - before);
+    }
+
+    @Test
+    public void repeatsAGetDataWithTheLengthTheCardAsksFor() throws IOException {
+        final List<byte[]> sent = new ArrayList<>();
+        CardTransport transport = new ForwardingTransport(mSimulator) {
+            @Override
+            public byte[] transceive(byte[] apdu) throws IOException {
+                sent.add(apdu);
+                if (sent.size() == 2) {
+                    return new byte[]{0x6C, 0x02};
+                }
+                return super.transceive(apdu);
+            }
+        };
+        OpenPgpCard card = selectedCard(transport);
+        card.setCapabilities(CardCapabilities.SHORT_APDUS_ONLY);
+
+        assertArrayEquals("en".getBytes(), card.getData(DO_LANGUAGE));
+        assertEquals(3, sent.size());
+        byte[] retry = sent.get(2);
+        assertEquals(0x02, retry[retry.length - 1]);
+    }
+
+    @Test
+    public void chainsALargeWriteWithoutExtendedLength() throws IOException {
+        mSimulator.setApduFraming(false, true, 261);
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+
+        long before = mSimulator.getApduCount();
+
+        card.putData(DO_CARDHOLDER_CERTIFICATE, mCertificate);
+        assertArrayEquals(mCertificate, mSimulator.getDataObject(DO_CARDHOLDER_CERTIFICATE));
+        // The historical bytes, then four segments of up to 255 bytes.
+        assertEquals(5, mSimulator.getApduCount() - before);
+    }
+
+    @Test
+    public void sendsALargeWriteInOneExtendedApdu() throws IOException {
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+        long before = mSimulator.getApduCount();
+
+        card.putData(DO_CARDHOLDER_CERTIFICATE, mCertificate);
+        assertArrayEquals(mCertificate, mSimulator.getDataObject(DO_CARDHOLDER_CERTIFICATE));
+        // One to read the historical bytes, one for the write.
+        assertEquals(2, mSimulator.getApduCount() - before);
+    }
+
+    @Test
+    public void refusesALargeWriteTheCardCannotTake() throws IOException {
+        mSimulator.setApduFraming(false, false, 261);
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+
+        try {
+            card.putData(DO_CARDHOLDER_CERTIFICATE, mCertificate);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Data object is too large for this card!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void reportsTheStatusWordOfARefusedCommand() throws IOException {
+        OpenPgpCard card = selectedCard(mSimulator);
+        try {
+            card.putData(DO_URL, "https://example.com".getBytes());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("(SW 6982)"));
+        }
+    }
+
+    @Test
+    public void reportsEachChainedSegmentToTheListener() throws IOException {
+        mSimulator.setApduFraming(false, true, 261);
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+        final List<Integer> progress = new ArrayList<>();
+        card.setUploadListener(new ChunkedUpload.Listener() {
+            @Override
+            public void onProgress(int dataObject, int acknowledged, int length) {
+                assertEquals(DO_CARDHOLDER_CERTIFICATE, dataObject);
+                assertEquals(1000, length);
+                progress.add(acknowledged);
+            }
+        });
+
+        card.putData(DO_CARDHOLDER_CERTIFICATE, mCertificate);
+        assertEquals(Arrays.asList(255, 510, 765, 1000), progress);
+    }
+
+    @Test
+    public void reportsASingleApduWriteOnceItIsAccepted() throws IOException {
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+        final List<Integer> progress = new ArrayList<>();
+        card.setUploadListener(new ChunkedUpload.Listener() {
+            @Override
+            public void onProgress(int dataObject, int acknowledged, int length) {
+                assertEquals(DO_URL, dataObject);
+                assertEquals(19, length);
+                progress.add(acknowledged);
+            }
+        });
+
+        ChunkedUpload upload = new ChunkedUpload(DO_URL, 19);
+        card.putData(DO_URL, "https://example.com".getBytes(), upload);
+        assertEquals(Arrays.asList(19), progress);
+        assertTrue(upload.isComplete());
+    }
+
+    @Test
+    public void startsAnInterruptedChainOverOnTheNextTap() throws IOException {
+        mSimulator.setApduFraming(false, true, 261);
+        OpenPgpCard card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+        ChunkedUpload upload = new ChunkedUpload(DO_CARDHOLDER_CERTIFICATE, mCertificate.length);
+        // The historical bytes and two segments go through.
+        mSimulator.injectTagLoss(3);
+
+        try {
+            card.putData(DO_CARDHOLDER_CERTIFICATE, mCertificate, upload);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, upload.getAttempts());
+        assertEquals(510, upload.getAcknowledged());
+        assertFalse(upload.isComplete());
+
+        mSimulator.powerCycle();
+        card = selectedCard(mSimulator);
+        card.verifyPin(0x83, "12345678");
+        card.putData(DO_CARDHOLDER_CERTIFICATE, mCertificate, upload);
+        assertEquals(2, upload.getAttempts());
+        assertEquals(1000, upload.getAcknowledged());
+        assertTrue(upload.isComplete());
+        assertArrayEquals(mCertificate, mSimulator.getDataObject(DO_CARDHOLDER_CERTIFICATE));
+    }
+
+    private static OpenPgpCard selectedCard(CardTransport transport) throws IOException {
+        OpenPgpCard card = new OpenPgpCard(transport, null);
+        card.select();
+        return card;
+    }
+
+    /** Passes every APDU through to another transport, for tests that tamper with some of them. */
+    static class ForwardingTransport implements CardTransport {
+        private final CardTransport mTransport;
+
+        ForwardingTransport(CardTransport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public byte[] transceive(byte[] apdu) throws IOException {
+            return mTransport.transceive(apdu);
+        }
+
+        @Override
+        public boolean isExtendedLengthSupported() {
+            return mTransport.isExtendedLengthSupported();
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return mTransport.getMaxTransceiveLength();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTransport.close();
+        }
+    }
+
+}
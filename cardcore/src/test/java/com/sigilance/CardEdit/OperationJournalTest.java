@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OperationJournalTest {
+
+    private static final List<PendingOperation> NONE = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SimulatedOpenPgpCard mSimulator;
+    private byte[] mAid;
+    private File mDirectory;
+    private List<PendingOperation> mPending;
+
+    @Before
+    public void setUp() {
+        mSimulator = new SimulatedOpenPgpCard(0x0005, 0x00001234);
+        mAid = mSimulator.getDataObject(DO_AID);
+        mDirectory = new File(mFolder.getRoot(), "journal");
+        mPending = new ArrayList<>();
+    }
+
+    @Test
+    public void resumesTheWritesATagLossCutShort() throws IOException {
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        mPending.add(new PendingPutDataOperation(DO_NAME, "Castillo<<Joey".getBytes()));
+        mPending.add(new PendingPutDataOperation(DO_LANGUAGE, "es".getBytes()));
+        // SELECT, the AID, VERIFY and the first PUT DATA go through.
+        mSimulator.injectTagLoss(4);
+        TransactionResult result = tap(new OperationJournal(mDirectory), mSimulator);
+        assertNotNull(result.mError);
+        int written = result.mCompletedSteps.get(3).mSlot;
+
+        // The app is restarted, and the card is tapped again.
+        OperationJournal journal = new OperationJournal(mDirectory);
+        OperationJournal.Recovery recovery = journal.recover(mAid, NONE);
+        assertEquals(2, recovery.mOperations.size());
+        for (PendingOperation operation : recovery.mOperations) {
+            assertFalse(operation.getSlot() == written);
+        }
+        assertTrue(recovery.mUnconfirmedPinChanges.isEmpty());
+        assertTrue(recovery.mUnsentPinChanges.isEmpty());
+
+        mSimulator.powerCycle();
+        mPending.clear();
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.addAll(recovery.mOperations);
+        assertNull(tap(journal, mSimulator).mError);
+        assertArrayEquals("Castillo<<Joey".getBytes(), mSimulator.getDataObject(DO_NAME));
+        assertArrayEquals("es".getBytes(), mSimulator.getDataObject(DO_LANGUAGE));
+        // Nothing is left open, so the file is gone.
+        assertEquals(0, journalFiles().length);
+        assertTrue(new OperationJournal(mDirectory).recover(mAid, NONE).isEmpty());
+    }
+
+    @Test
+    public void leavesOutWhatIsStillQueuedInMemory() throws IOException {
+        OperationJournal journal = new OperationJournal(mDirectory);
+        PendingOperation url = new PendingPutDataOperation(DO_URL, "https://example.com".getBytes());
+        PendingOperation name = new PendingPutDataOperation(DO_NAME, "Castillo<<Joey".getBytes());
+        journal.queued(mAid, url);
+        journal.queued(mAid, name);
+
+        OperationJournal.Recovery recovery = journal.recover(mAid, Arrays.asList(url));
+        assertEquals(1, recovery.mOperations.size());
+        assertEquals(DO_NAME, recovery.mOperations.get(0).getSlot());
+    }
+
+    @Test
+    public void neverReplaysAPinChangeTheCardConfirmed() throws IOException {
+        mPending.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW1, "123456", "654321"));
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        // SELECT, the AID and CHANGE PIN go through.
+        mSimulator.injectTagLoss(3);
+        assertNotNull(tap(new OperationJournal(mDirectory), mSimulator).mError);
+
+        OperationJournal.Recovery recovery = new OperationJournal(mDirectory).recover(mAid, NONE);
+        assertEquals(1, recovery.mOperations.size());
+        assertEquals(DO_URL, recovery.mOperations.get(0).getSlot());
+        assertTrue(recovery.mUnconfirmedPinChanges.isEmpty());
+        assertTrue(recovery.mUnsentPinChanges.isEmpty());
+    }
+
+    @Test
+    public void reportsAPinChangeWhoseAnswerWasLost() throws IOException {
+        mPending.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW3, "12345678", "87654321"));
+        mPending.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW1, "123456", "654321"));
+        // The card takes the first CHANGE PIN, but leaves before its answer comes back.
+        CardTransport transport = new OpenPgpCardTest.ForwardingTransport(mSimulator) {
+            @Override
+            public byte[] transceive(byte[] apdu) throws IOException {
+                byte[] response = super.transceive(apdu);
+                if (apdu[1] == OpenPgpCommands.INS_CHANGE_REFERENCE_DATA) {
+                    mSimulator.injectTagLoss(0);
+                    throw new IOException("Tag was lost.");
+                }
+                return response;
+            }
+        };
+        TransactionResult result = tap(new OperationJournal(mDirectory), transport);
+        assertNotNull(result.mError);
+        assertFalse(result.mError instanceof StatusWordException);
+
+        OperationJournal journal = new OperationJournal(mDirectory);
+        OperationJournal.Recovery recovery = journal.recover(mAid, NONE);
+        assertTrue(recovery.mOperations.isEmpty());
+        assertEquals(Arrays.asList(TransactionPlanner.PIN_PW3), recovery.mUnconfirmedPinChanges);
+        assertEquals(Arrays.asList(TransactionPlanner.PIN_PW1), recovery.mUnsentPinChanges);
+        // They are reported once, and then closed.
+        assertTrue(journal.recover(mAid, NONE).isEmpty());
+        assertEquals(0, journalFiles().length);
+    }
+
+    @Test
+    public void dropsAWriteTheCardRefused() throws IOException {
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        CardTransport transport = new OpenPgpCardTest.ForwardingTransport(mSimulator) {
+            @Override
+            public byte[] transceive(byte[] apdu) throws IOException {
+                if ((apdu[1] & 0xFF) == OpenPgpCommands.INS_PUT_DATA) {
+                    return new byte[]{0x6A, (byte) 0x80};
+                }
+                return super.transceive(apdu);
+            }
+        };
+        OperationJournal journal = new OperationJournal(mDirectory);
+        TransactionResult result = tap(journal, transport);
+        assertTrue(result.mError instanceof StatusWordException);
+        assertEquals(0x6A80, ((StatusWordException) result.mError).getStatusWord());
+        assertEquals(TransactionPlan.STEP_PUT_DATA, result.mFailedStep.mType);
+
+        // The app drops it, as it would only be refused again.
+        journal.dropped(mAid, result.mFailedStep.mOperations);
+        assertEquals(0, journalFiles().length);
+        assertTrue(new OperationJournal(mDirectory).recover(mAid, NONE).isEmpty());
+    }
+
+    @Test
+    public void resumesAWriteCutShortByTheReader() throws IOException {
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        // SELECT, the AID and VERIFY go through.
+        mSimulator.injectTagLoss(3);
+        TransactionResult result = tap(new OperationJournal(mDirectory), mSimulator);
+        assertNotNull(result.mError);
+        assertFalse(result.mError instanceof StatusWordException);
+
+        OperationJournal.Recovery recovery = new OperationJournal(mDirectory).recover(mAid, NONE);
+        assertEquals(1, recovery.mOperations.size());
+        assertEquals(DO_URL, recovery.mOperations.get(0).getSlot());
+    }
+
+    @Test
+    public void keepsPinsAndProtectedValuesOutOfTheFile() throws IOException {
+        OperationJournal journal = new OperationJournal(mDirectory);
+        List<PendingOperation> operations = new ArrayList<>();
+        operations.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW1, "123456", "654321"));
+        operations.add(new PendingPutDataOperation(DO_PRIVATE_3, "secret-note".getBytes()));
+        operations.add(new PendingPutDataOperation(DO_PRIVATE_4, "admin-note".getBytes()));
+        operations.add(new PendingPutDataOperation(DO_LOGIN_DATA, "joey@example".getBytes()));
+        operations.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        journal.started(mAid, operations);
+
+        String contents = new String(readJournal(), "ISO-8859-1");
+        assertFalse(contents.contains("123456"));
+        assertFalse(contents.contains("654321"));
+        assertFalse(contents.contains("secret-note"));
+        assertFalse(contents.contains("admin-note"));
+        assertTrue(contents.contains("https://example.com"));
+
+        OperationJournal.Recovery recovery = new OperationJournal(mDirectory).recover(mAid, NONE);
+        assertEquals(2, recovery.mOperations.size());
+        // The login data is resumed, like any other DO the card hands out without a PIN.
+        assertEquals(DO_LOGIN_DATA, recovery.mOperations.get(0).getSlot());
+        assertArrayEquals("joey@example".getBytes(), ((PendingPutDataOperation) recovery.mOperations.get(0)).getData());
+        assertEquals(DO_URL, recovery.mOperations.get(1).getSlot());
+        assertEquals(Arrays.asList(DO_PRIVATE_3, DO_PRIVATE_4), recovery.mUnfinishedProtectedWrites);
+        assertEquals(Arrays.asList(TransactionPlanner.PIN_PW1), recovery.mUnconfirmedPinChanges);
+    }
+
+    @Test
+    public void cutsOffARecordTornByAKilledProcess() throws IOException {
+        new OperationJournal(mDirectory).queued(mAid, new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        long length = journalFiles()[0].length();
+        // A QUEUED PUT DATA record that stopped halfway through its id
+        append(new byte[]{1, 0, 0, 0});
+
+        OperationJournal journal = new OperationJournal(mDirectory);
+        PendingOperation name = new PendingPutDataOperation(DO_NAME, "Castillo<<Joey".getBytes());
+        journal.queued(mAid, name);
+        assertEquals(2, new OperationJournal(mDirectory).recover(mAid, NONE).mOperations.size());
+        assertTrue(journalFiles()[0].length() > length);
+    }
+
+    @Test
+    public void leavesADamagedFileAlone() throws IOException {
+        assertTrue(mDirectory.mkdirs());
+        append(new byte[]{'N', 'O', 'P', 'E', 1, 0, 0, 0, 0, 0, 0, 0, 1});
+        byte[] before = readJournal();
+
+        try {
+            new OperationJournal(mDirectory).recover(mAid, NONE);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Not an operation journal!", e.getMessage());
+        }
+        assertArrayEquals(before, readJournal());
+    }
+
+    @Test
+    public void leavesAFileWithAnUnknownRecordAlone() throws IOException {
+        new OperationJournal(mDirectory).queued(mAid, new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        append(new byte[]{42, 0, 0, 0, 0, 0, 0, 0, 2});
+        byte[] before = readJournal();
+
+        try {
+            new OperationJournal(mDirectory).recover(mAid, NONE);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Invalid record in journal!", e.getMessage());
+        }
+        assertArrayEquals(before, readJournal());
+    }
+
+    private TransactionResult tap(OperationJournal journal, CardTransport transport) {
+        TransactionRunner runner = new TransactionRunner(new OpenPgpCard(transport, null), null, null);
+        runner.setJournal(journal);
+        return runner.run(TransactionPlanner.plan(mPending, false, new int[0]), mAid, null);
+    }
+
+    private File[] journalFiles() {
+        File[] files = mDirectory.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    private File journalFile() {
+        return new File(mDirectory, ByteUtils.hexString(mAid) + ".journal");
+    }
+
+    private byte[] readJournal() throws IOException {
+        File file = journalFile();
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                read += in.read(contents, read, contents.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(journalFile(), true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+}
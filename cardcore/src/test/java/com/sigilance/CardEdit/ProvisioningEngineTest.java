@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProvisioningEngineTest {
+
+    private ArrayDeque<SimulatedOpenPgpCard> mBlanks;
+    private List<SimulatedOpenPgpCard> mCards;
+    private List<ProvisioningProfile> mProfiles;
+
+    @Before
+    public void setUp() {
+        mBlanks = new ArrayDeque<>();
+        mCards = new ArrayList<>();
+        mProfiles = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            SimulatedOpenPgpCard card = new SimulatedOpenPgpCard(0xFFFE, i);
+            mBlanks.add(card);
+            mCards.add(card);
+
+            ProvisioningProfile profile = new ProvisioningProfile();
+            profile.mLabel = "card " + i;
+            profile.mSurname = "Surname";
+            profile.mGivenNames = "Given " + i;
+            profile.mUrl = "https://example.com/" + i;
+            profile.mNewAdminPin = "87654321";
+            mProfiles.add(profile);
+        }
+    }
+
+    @Test
+    public void personalizesEveryCardAcrossTheReaders() throws InterruptedException, IOException {
+        ProvisioningEngine engine = engine();
+        engine.addReader("reader 1", blanks());
+        engine.addReader("reader 2", blanks());
+
+        ProvisioningEngine.Report report = engine.run(mProfiles);
+        assertEquals(6, report.getSucceeded());
+
+        Set<String> serials = new HashSet<>();
+        for (int i = 0; i < mProfiles.size(); i++) {
+            ProvisioningResult result = report.mResults.get(i);
+            assertTrue(result.mReader.startsWith("reader "));
+            serials.add(ByteUtils.hexString(result.mAid));
+
+            SimulatedOpenPgpCard card = cardWithAid(result.mAid);
+            assertArrayEquals(("Surname<<Given<" + (i + 1)).getBytes(), card.getDataObject(DO_NAME));
+            assertArrayEquals(("https://example.com/" + (i + 1)).getBytes(), card.getDataObject(DO_URL));
+            assertNewAdminPin(card);
+        }
+        assertEquals(6, serials.size());
+        assertTrue(mBlanks.isEmpty());
+    }
+
+    @Test
+    public void handsTheProfilesOfABrokenReaderToTheOthers() throws InterruptedException {
+        ProvisioningEngine engine = engine();
+        engine.addReader("broken", new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() throws IOException {
+                throw new IOException("Reader unplugged");
+            }
+        });
+        engine.addReader("working", blanks());
+
+        ProvisioningEngine.Report report = engine.run(mProfiles);
+        assertEquals(6, report.getSucceeded());
+        for (ProvisioningResult result : report.mResults) {
+            assertEquals("working", result.mReader);
+        }
+    }
+
+    @Test
+    public void failsACardLostMidWriteWithoutRetryingIt() throws InterruptedException {
+        // Lose the third card after SELECT, GET DATA, CHANGE PIN and VERIFY.
+        mCards.get(2).injectTagLoss(4);
+        ProvisioningEngine engine = engine();
+        engine.addReader("reader", blanks());
+
+        ProvisioningEngine.Report report = engine.run(mProfiles);
+        assertEquals(5, report.getSucceeded());
+        ProvisioningResult failed = report.mResults.get(2);
+        assertFalse(failed.isSuccess());
+        assertEquals(TransactionPlan.STEP_PUT_DATA, failed.mTransaction.mFailedStep.mType);
+        assertTrue(mBlanks.isEmpty());
+    }
+
+    @Test
+    public void failsTheProfilesNoReaderCouldTake() throws InterruptedException {
+        mBlanks.clear();
+        ProvisioningEngine engine = engine();
+        engine.addReader("empty", blanks());
+
+        ProvisioningEngine.Report report = engine.run(mProfiles);
+        assertEquals(0, report.getSucceeded());
+        for (ProvisioningResult result : report.mResults) {
+            assertNull(result.mReader);
+            assertEquals("No reader left to provision this card!", result.mError.getMessage());
+        }
+    }
+
+    private static ProvisioningEngine engine() {
+        ProvisioningEngine engine = new ProvisioningEngine("123456", "12345678");
+        engine.setSkipUnchanged(false);
+        return engine;
+    }
+
+    /** A reader that is fed the blank cards one at a time, until there are none left. */
+    private CardSessionExecutor.TransportFactory blanks() {
+        return new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() throws IOException {
+                SimulatedOpenPgpCard card;
+                synchronized (mBlanks) {
+                    card = mBlanks.poll();
+                }
+                if (card == null) {
+                    throw new IOException("Out of cards");
+                }
+                return card;
+            }
+        };
+    }
+
+    private SimulatedOpenPgpCard cardWithAid(byte[] aid) {
+        for (SimulatedOpenPgpCard card : mCards) {
+            if (ByteUtils.hexString(aid).equals(ByteUtils.hexString(card.getDataObject(DO_AID)))) {
+                return card;
+            }
+        }
+        throw new AssertionError("No card with AID " + ByteUtils.hexString(aid));
+    }
+
+    private static void assertNewAdminPin(SimulatedOpenPgpCard card) throws IOException {
+        card.powerCycle();
+        OpenPgpCard openPgpCard = new OpenPgpCard(card, null);
+        openPgpCard.select();
+        openPgpCard.verifyPin(TransactionPlanner.PIN_PW3, "87654321");
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseApduTest {
+
+    @Test
+    public void readsTheStatusWordAndDataOfAResponse() {
+        ResponseApdu response = new ResponseApdu().wrap(ByteUtils.fromHexString("0102039000"));
+        assertTrue(response.isAccepted());
+        assertEquals(0x9000, response.getStatusWord());
+        assertEquals(3, response.getDataLength());
+
+        response.wrap(ByteUtils.fromHexString("AABB6110FFFF"), 4);
+        assertFalse(response.isAccepted());
+        assertEquals(0x61, response.getSw1());
+        assertEquals(0x10, response.getSw2());
+        assertEquals(2, response.getDataLength());
+
+        response.wrap(new byte[]{0x6A});
+        assertEquals(0, response.getStatusWord());
+        assertEquals(0, response.getDataLength());
+    }
+
+}
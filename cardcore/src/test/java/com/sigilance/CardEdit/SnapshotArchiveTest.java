@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SnapshotArchiveTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = mFolder.newFile("fleet.snap");
+        SnapshotArchiveWriter writer = new SnapshotArchiveWriter(file);
+        CardSnapshot written = snapshot(7, 42);
+        written.mCardholderName = "Müller<<Zoë";
+        writer.append(1000L, written);
+        writer.close();
+        assertFalse(new File(file.getPath() + ".heap").exists());
+
+        SnapshotArchive archive = SnapshotArchive.open(file);
+        try {
+            assertEquals(1, archive.size());
+            assertEquals(1000L, archive.getTime(0));
+            CardSnapshot read = archive.get(0);
+            assertArrayEquals(written.mAid, read.mAid);
+            assertArrayEquals(written.mFingerprints, read.mFingerprints);
+            assertEquals(written.mSigKeyTimestamp, read.mSigKeyTimestamp);
+            assertEquals(Integer.valueOf(42), read.mSignatureCount);
+            assertArrayEquals(written.mPwStatusBytes, read.mPwStatusBytes);
+            assertEquals("Müller<<Zoë", read.mCardholderName);
+            assertEquals("https://example.com/7", read.mUrl);
+            assertArrayEquals(written.mLoginData, read.mLoginData);
+            assertArrayEquals(written.mHistoricalBytes, read.mHistoricalBytes);
+            // The fixed-width fields alone
+            assertNull(archive.getKeys(0).mCardholderName);
+            assertEquals(Integer.valueOf(42), archive.getKeys(0).mSignatureCount);
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void findsEachCardsHistoryOldestFirst() throws IOException {
+        File file = mFolder.newFile("fleet.snap");
+        SnapshotArchiveWriter writer = new SnapshotArchiveWriter(file);
+        // More records than the writer buffers at once, appended newest first.
+        for (int time = 1000; time > 0; time--) {
+            writer.append(time, snapshot(time % 10, time));
+        }
+        writer.close();
+
+        SnapshotArchive archive = SnapshotArchive.open(file);
+        try {
+            assertEquals(1000, archive.size());
+            int[] records = archive.find(snapshot(3, 0).mAid);
+            assertEquals(100, records.length);
+            long last = 0;
+            for (int record : records) {
+                assertEquals(3, archive.getTime(record) % 10);
+                assertFalse(archive.getTime(record) < last);
+                last = archive.getTime(record);
+            }
+            assertEquals(Integer.valueOf(993), archive.getLatest(snapshot(3, 0).mAid).mSignatureCount);
+            assertEquals(0, archive.find(snapshot(11, 0).mAid).length);
+            assertNull(archive.getLatest(snapshot(11, 0).mAid));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void copiesAnotherArchive() throws IOException {
+        File first = mFolder.newFile("first.snap");
+        SnapshotArchiveWriter writer = new SnapshotArchiveWriter(first);
+        writer.append(1, snapshot(1, 1));
+        writer.close();
+
+        File second = mFolder.newFile("second.snap");
+        SnapshotArchive archive = SnapshotArchive.open(first);
+        writer = new SnapshotArchiveWriter(second);
+        writer.append(archive);
+        writer.append(2, snapshot(1, 2));
+        writer.close();
+        archive.close();
+
+        archive = SnapshotArchive.open(second);
+        try {
+            assertEquals(2, archive.find(snapshot(1, 0).mAid).length);
+            assertEquals(Integer.valueOf(2), archive.getLatest(snapshot(1, 0).mAid).mSignatureCount);
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void refusesIncompleteSnapshots() throws IOException {
+        SnapshotArchiveWriter writer = new SnapshotArchiveWriter(mFolder.newFile("fleet.snap"));
+        CardSnapshot snapshot = snapshot(1, 1);
+        snapshot.mSignatureCount = null;
+        try {
+            writer.append(1, snapshot);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Snapshot is incomplete!", e.getMessage());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void refusesOtherFiles() throws IOException {
+        File file = mFolder.newFile("other.snap");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[SnapshotArchive.HEADER_SIZE]);
+        out.close();
+        try {
+            SnapshotArchive.open(file);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Not a snapshot archive!", e.getMessage());
+        }
+    }
+
+    static CardSnapshot snapshot(int serial, int signatureCount) {
+        CardSnapshot snapshot = new CardSnapshot();
+        snapshot.mAid = new SimulatedOpenPgpCard(0x0005, serial).getDataObject(OpenPgpDataObjects.DO_AID);
+        snapshot.mCardholderName = "Holder<<Card<" + serial;
+        snapshot.mCardholderSex = "9";
+        snapshot.mCardholderLanguage = "en";
+        snapshot.mUrl = "https://example.com/" + serial;
+        snapshot.mLoginData = ("card" + serial).getBytes();
+        snapshot.mPwStatusBytes = new byte[]{0, 0x20, 0x20, 0x20, 3, 0, 3};
+        snapshot.mHistoricalBytes = new byte[]{0x00, 0x73, 0x00, 0x00, (byte) 0xC0};
+        snapshot.mFingerprints = new byte[60];
+        for (int i = 0; i < 60; i++) {
+            snapshot.mFingerprints[i] = (byte) (serial * 60 + i);
+        }
+        snapshot.mSigKeyTimestamp = 1400000000L + serial;
+        snapshot.mEncKeyTimestamp = 1400000100L + serial;
+        snapshot.mAuthKeyTimestamp = 1400000200L + serial;
+        snapshot.mSignatureCount = signatureCount;
+        return snapshot;
+    }
+
+}
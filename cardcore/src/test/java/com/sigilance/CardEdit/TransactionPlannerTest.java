@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TransactionPlannerTest {
+
+    private static final int[] NO_READS = {};
+
+    @Test
+    public void selectsAndReadsTheAidFirst() {
+        TransactionPlan plan = TransactionPlanner.plan(new ArrayList<PendingOperation>(), false, NO_READS);
+        assertEquals("SELECT\nGET DATA 004F", plan.toString());
+    }
+
+    @Test
+    public void changesPinsBeforeVerifyingWithTheNewPin() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        pending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        pending.add(new PendingChangePinOperation(TransactionPlanner.PIN_PW3, "12345678", "87654321"));
+
+        TransactionPlan plan = TransactionPlanner.plan(pending, false, NO_READS);
+        List<TransactionPlan.Step> steps = plan.getSteps();
+        assertEquals("SELECT\nGET DATA 004F\nCHANGE PIN 83\nVERIFY 83\nPUT DATA 5F50 L 19", plan.toString());
+        assertEquals("87654321", steps.get(3).mPin);
+    }
+
+    @Test
+    public void writesEachDataObjectOnceWithItsLatestValue() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingPutDataOperation(DO_NAME, "First".getBytes()));
+        pending.add(new PendingPutDataOperation(DO_URL, "u".getBytes()));
+        pending.add(new PendingPutDataOperation(DO_NAME, "Second".getBytes()));
+
+        TransactionPlan plan = TransactionPlanner.plan(pending, true, NO_READS);
+        List<TransactionPlan.Step> steps = plan.getSteps();
+        assertEquals(4, steps.size());
+        assertEquals(DO_URL, steps.get(2).mSlot);
+        assertEquals(DO_NAME, steps.get(3).mSlot);
+        assertArrayEquals("Second".getBytes(), steps.get(3).mData);
+        // Both edits of the name are retired by the one write.
+        assertEquals(2, steps.get(3).mOperations.size());
+    }
+
+    @Test
+    public void writesLargeObjectsAfterTheSmallOnes() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        pending.add(new PendingPutDataOperation(DO_CARDHOLDER_CERTIFICATE, new byte[1000]));
+        pending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        pending.add(new PendingPutDataOperation(DO_PRIVATE_2, new byte[255]));
+
+        TransactionPlan plan = TransactionPlanner.plan(pending, false, NO_READS);
+        assertEquals("SELECT\nGET DATA 004F\nVERIFY 83\nPUT DATA 5F50 L 19\nPUT DATA 0102 L 255\n"
+                + "PUT DATA 7F21 L 1000", plan.toString());
+        assertEquals(1000, plan.getSteps().get(5).getUpload().getLength());
+    }
+
+    @Test
+    public void skipsTheAdminPinWhenItIsKnownAndNothingIsWritten() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+
+        assertEquals(false, TransactionPlanner.plan(pending, true, NO_READS).contains(TransactionPlan.STEP_VERIFY));
+        assertEquals(true, TransactionPlanner.plan(pending, false, NO_READS).contains(TransactionPlan.STEP_VERIFY));
+    }
+
+    @Test
+    public void readsBackAfterTheWritesWithoutRepeatingTheAid() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingPutDataOperation(DO_URL, "u".getBytes()));
+
+        TransactionPlan plan = TransactionPlanner.plan(pending, true, new int[]{DO_AID, DO_URL, DO_URL});
+        assertEquals("SELECT\nGET DATA 004F\nPUT DATA 5F50 L 1\nGET DATA 5F50", plan.toString());
+    }
+
+    @Test
+    public void dirtyReadsNameTheContainingDataObjects() {
+        List<PendingOperation> pending = new ArrayList<>();
+        pending.add(new PendingPutDataOperation(DO_NAME, "Name".getBytes()));
+        pending.add(new PendingPutDataOperation(DO_SEX, new byte[]{0x31}));
+        pending.add(new PendingPutDataOperation(DO_URL, "u".getBytes()));
+        pending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+
+        assertEquals(Arrays.toString(new int[]{DO_CARDHOLDER_DATA, DO_URL, DO_PW_STATUS_BYTES}),
+                Arrays.toString(TransactionPlanner.dirtyReads(pending, false)));
+        // An Admin PIN that is already verified doesn't change the retry counter.
+        assertEquals(Arrays.toString(new int[]{DO_CARDHOLDER_DATA, DO_URL}),
+                Arrays.toString(TransactionPlanner.dirtyReads(pending, true)));
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sigilance.CardEdit.OpenPgpDataObjects.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionRunnerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SimulatedOpenPgpCard mSimulator;
+    private List<PendingOperation> mPending;
+
+    @Before
+    public void setUp() {
+        mSimulator = new SimulatedOpenPgpCard(0x0005, 0x00001234);
+        mPending = new ArrayList<>();
+    }
+
+    @Test
+    public void readsTheWholeCard() {
+        TransactionResult result = tap(null, TransactionPlanner.FULL_REFRESH, null);
+
+        assertNull(result.mError);
+        assertTrue(result.mSnapshot.isComplete());
+        assertArrayEquals(mSimulator.getDataObject(DO_AID), result.mAid);
+        assertEquals("en", result.mSnapshot.mCardholderLanguage);
+        assertEquals(Integer.valueOf(0), result.mSnapshot.mSignatureCount);
+        assertEquals(8, mSimulator.getApduCount());
+    }
+
+    @Test
+    public void writesAndReadsBackWhatChanged() {
+        CardSnapshot base = tap(null, TransactionPlanner.FULL_REFRESH, null).mSnapshot;
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_NAME, "Castillo<<Joey".getBytes()));
+
+        mSimulator.powerCycle();
+        TransactionResult result = tap(base.mAid, TransactionPlanner.dirtyReads(mPending, false), base);
+        assertNull(result.mError);
+        assertEquals("SELECT\nGET DATA 004F\nVERIFY 83\nPUT DATA 005B L 14\nGET DATA 00C4\nGET DATA 0065",
+                TransactionPlanner.plan(mPending, false, TransactionPlanner.dirtyReads(mPending, false)).toString());
+        assertEquals(6, result.mCompletedSteps.size());
+        assertEquals("Castillo<<Joey", result.mSnapshot.mCardholderName);
+        assertArrayEquals("Castillo<<Joey".getBytes(), mSimulator.getDataObject(DO_NAME));
+    }
+
+    @Test
+    public void stopsWhenADifferentCardIsTapped() {
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        byte[] otherAid = new SimulatedOpenPgpCard(0x0005, 0x00005678).getDataObject(DO_AID);
+
+        TransactionResult result = tap(otherAid, new int[0], null);
+        assertNotNull(result.mError);
+        assertEquals(DO_AID, result.mFailedStep.mSlot);
+        assertEquals(0, mSimulator.getDataObject(DO_URL).length);
+    }
+
+    @Test
+    public void recordsTheStepsThatWentThroughBeforeTheTagWasLost() {
+        mPending.add(new PendingVerifyPinOperation(TransactionPlanner.PIN_PW3, "12345678"));
+        mPending.add(new PendingPutDataOperation(DO_URL, "https://example.com".getBytes()));
+        mPending.add(new PendingPutDataOperation(DO_LOGIN_DATA, "joey".getBytes()));
+        // SELECT, GET DATA, VERIFY and the first PUT DATA go through.
+        mSimulator.injectTagLoss(4);
+
+        TransactionResult result = tap(null, new int[0], null);
+        assertNotNull(result.mError);
+        assertNull(result.mSnapshot);
+        assertEquals(4, result.mCompletedSteps.size());
+        assertEquals(DO_LOGIN_DATA, result.mFailedStep.mSlot);
+        assertArrayEquals("https://example.com".getBytes(), mSimulator.getDataObject(DO_URL));
+    }
+
+    @Test
+    public void showsTheCachedSnapshotButReadsTheCardholderDataAnyway() {
+        CardSnapshotCache cache = new CardSnapshotCache(mFolder.getRoot(), 4);
+        final List<CardSnapshot> cached = new ArrayList<>();
+        TransactionRunner.Listener listener = new TransactionRunner.Listener() {
+            @Override
+            public void onCachedSnapshot(CardSnapshot snapshot) {
+                cached.add(snapshot);
+            }
+        };
+        mSimulator.setDataObject(DO_URL, "https://example.com".getBytes());
+
+        assertTrue(tap(cache, listener).mSnapshot.isComplete());
+        assertEquals(0, cached.size());
+        assertEquals(8, mSimulator.getApduCount());
+
+        // Edited elsewhere, say with gpg --card-edit: the keys and the signature counter stay the same.
+        mSimulator.setDataObject(DO_URL, "https://example.org".getBytes());
+        mSimulator.setDataObject(DO_LOGIN_DATA, "joey".getBytes());
+        mSimulator.powerCycle();
+        TransactionResult result = tap(cache, listener);
+        assertEquals(1, cached.size());
+        assertEquals("https://example.com", cached.get(0).mUrl);
+        assertEquals(16, mSimulator.getApduCount());
+        assertEquals("https://example.org", result.mSnapshot.mUrl);
+        assertArrayEquals("joey".getBytes(), result.mSnapshot.mLoginData);
+
+        // The cache now holds what was read.
+        mSimulator.powerCycle();
+        tap(cache, listener);
+        assertEquals("https://example.org", cached.get(1).mUrl);
+    }
+
+    private TransactionResult tap(byte[] expectedAid, int[] refreshReads, CardSnapshot base) {
+        TransactionPlan plan = TransactionPlanner.plan(mPending, false, refreshReads);
+        return new TransactionRunner(new OpenPgpCard(mSimulator, null), null, null).run(plan, expectedAid, base);
+    }
+
+    private TransactionResult tap(CardSnapshotCache cache, TransactionRunner.Listener listener) {
+        TransactionPlan plan = TransactionPlanner.plan(mPending, false, TransactionPlanner.FULL_REFRESH);
+        return new TransactionRunner(new OpenPgpCard(mSimulator, null), cache, listener).run(plan, null, null);
+    }
+
+}
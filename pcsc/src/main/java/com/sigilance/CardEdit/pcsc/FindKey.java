@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.ByteUtils;
+import com.sigilance.CardEdit.FingerprintIndex;
+import com.sigilance.CardEdit.SnapshotArchive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Finds the cards that hold a key, by fingerprint, in a snapshot archive written by PcscAudit.
+ *
+ * Usage: FindKey audit.snap fingerprint...
+ *
+ * Fingerprints are 40 hex digits, with or without the spaces gpg puts in them; quote them if
+ * they have spaces. Every card that has held the key at some point in the archive is listed.
+ */
+public class FindKey {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: FindKey audit.snap fingerprint...");
+            System.exit(1);
+        }
+        SnapshotArchive archive = SnapshotArchive.open(new File(args[0]));
+        FingerprintIndex index;
+        try {
+            index = FingerprintIndex.fromArchive(archive);
+        } finally {
+            archive.close();
+        }
+
+        boolean found = true;
+        for (int i = 1; i < args.length; i++) {
+            byte[] fingerprint;
+            try {
+                fingerprint = ByteUtils.fromHexString(args[i]);
+            } catch (IllegalArgumentException e) {
+                fingerprint = null;
+            }
+            if (fingerprint == null || fingerprint.length != 20) {
+                System.err.println(args[i] + ": not a fingerprint");
+                System.exit(1);
+            }
+            List<FingerprintIndex.Match> matches = index.find(fingerprint);
+            System.out.println(ByteUtils.hexString(fingerprint) + (matches.isEmpty() ? ": not on any card" : ":"));
+            for (FingerprintIndex.Match match : matches) {
+                System.out.println("  " + match);
+            }
+            found &= !matches.isEmpty();
+        }
+        System.exit(found ? 0 : 2);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.AuditRecord;
+import com.sigilance.CardEdit.AuditWriter;
+import com.sigilance.CardEdit.FleetAuditor;
+import com.sigilance.CardEdit.SnapshotArchiveWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Reads a batch of cards on every attached reader at once and writes what is on each one to a
+ * file, without changing anything on the cards. Put a card in each reader; when a reader's card
+ * is done, swap in the next one. The audit ends after the given number of cards, or once no
+ * reader has had a new card for five minutes.
+ *
+ * Usage: PcscAudit [--csv] [--raw] [--cards N] [--archive audit.snap] audit.jsonl
+ *
+ * The output is JSON Lines unless --csv is given; --raw adds the data objects as read, in hex.
+ * Records are appended as the cards finish, so the file can be followed while the audit runs.
+ * --archive also writes every card read in full to a SnapshotArchive, which is only complete
+ * once the audit has finished.
+ */
+public class PcscAudit {
+
+    // How long a reader may sit without a card before it is left out of the audit
+    private static final long CARD_SWAP_TIMEOUT = 5 * 60 * 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int format = AuditWriter.FORMAT_JSONL;
+        boolean raw = false;
+        int cards = 0;
+        String path = null;
+        String archivePath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--csv":
+                    format = AuditWriter.FORMAT_CSV;
+                    break;
+                case "--raw":
+                    raw = true;
+                    break;
+                case "--cards":
+                    if (++i < args.length) {
+                        cards = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--archive":
+                    if (++i < args.length) {
+                        archivePath = args[i];
+                    }
+                    break;
+                default:
+                    path = args[i];
+            }
+        }
+        if (path == null) {
+            System.err.println("Usage: PcscAudit [--csv] [--raw] [--cards N] [--archive audit.snap] audit.jsonl");
+            System.exit(1);
+        }
+        List<CardTerminal> terminals = PcscReaders.list();
+        if (terminals.isEmpty()) {
+            System.err.println("No readers attached.");
+            System.exit(1);
+        }
+
+        FleetAuditor auditor = new FleetAuditor();
+        for (CardTerminal terminal : terminals) {
+            auditor.addReader(terminal.getName(), PcscReaders.cardSwapFactory(terminal, false, CARD_SWAP_TIMEOUT));
+        }
+        final SnapshotArchiveWriter archive = archivePath != null ? new SnapshotArchiveWriter(new File(archivePath)) : null;
+        final IOException[] archiveError = new IOException[1];
+        auditor.setListener(new FleetAuditor.Listener() {
+            @Override
+            public void onCardAudited(AuditRecord record) {
+                System.out.println(record);
+                if (archive != null && record.isSuccess()) {
+                    try {
+                        archive.append(record.mFinishedMillis, record.mSnapshot);
+                    } catch (IOException e) {
+                        synchronized (archiveError) {
+                            archiveError[0] = e;
+                        }
+                    }
+                }
+            }
+        });
+
+        System.out.println(String.format("Auditing %s cards on %d readers into %s",
+                cards > 0 ? Integer.toString(cards) : "all", terminals.size(), path));
+        AuditWriter writer = new AuditWriter(new FileOutputStream(path), format, raw);
+        FleetAuditor.Report report;
+        try {
+            report = auditor.run(cards, writer);
+        } finally {
+            writer.close();
+            if (archive != null) {
+                archive.close();
+            }
+        }
+        System.out.println();
+        synchronized (archiveError) {
+            if (archiveError[0] != null) {
+                System.out.println("Archive incomplete: " + archiveError[0].getMessage());
+            }
+        }
+        System.out.println(report);
+        System.exit(report.mFailed == 0 ? 0 : 2);
+    }
+
+}
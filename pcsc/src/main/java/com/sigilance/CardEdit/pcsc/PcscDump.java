@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.ApduRecorder;
+import com.sigilance.CardEdit.ByteUtils;
+import com.sigilance.CardEdit.CardSnapshot;
+import com.sigilance.CardEdit.KeepAliveSession;
+import com.sigilance.CardEdit.OpenPgpCard;
+import com.sigilance.CardEdit.PendingOperation;
+import com.sigilance.CardEdit.TransactionPlan;
+import com.sigilance.CardEdit.TransactionPlanner;
+import com.sigilance.CardEdit.TransactionResult;
+import com.sigilance.CardEdit.TransactionRunner;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Reads every OpenPGP card in the attached readers and prints what's on it, with the time each
+ * card took and a breakdown of the APDUs. With --private, the private DOs 0101 and 0102 and the
+ * cardholder certificate are read as well, on the same connection, after the rest of the card.
+ *
+ * Usage: PcscDump [--private] [part of a reader name]
+ */
+public class PcscDump {
+
+    public static void main(String[] args) throws IOException {
+        boolean privateData = false;
+        String readerName = null;
+        for (String arg : args) {
+            if (arg.equals("--private")) {
+                privateData = true;
+            } else {
+                readerName = arg;
+            }
+        }
+
+        List<CardTerminal> terminals;
+        if (readerName != null) {
+            CardTerminal terminal = PcscReaders.find(readerName);
+            if (terminal == null) {
+                System.err.println("No reader matches \"" + readerName + "\".");
+                System.exit(1);
+            }
+            terminals = Collections.singletonList(terminal);
+        } else {
+            terminals = PcscReaders.listWithCards();
+            if (terminals.isEmpty()) {
+                System.err.println("No cards found; readers attached: " + PcscReaders.list().size());
+                System.exit(1);
+            }
+        }
+
+        for (CardTerminal terminal : terminals) {
+            System.out.println(terminal.getName());
+            try {
+                dump(terminal, privateData);
+            } catch (IOException e) {
+                System.out.println("  " + e.getMessage());
+            }
+            System.out.println();
+        }
+    }
+
+    private static void dump(CardTerminal terminal, boolean privateData) throws IOException {
+        ApduRecorder recorder = new ApduRecorder();
+        recorder.setEnabled(true);
+        TransactionPlan plan = TransactionPlanner.plan(Collections.<PendingOperation>emptyList(), false,
+                TransactionPlanner.FULL_REFRESH);
+
+        long start = System.nanoTime();
+        PcscTransport transport = PcscTransport.connect(terminal, true);
+        TransactionResult result;
+        long elapsed;
+        long privateElapsed = 0;
+        try {
+            OpenPgpCard card = new OpenPgpCard(transport, recorder);
+            card.setCapabilities(transport.getCardCapabilities());
+            result = new TransactionRunner(card, null, null).run(plan, null, null);
+            elapsed = System.nanoTime() - start;
+
+            if (result.mError == null && privateData) {
+                long privateStart = System.nanoTime();
+                TransactionResult loaded = KeepAliveSession.start(result)
+                        .load(card, TransactionPlanner.ON_DEMAND_READS, result.mSnapshot);
+                privateElapsed = System.nanoTime() - privateStart;
+                if (loaded.mError != null) {
+                    throw loaded.mError;
+                }
+            }
+        } finally {
+            transport.close();
+        }
+
+        if (result.mError != null) {
+            throw result.mError;
+        }
+        CardSnapshot snapshot = result.mSnapshot;
+        System.out.println("  ATR          " + ByteUtils.hexString(transport.getAtr()));
+        System.out.println("  AID          " + ByteUtils.hexString(snapshot.mAid));
+        System.out.println("  Name         " + snapshot.mCardholderName);
+        System.out.println("  Language     " + snapshot.mCardholderLanguage);
+        System.out.println("  Sex          " + snapshot.mCardholderSex);
+        System.out.println("  URL          " + snapshot.mUrl);
+        System.out.println("  Login data   " + new String(snapshot.mLoginData));
+        System.out.println("  Signature    " + ByteUtils.hexString(snapshot.mFingerprints, 0, 20));
+        System.out.println("  Encryption   " + ByteUtils.hexString(snapshot.mFingerprints, 20, 20));
+        System.out.println("  Auth         " + ByteUtils.hexString(snapshot.mFingerprints, 40, 20));
+        System.out.println("  Signatures   " + snapshot.mSignatureCount);
+        if (privateData) {
+            System.out.println("  Private 1    " + ByteUtils.hexString(snapshot.mPrivateDo1));
+            System.out.println("  Private 2    " + ByteUtils.hexString(snapshot.mPrivateDo2));
+            System.out.println("  Certificate  " + snapshot.mCardholderCertificate.length + " bytes");
+        }
+        System.out.println(String.format("  Read in %.1f ms", elapsed / 1e6));
+        if (privateData) {
+            System.out.println(String.format("  Private data read in %.1f ms", privateElapsed / 1e6));
+        }
+        for (String line : recorder.summary().split("\n")) {
+            System.out.println("  " + line);
+        }
+    }
+
+}
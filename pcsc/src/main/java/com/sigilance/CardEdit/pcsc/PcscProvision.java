@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.ProvisioningEngine;
+import com.sigilance.CardEdit.ProvisioningProfile;
+import com.sigilance.CardEdit.ProvisioningResult;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Personalizes a batch of cards on every attached reader at once. Put a blank card in each
+ * reader; when a reader's card is done, swap in the next one.
+ *
+ * Usage: PcscProvision profiles.tsv
+ *
+ * The profile file has one card per line, with tab-separated columns: label, surname, given
+ * names, language, sex (1, 2 or 9), URL, login data, forced signature PIN (yes or no), new user
+ * PIN and new Admin PIN. An empty column leaves that field alone; lines starting with # are
+ * skipped. The cards are expected to have the PINs in the environment variables CARDEDIT_PW1 and
+ * CARDEDIT_PW3, or the factory defaults.
+ */
+public class PcscProvision {
+
+    // How long a reader may sit without a card before it is left out of the batch
+    private static final long CARD_SWAP_TIMEOUT = 5 * 60 * 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1) {
+            System.err.println("Usage: PcscProvision profiles.tsv");
+            System.exit(1);
+        }
+        List<ProvisioningProfile> profiles = readProfiles(args[0]);
+        List<CardTerminal> terminals = PcscReaders.list();
+        if (terminals.isEmpty()) {
+            System.err.println("No readers attached.");
+            System.exit(1);
+        }
+
+        ProvisioningEngine engine = new ProvisioningEngine(getenv("CARDEDIT_PW1", "123456"),
+                getenv("CARDEDIT_PW3", "12345678"));
+        for (CardTerminal terminal : terminals) {
+            engine.addReader(terminal.getName(), PcscReaders.cardSwapFactory(terminal, true, CARD_SWAP_TIMEOUT));
+        }
+        engine.setListener(new ProvisioningEngine.Listener() {
+            @Override
+            public void onCardFinished(ProvisioningResult result) {
+                System.out.println(result);
+            }
+        });
+
+        System.out.println(String.format("Provisioning %d cards on %d readers", profiles.size(), terminals.size()));
+        ProvisioningEngine.Report report = engine.run(profiles);
+        System.out.println();
+        for (ProvisioningResult result : report.mResults) {
+            if (!result.isSuccess()) {
+                System.out.println("FAILED " + result);
+            }
+        }
+        System.out.println(report);
+        System.exit(report.getSucceeded() == profiles.size() ? 0 : 2);
+    }
+
+    static List<ProvisioningProfile> readProfiles(String path) throws IOException {
+        ArrayList<ProvisioningProfile> profiles = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split("\t", -1);
+                if (columns.length != 10) {
+                    throw new IOException(path + ":" + lineNumber + ": expected 10 columns, found " + columns.length);
+                }
+                ProvisioningProfile profile = new ProvisioningProfile();
+                profile.mLabel = optional(columns[0]);
+                profile.mSurname = optional(columns[1]);
+                profile.mGivenNames = optional(columns[2]);
+                profile.mLanguage = optional(columns[3]);
+                if (!columns[4].isEmpty()) {
+                    switch (columns[4]) {
+                        case "1":
+                            profile.mSex = ProvisioningProfile.SEX_MALE;
+                            break;
+                        case "2":
+                            profile.mSex = ProvisioningProfile.SEX_FEMALE;
+                            break;
+                        case "9":
+                            profile.mSex = ProvisioningProfile.SEX_NOT_APPLICABLE;
+                            break;
+                        default:
+                            throw new IOException(path + ":" + lineNumber + ": sex must be 1, 2 or 9");
+                    }
+                }
+                profile.mUrl = optional(columns[5]);
+                profile.mLoginData = optional(columns[6]);
+                if (!columns[7].isEmpty()) {
+                    profile.mForceSignaturePin = columns[7].equalsIgnoreCase("yes");
+                }
+                profile.mNewUserPin = optional(columns[8]);
+                profile.mNewAdminPin = optional(columns[9]);
+                profiles.add(profile);
+            }
+        } finally {
+            reader.close();
+        }
+        return profiles;
+    }
+
+    private static String optional(String column) {
+        return column.isEmpty() ? null : column;
+    }
+
+    private static String getenv(String name, String fallback) {
+        String value = System.getenv(name);
+        return value != null ? value : fallback;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.CardSessionExecutor;
+import com.sigilance.CardEdit.CardTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Finds the PC/SC readers attached to this machine.
+ */
+public final class PcscReaders {
+
+    private PcscReaders() {
+    }
+
+    /** Returns every attached reader, with or without a card. */
+    public static List<CardTerminal> list() throws IOException {
+        return list(CardTerminals.State.ALL);
+    }
+
+    /** Returns the readers that have a card in them. */
+    public static List<CardTerminal> listWithCards() throws IOException {
+        return list(CardTerminals.State.CARD_PRESENT);
+    }
+
+    /**
+     * Returns the first reader whose name contains the given text, ignoring case, or null.
+     * Reader names look like "Gemalto PC Twin Reader 00 00" or "Virtual PCD 00 00".
+     */
+    public static CardTerminal find(String name) throws IOException {
+        String wanted = name.toLowerCase();
+        for (CardTerminal terminal : list()) {
+            if (terminal.getName().toLowerCase().contains(wanted)) {
+                return terminal;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a factory that connects to the card in the reader, for CardSessionExecutor.
+     *
+     * @param exclusive Whether each session holds the card exclusively.
+     */
+    public static CardSessionExecutor.TransportFactory transportFactory(final CardTerminal terminal, final boolean exclusive) {
+        return new CardSessionExecutor.TransportFactory() {
+            @Override
+            public CardTransport open() throws IOException {
+                return PcscTransport.connect(terminal, exclusive);
+            }
+        };
+    }
+
+    /**
+     * Returns a factory that hands over one card after another, for ProvisioningEngine. The first
+     * call connects to the card already in the reader, if there is one; each later call waits for
+     * the previous card to be taken out and the next one to be put in.
+     *
+     * @param timeoutMillis How long to wait for a card swap before giving up on the reader, or 0
+     *                      to wait forever.
+     */
+    public static CardSessionExecutor.TransportFactory cardSwapFactory(final CardTerminal terminal, final boolean exclusive,
+                                                                       final long timeoutMillis) {
+        return new CardSessionExecutor.TransportFactory() {
+            private boolean mFirst = true;
+
+            @Override
+            public CardTransport open() throws IOException {
+                try {
+                    if (!mFirst && !terminal.waitForCardAbsent(timeoutMillis)) {
+                        throw new IOException("Card was not removed from " + terminal.getName() + "!");
+                    }
+                    mFirst = false;
+                    if (!terminal.waitForCardPresent(timeoutMillis)) {
+                        throw new IOException("No card was inserted into " + terminal.getName() + "!");
+                    }
+                } catch (CardException e) {
+                    throw new IOException("Lost reader " + terminal.getName() + "!", e);
+                }
+                return PcscTransport.connect(terminal, exclusive);
+            }
+        };
+    }
+
+    private static List<CardTerminal> list(CardTerminals.State state) throws IOException {
+        TerminalFactory factory = TerminalFactory.getDefault();
+        try {
+            return new ArrayList<>(factory.terminals().list(state));
+        } catch (CardException e) {
+            // pcsclite reports "no readers" as an error rather than as an empty list.
+            if (e.getCause() != null && String.valueOf(e.getCause().getMessage()).contains("SCARD_E_NO_READERS_AVAILABLE")) {
+                return Collections.emptyList();
+            }
+            throw new IOException("Cannot list smart card readers!", e);
+        }
+    }
+
+}
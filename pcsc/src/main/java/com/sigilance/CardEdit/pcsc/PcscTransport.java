@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.CardCapabilities;
+import com.sigilance.CardEdit.CardTransport;
+
+import java.io.IOException;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+
+/**
+ * CardTransport backed by a PC/SC reader, through javax.smartcardio.
+ *
+ * Contact readers carry far larger APDUs than phone NFC, so extended-length APDUs are used
+ * whenever the card announces them in its ATR. Readers that only do short APDUs can be told
+ * so when connecting. Unlike IsoDep, the card stays in the reader between sessions, so the
+ * transport can hold the card exclusively for the whole session, and resets it when closed.
+ */
+public class PcscTransport implements CardTransport {
+
+    // Header, 65535 bytes of data and a 3-byte Le, or 65536 bytes of response data and SW1-SW2
+    public static final int MAX_EXTENDED_APDU_LENGTH = 65546;
+    // Header, 255 bytes of data and Le, or 256 bytes of response data and SW1-SW2
+    public static final int MAX_SHORT_APDU_LENGTH = 261;
+
+    private final CardTerminal mTerminal;
+    private final Card mCard;
+    private final CardChannel mChannel;
+    private final boolean mExclusive;
+    private final boolean mExtendedLength;
+    private boolean mClosed = false;
+
+    private PcscTransport(CardTerminal terminal, Card card, boolean exclusive, boolean extendedLength) {
+        mTerminal = terminal;
+        mCard = card;
+        mChannel = card.getBasicChannel();
+        mExclusive = exclusive;
+        mExtendedLength = extendedLength;
+    }
+
+    /**
+     * Connects to the card in a reader, with extended-length APDUs if the reader supports them.
+     *
+     * @param terminal  The reader.
+     * @param exclusive Whether to keep other applications away from the card until close().
+     */
+    public static PcscTransport connect(CardTerminal terminal, boolean exclusive) throws IOException {
+        return connect(terminal, exclusive, true);
+    }
+
+    /**
+     * Connects to the card in a reader.
+     *
+     * @param terminal       The reader.
+     * @param exclusive      Whether to keep other applications away from the card until close().
+     * @param extendedLength Whether the reader can carry extended-length APDUs. Most CCID
+     *                       contact readers can; some older readers only exchange short APDUs.
+     */
+    public static PcscTransport connect(CardTerminal terminal, boolean exclusive, boolean extendedLength) throws IOException {
+        Card card;
+        try {
+            card = terminal.connect("*");
+        } catch (CardException e) {
+            throw new IOException("Cannot connect to the card in " + terminal.getName() + "!", e);
+        }
+        if (exclusive) {
+            try {
+                card.beginExclusive();
+            } catch (CardException e) {
+                disconnectQuietly(card);
+                throw new IOException("The card in " + terminal.getName() + " is in use!", e);
+            }
+        }
+        return new PcscTransport(terminal, card, exclusive, extendedLength);
+    }
+
+    public CardTerminal getTerminal() {
+        return mTerminal;
+    }
+
+    /** Returns the card's answer-to-reset. */
+    public byte[] getAtr() {
+        return mCard.getATR().getBytes();
+    }
+
+    /**
+     * Returns the capabilities the card announces in the historical bytes of its ATR. An OpenPGP
+     * card's ATR carries the same historical bytes as DO 0x5F52, so they needn't be read again.
+     */
+    public CardCapabilities getCardCapabilities() {
+        return CardCapabilities.fromHistoricalBytes(mCard.getATR().getHistoricalBytes());
+    }
+
+    @Override
+    public byte[] transceive(byte[] apdu) throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Card connection is closed!");
+            }
+        }
+        CommandAPDU command;
+        try {
+            command = new CommandAPDU(apdu);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed APDU!", e);
+        }
+        try {
+            return mChannel.transmit(command).getBytes();
+        } catch (CardException e) {
+            throw new IOException("Lost the card in " + mTerminal.getName() + "!", e);
+        } catch (IllegalStateException e) {
+            // The card was disconnected by close(), possibly from another thread.
+            throw new IOException("Card connection is closed!", e);
+        }
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return mExtendedLength;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mExtendedLength ? MAX_EXTENDED_APDU_LENGTH : MAX_SHORT_APDU_LENGTH;
+    }
+
+    /**
+     * Releases the card and resets it, so that no PIN stays verified for whoever uses the reader
+     * next. Another thread may call this to abort a session, but PC/SC may only return from a
+     * blocked transmit once the reader does.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        if (mExclusive) {
+            try {
+                mCard.endExclusive();
+            } catch (CardException | IllegalStateException e) {
+                // Disconnecting releases the card anyway.
+            }
+        }
+        try {
+            mCard.disconnect(true);
+        } catch (CardException e) {
+            throw new IOException("Cannot release the card in " + mTerminal.getName() + "!", e);
+        }
+    }
+
+    private static void disconnectQuietly(Card card) {
+        try {
+            card.disconnect(false);
+        } catch (CardException e) {
+            // We're already reporting a failure to connect.
+        }
+    }
+
+}
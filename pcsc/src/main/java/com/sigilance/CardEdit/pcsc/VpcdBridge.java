@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.SimulatedOpenPgpCard;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Puts a SimulatedOpenPgpCard into a vpcd virtual reader, from the vsmartcard project, so that
+ * the PC/SC backend can be tested end to end without hardware.
+ *
+ * vpcd is a PC/SC reader driver that listens on TCP port 35963 for a virtual card. Every
+ * message is a two-byte big-endian length followed by that many bytes. A one-byte message is a
+ * control command: power off (0), power on (1), reset (2) or get ATR (4). Anything longer is a
+ * command APDU, which is answered with the card's response APDU.
+ */
+public class VpcdBridge implements Runnable {
+
+    public static final int DEFAULT_PORT = 35963;
+
+    private static final int VPCD_CTRL_OFF = 0;
+    private static final int VPCD_CTRL_ON = 1;
+    private static final int VPCD_CTRL_RESET = 2;
+    private static final int VPCD_CTRL_ATR = 4;
+
+    private final SimulatedOpenPgpCard mCard;
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket;
+
+    public VpcdBridge(SimulatedOpenPgpCard card, String host, int port) {
+        mCard = card;
+        mHost = host;
+        mPort = port;
+    }
+
+    /** Connects to vpcd and serves the card until vpcd or close() ends the connection. */
+    @Override
+    public void run() {
+        try {
+            serve();
+        } catch (IOException e) {
+            if (mSocket != null && !mSocket.isClosed()) {
+                System.err.println("vpcd connection failed: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /** Connects to vpcd and serves the card until the connection ends. */
+    public void serve() throws IOException {
+        mSocket = new Socket(mHost, mPort);
+        mSocket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(mSocket.getInputStream());
+        DataOutputStream out = new DataOutputStream(mSocket.getOutputStream());
+
+        while (true) {
+            int length;
+            try {
+                length = in.readUnsignedShort();
+            } catch (EOFException e) {
+                return;
+            }
+            byte[] message = new byte[length];
+            in.readFully(message);
+
+            if (length == 1) {
+                switch (message[0]) {
+                    case VPCD_CTRL_OFF:
+                    case VPCD_CTRL_ON:
+                    case VPCD_CTRL_RESET:
+                        // Each of these ends whatever session the card was in.
+                        mCard.powerCycle();
+                        break;
+                    case VPCD_CTRL_ATR:
+                        send(out, mCard.getAtr());
+                        break;
+                }
+            } else {
+                send(out, mCard.transceive(message));
+            }
+        }
+    }
+
+    public void close() {
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release.
+            }
+        }
+    }
+
+    private static void send(DataOutputStream out, byte[] message) throws IOException {
+        out.writeShort(message.length);
+        out.write(message);
+        out.flush();
+    }
+
+    /**
+     * Serves a blank simulated card to vpcd until killed.
+     *
+     * Usage: VpcdBridge [host] [port]
+     */
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        SimulatedOpenPgpCard card = new SimulatedOpenPgpCard(0xFFFE, 0x00000001);
+        System.out.println("Serving a simulated OpenPGP card to vpcd at " + host + ":" + port);
+        new VpcdBridge(card, host, port).serve();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Joey Castillo <joey@joeycastillo.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sigilance.CardEdit.pcsc;
+
+import com.sigilance.CardEdit.ByteUtils;
+import com.sigilance.CardEdit.CardCapabilities;
+import com.sigilance.CardEdit.OpenPgpDataObjects;
+import com.sigilance.CardEdit.SimulatedOpenPgpCard;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Plays the part of vpcd: the bridge connects to this test and is driven through the socket. */
+public class VpcdBridgeTest {
+
+    private static final byte[] SELECT = ByteUtils.fromHexString("00A4040006D27600012401");
+    private static final byte[] GET_HISTORICAL_BYTES = ByteUtils.fromHexString("00CA5F5200");
+
+    private SimulatedOpenPgpCard mCard;
+    private ServerSocket mServer;
+    private Thread mThread;
+    private Socket mSocket;
+    private DataInputStream mIn;
+    private DataOutputStream mOut;
+
+    @Before
+    public void setUp() throws IOException {
+        mCard = new SimulatedOpenPgpCard(0xFFFE, 0x00000001);
+        mServer = new ServerSocket(0);
+        mThread = new Thread(new VpcdBridge(mCard, "localhost", mServer.getLocalPort()));
+        mThread.start();
+        mSocket = mServer.accept();
+        mIn = new DataInputStream(mSocket.getInputStream());
+        mOut = new DataOutputStream(mSocket.getOutputStream());
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        mSocket.close();
+        mServer.close();
+        mThread.join(5000);
+    }
+
+    @Test
+    public void answersTheAtrWithTheCardsHistoricalBytes() throws IOException {
+        byte[] atr = exchange(new byte[]{4});
+        assertArrayEquals(mCard.getAtr(), atr);
+
+        byte check = 0;
+        for (int i = 1; i < atr.length; i++) {
+            check ^= atr[i];
+        }
+        assertEquals(0, check);
+
+        byte[] historical = Arrays.copyOfRange(atr, 4, 4 + (atr[1] & 0x0F));
+        exchange(new byte[]{1});
+        assertEquals("9000", ByteUtils.hexString(exchange(SELECT)));
+        byte[] response = exchange(GET_HISTORICAL_BYTES);
+        assertArrayEquals(historical, Arrays.copyOf(response, response.length - 2));
+        assertTrue(CardCapabilities.fromHistoricalBytes(historical).mExtendedLength);
+    }
+
+    @Test
+    public void powerCyclesTheCardOnReset() throws IOException {
+        assertEquals("9000", ByteUtils.hexString(exchange(SELECT)));
+        mOut.writeShort(1);
+        mOut.write(2);
+        mOut.flush();
+
+        // The application has to be selected again after a reset.
+        byte[] response = exchange(ByteUtils.fromHexString("00CA004F00"));
+        assertFalse(ByteUtils.hexString(response).endsWith("9000"));
+        exchange(SELECT);
+        response = exchange(ByteUtils.fromHexString("00CA004F00"));
+        assertArrayEquals(mCard.getDataObject(OpenPgpDataObjects.DO_AID), Arrays.copyOf(response, response.length - 2));
+    }
+
+    @Test
+    public void stopsWhenVpcdHangsUp() throws IOException, InterruptedException {
+        mSocket.close();
+        mThread.join(5000);
+        assertFalse(mThread.isAlive());
+    }
+
+    private byte[] exchange(byte[] message) throws IOException {
+        mOut.writeShort(message.length);
+        mOut.write(message);
+        mOut.flush();
+        if (message.length == 1 && message[0] != 4) {
+            // Power and reset commands aren't answered.
+            return null;
+        }
+        byte[] response = new byte[mIn.readUnsignedShort()];
+        mIn.readFully(response);
+        return response;
+    }
+
+}